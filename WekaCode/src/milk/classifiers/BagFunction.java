@@ -0,0 +1,60 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BagFunction.java
+ *
+ */
+package milk.classifiers;
+
+/**
+ * Interface to objective functions that are a sum of one term per bag,
+ * so that the terms of disjoint ranges of bags can be evaluated
+ * independently (see ParallelBagEvaluator).  Implementations must only
+ * read shared state, apart from the positions of a PredictorCache that
+ * belong to the bags they are evaluating. <p>
+ *
+ * When a PredictorCache is used, objective() stores the values it
+ * computes for each instance, and addGradient() is only called once
+ * objective() has been evaluated at the same x, so that it can read
+ * them back instead of computing them again.
+ *
+ * @version $Revision: 1.0 $
+ */
+public interface BagFunction {
+
+    /**
+     * Evaluates the sum of the objective function's terms of the given
+     * range of bags.
+     *
+     * @param x the current values of variables
+     * @param from the index of the first bag
+     * @param to the index after the last bag
+     * @return the sum of the bags' terms
+     */
+    double objective(double[] x, int from, int to);
+
+    /**
+     * Adds the gradients of the objective function's terms of the given
+     * range of bags to the given vector.
+     *
+     * @param x the current values of variables
+     * @param from the index of the first bag
+     * @param to the index after the last bag
+     * @param grad the vector the gradients are added to
+     */
+    void addGradient(double[] x, int from, int to, double[] grad);
+}
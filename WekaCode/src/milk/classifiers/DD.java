@@ -24,6 +24,7 @@ import milk.core.*;
 import weka.classifiers.*;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
 import weka.core.*;
 import weka.core.Matrix;
 import weka.filters.*;
@@ -55,12 +56,34 @@ public class DD extends MIClassifier implements OptionHandler {
     
     /** Debugging output */
     protected boolean m_Debug;
+
+    /** The number of threads used to evaluate the objective function */
+    protected int m_NumThreads = 1;
+
+    /** The number of correction pairs kept by L-BFGS, 0 for dense BFGS */
+    protected int m_LBFGSMemory = 0;
+
+    /** Evaluates the objective function while building */
+    protected transient ParallelBagEvaluator m_Evaluator;
+
+    /** Abandon a restart whose NLL is this many times the best one, 
+     *  0 to never abandon */
+    protected double m_AbandonFactor = 0;
+
+    /** The number of function evaluations before a restart can be abandoned */
+    protected static final int ABANDON_EVALUATIONS = 20;
+
+    /** The best NLL found by the restarts so far */
+    private transient double m_BestNLL;
+
+    /** The index of the restart that found the best NLL so far */
+    private transient int m_BestStart;
    
     /** Class labels for each bag */
     protected int[] m_Classes;
 
     /** MI data */ 
-    protected double[][][] m_Data;
+    protected ColumnarExemplars m_Data;
 
     /** All attribute names */
     protected Instances m_Attributes;
@@ -71,9 +94,19 @@ public class DD extends MIClassifier implements OptionHandler {
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
-	Vector newVector = new Vector(1);
+	Vector newVector = new Vector(2);
 	newVector.addElement(new Option("\tTurn on debugging output.",
 					"D", 0, "-D"));
+	newVector.addElement(new Option("\tSet the number of threads used to evaluate\n"
+					+"\tthe objective function (default 1).",
+					"num-threads", 1, "-num-threads <num>"));
+	newVector.addElement(new Option("\tUse L-BFGS keeping the given number of correction\n"
+					+"\tpairs instead of dense BFGS (default 0: dense BFGS).",
+					"lbfgs", 1, "-lbfgs <num>"));
+	newVector.addElement(new Option("\tAbandon a restart when its NLL is more than the\n"
+					+"\tgiven factor times the best one found so far\n"
+					+"\t(default 0, never abandon).",
+					"abandon", 1, "-abandon <factor>"));
 	return newVector.elements();
     }
     
@@ -89,11 +122,38 @@ public class DD extends MIClassifier implements OptionHandler {
      * -R ridge <br>
      * Set the ridge parameter for the log-likelihood.<p>
      *
+     * -num-threads num <br>
+     * Set the number of threads used to evaluate the objective function.<p>
+     *
+     * -lbfgs num <br>
+     * Use L-BFGS with the given number of correction pairs (0 for dense BFGS).<p>
+     *
+     * -abandon factor <br>
+     * Abandon restarts whose NLL is more than factor times the best one.<p>
+     *
      * @param options the list of options as an array of strings
      * @exception Exception if an option is not supported
      */
     public void setOptions(String[] options) throws Exception {
 	setDebug(Utils.getFlag('D', options));	
+
+	String threadsString = Utils.getOption("num-threads", options);
+	if (threadsString.length() != 0) 
+	    setNumThreads(Integer.parseInt(threadsString));
+	else 
+	    setNumThreads(1);
+
+	String memoryString = Utils.getOption("lbfgs", options);
+	if (memoryString.length() != 0) 
+	    setLBFGSMemory(Integer.parseInt(memoryString));
+	else 
+	    setLBFGSMemory(0);
+
+	String abandonString = Utils.getOption("abandon", options);
+	if (abandonString.length() != 0) 
+	    setAbandonFactor(Double.parseDouble(abandonString));
+	else 
+	    setAbandonFactor(0);
     }
     
     /**
@@ -103,13 +163,21 @@ public class DD extends MIClassifier implements OptionHandler {
      */
     public String [] getOptions() {
 	
-	String [] options = new String [3];
+	String [] options = new String [9];
 	int current = 0;
 	
 	if (getDebug()) {
 	    options[current++] = "-D";
 	}
 	
+	options[current++] = "-num-threads";
+	options[current++] = ""+m_NumThreads;
+	
+	options[current++] = "-lbfgs";
+	options[current++] = ""+m_LBFGSMemory;
+	options[current++] = "-abandon";
+	options[current++] = ""+m_AbandonFactor;
+	
 	while (current < options.length) 
 	    options[current++] = "";
 	return options;
@@ -132,26 +200,150 @@ public class DD extends MIClassifier implements OptionHandler {
     public boolean getDebug() {
 	return m_Debug;
     }
+
+    /**
+     * Sets the number of threads used to evaluate the objective
+     * function and its gradient.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to evaluate the objective
+     * function and its gradient.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
+    }
+
+    /**
+     * Sets the number of correction pairs kept by L-BFGS.  L-BFGS needs
+     * memory and time per iteration linear in the number of parameters,
+     * where the default dense BFGS needs them quadratic.
+     *
+     * @param memory the number of pairs, 0 for dense BFGS
+     */
+    public void setLBFGSMemory(int memory) {
+	m_LBFGSMemory = memory;
+    }
+
+    /**
+     * Gets the number of correction pairs kept by L-BFGS.
+     *
+     * @return the number of pairs, 0 for dense BFGS
+     */
+    public int getLBFGSMemory() {
+	return m_LBFGSMemory;
+    }
+
+    /**
+     * Sets the factor used to abandon restarts early.  A restart is
+     * abandoned when, after a few function evaluations, the lowest NLL
+     * it has reached is more than this factor times the best NLL of the
+     * restarts finished so far.
+     *
+     * @param factor the factor, 0 to never abandon a restart
+     * @exception IllegalArgumentException if the factor is between 0
+     * and 1, which would abandon restarts better than the best one
+     */
+    public void setAbandonFactor(double factor) {
+	if((factor > 0) && (factor < 1))
+	    throw new IllegalArgumentException("Abandon factor must be 0 or "
+					       +"at least 1: "+factor);
+	m_AbandonFactor = factor;
+    }
+
+    /**
+     * Gets the factor used to abandon restarts early.
+     *
+     * @return the factor, 0 if restarts are never abandoned
+     */
+    public double getAbandonFactor() {
+	return m_AbandonFactor;
+    }
+
+    /**
+     * Thrown by the objective function to stop a restart.
+     */
+    private static class Abandoned extends RuntimeException {
+    }
       
-    private class OptEng extends Optimization
-    {
+    private class OptEng extends LBFGSOptimization implements BagFunction {
+
+	/** The value exp(-distance) of each instance */
+	private PredictorCache m_Cache = new PredictorCache(m_Data.numInstances());
+
+	/** Evaluates the objective function for this restart */
+	private ParallelBagEvaluator m_Eval;
+
+	/** The number of function evaluations so far */
+	private int m_NumEvals = 0;
+
+	/** The lowest NLL reached so far */
+	private double m_Lowest = Double.MAX_VALUE;
+
+	/**
+	 * Constructor
+	 * @param evaluator evaluates the objective function
+	 */
+	public OptEng(ParallelBagEvaluator evaluator){
+	    m_Eval = evaluator;
+	}
+
 	/** 
 	 * Evaluate objective function
 	 * @param x the current values of variables
 	 * @return the value of the objective function 
+	 * @exception Abandoned if the restart is clearly worse than
+	 * the best one
+	 * @exception InterruptedException if the thread was interrupted,
+	 * whose interrupt flag is left set
+	 */
+	protected double objectiveFunction(double[] x)
+	    throws InterruptedException {
+	    if(Thread.currentThread().isInterrupted())
+		throw new InterruptedException("Restart interrupted");
+	    
+	    double nll = m_Eval.objective(this, x, m_Classes.length, m_Cache);
+	    if(m_AbandonFactor > 0){
+		m_NumEvals++;
+		if(nll < m_Lowest)
+		    m_Lowest = nll;
+		if((m_NumEvals >= ABANDON_EVALUATIONS) &&
+		   (m_Lowest > m_AbandonFactor*getBestNLL()))
+		    throw new Abandoned();
+	    }
+	    return nll;
+	}
+
+	/** 
+	 * Evaluate the objective function's terms of the given bags
+	 * @param x the current values of variables
+	 * @param from the index of the first bag
+	 * @param to the index after the last bag
+	 * @return the sum of the bags' terms
 	 */
-	protected double objectiveFunction(double[] x){
+	public double objective(double[] x, int from, int to){
+	    double[] pred = m_Cache.values();
 	    double nll = 0; // -LogLikelihood
-	    for(int i=0; i<m_Classes.length; i++){ // ith bag
-		int nI = m_Data[i][0].length; // numInstances in ith bag
+	    int nR = m_Data.numColumns();
+	    for(int i=from; i<to; i++){ // ith bag
+		int start = m_Data.bagStart(i), end = m_Data.bagEnd(i);
 		double bag = 0.0;  // NLL of pos bag
 		
-		for(int j=0; j<nI; j++){
+		for(int j=start; j<end; j++){
 		    double ins=0.0;
-		    for(int k=0; k<m_Data[i].length; k++)
-			ins += (m_Data[i][k][j]-x[k*2])*(m_Data[i][k][j]-x[k*2])*
-			    x[k*2+1]*x[k*2+1];
+		    for(int k=0; k<nR; k++){
+			double d = m_Data.column(k)[j];
+			ins += (d-x[k*2])*(d-x[k*2])*x[k*2+1]*x[k*2+1];
+		    }
 		    ins = Math.exp(-ins);
+		    pred[j] = ins;
 		    ins = 1.0-ins;
 
 		    if(m_Classes[i] == 1)
@@ -178,29 +370,38 @@ public class DD extends MIClassifier implements OptionHandler {
 	 * @return the gradient vector 
 	 */
 	protected double[] evaluateGradient(double[] x){
-	    double[] grad = new double[x.length];
-	    for(int i=0; i<m_Classes.length; i++){ // ith bag
-		int nI = m_Data[i][0].length; // numInstances in ith bag 
+	    return m_Eval.gradient(this, x, m_Classes.length, m_Cache);
+	}
+
+	/** 
+	 * Add the gradients of the objective function's terms of the
+	 * given bags to grad
+	 * @param x the current values of variables
+	 * @param from the index of the first bag
+	 * @param to the index after the last bag
+	 * @param grad the gradient vector being computed
+	 */
+	public void addGradient(double[] x, int from, int to, double[] grad){
+	    double[] pred = m_Cache.values();
+	    int nR = m_Data.numColumns();
+	    for(int i=from; i<to; i++){ // ith bag
+		int start = m_Data.bagStart(i), end = m_Data.bagEnd(i);
 				
 		double denom=0.0;	
 		double[] numrt = new double[x.length];
 		
-		for(int j=0; j<nI; j++){
-		    double exp=0.0;
-		    for(int k=0; k<m_Data[i].length; k++)
-			exp += (m_Data[i][k][j]-x[k*2])*(m_Data[i][k][j]-x[k*2])
-			    *x[k*2+1]*x[k*2+1];			
-		    exp = Math.exp(-exp);
-		    exp = 1.0-exp;
+		for(int j=start; j<end; j++){
+		    double exp = 1.0-pred[j];
 		    if(m_Classes[i]==1)
 			denom += Math.log(exp);		   		    
 
 		    if(exp<=m_Zero) exp=m_Zero;
 		    // Instance-wise update
-		    for(int p=0; p<m_Data[i].length; p++){  // pth variable
-			numrt[2*p] += (1.0-exp)*2.0*(x[2*p]-m_Data[i][p][j])*x[p*2+1]*x[p*2+1]
+		    for(int p=0; p<nR; p++){  // pth variable
+			double d = m_Data.column(p)[j];
+			numrt[2*p] += (1.0-exp)*2.0*(x[2*p]-d)*x[p*2+1]*x[p*2+1]
 			    /exp;
-			numrt[2*p+1] += 2.0*(1.0-exp)*(x[2*p]-m_Data[i][p][j])*(x[2*p]-m_Data[i][p][j])
+			numrt[2*p+1] += 2.0*(1.0-exp)*(x[2*p]-d)*(x[2*p]-d)
 			    *x[p*2+1]/exp;
 		    }					    
 		}		    
@@ -208,7 +409,7 @@ public class DD extends MIClassifier implements OptionHandler {
 		// Bag-wise update 
 		denom = 1.0-Math.exp(denom);
 		if(denom <= m_Zero) denom = m_Zero;
-		for(int q=0; q<m_Data[i].length; q++){
+		for(int q=0; q<nR; q++){
 		    if(m_Classes[i]==1){
 			grad[2*q] += numrt[2*q]*(1.0-denom)/denom;
 			grad[2*q+1] += numrt[2*q+1]*(1.0-denom)/denom;
@@ -218,8 +419,6 @@ public class DD extends MIClassifier implements OptionHandler {
 		    }
 		}
 	    } // one bag
-	    	   
-	    return grad;
 	}
     }
     
@@ -259,18 +458,16 @@ public class DD extends MIClassifier implements OptionHandler {
 	FastVector maxSzIdx=new FastVector();
 	int maxSz=0;
 	
-	m_Data  = new double [nC][nR][];              // Data values
 	m_Classes  = new int [nC];                    // Class values
 	m_Attributes = new Instances(train.exemplar(0).getInstances(),0);	
 	if (m_Debug) {
 	    System.out.println("Extracting data...");
 	}
+	m_Data = new ColumnarExemplars(train);        // Data values
 	
 	for(int h=0; h<nC; h++){
-	    Exemplar current = train.exemplar(h);
-	    m_Classes[h] = (int)current.classValue();  // Class value starts from 0
-	    Instances currInsts = current.getInstances();
-	    int nI = currInsts.numInstances();
+	    m_Classes[h] = (int)m_Data.classValue(h);  // Class value starts from 0
+	    int nI = m_Data.bagSize(h);
 	    if(m_Classes[h]==1){
 		if(nI>maxSz){
 		    maxSz=nI;
@@ -280,66 +477,144 @@ public class DD extends MIClassifier implements OptionHandler {
 		else if(nI == maxSz)
 		    maxSzIdx.addElement(new Integer(h));
 	    }
-	    int idx=0;
-	    for (int i = 0; i < train.numAttributes(); i++) {  		
-		if ((i==m_ClassIndex) || (i==m_IdIndex))
-		    continue;
-		
-		// initialize m_data[][][]		
-		m_Data[h][idx] = new double[nI];
-		for (int k=0; k<nI; k++)
-		    m_Data[h][idx][k] = currInsts.instance(k).value(i);
-		
-		idx++;
-	    }    	    
 	}	
 	
 	if (m_Debug) {
 	    System.out.println("\nIteration History..." );
 	}
 	
-	double[] x = new double[nR*2], tmp = new double[x.length];
-	double[][] b = new double[2][x.length]; 
-	    
-	OptEng opt;
-	double nll, bestnll = Double.MAX_VALUE;
-	for (int t=0; t<x.length; t++){
+	double[][] b = new double[2][nR*2]; 
+	for (int t=0; t<nR*2; t++){
 	    b[0][t] = Double.NaN; 
 	    b[1][t] = Double.NaN;
 	}
 	
-	// Largest Positive exemplar
+	// Largest Positive exemplar: one restart from each of its instances
+	FastVector starts = new FastVector();
 	for(int s=0; s<maxSzIdx.size(); s++){
 	    int exIdx = ((Integer)maxSzIdx.elementAt(s)).intValue();
-	    for(int p=0; p<m_Data[exIdx][0].length; p++){
+	    for(int p=0; p<m_Data.bagSize(exIdx); p++){
+		double[] x = new double[nR*2];
 		for (int q=0; q < nR;q++){
-		    x[2*q] = m_Data[exIdx][q][p];  // pick one instance
+		    x[2*q] = m_Data.value(q, exIdx, p);  // pick one instance
 		    x[2*q+1] = 1;
 		}
-		
-		opt = new OptEng();	
-		//opt.setDebug(m_Debug);
-		tmp = opt.findArgmin(x, b);
-		while(tmp==null){
-		    tmp = opt.getVarbValues();
-		    if (m_Debug)
-			System.out.println("200 iterations finished, not enough!");
-		    tmp = opt.findArgmin(tmp, b);
+		starts.addElement(x);
+	    }
+	}
+	
+	m_Par = null;
+	m_BestNLL = Double.MAX_VALUE;
+	m_BestStart = -1;
+	int nThreads = Math.min(m_NumThreads, starts.size());
+	if(nThreads <= 1){ // Restarts one after another
+	    m_Evaluator = new ParallelBagEvaluator(m_NumThreads);
+	    try{
+		for(int i=0; i<starts.size(); i++)
+		    restart(i, (double[])starts.elementAt(i), b, m_Evaluator);
+	    }finally{
+		m_Evaluator.shutdown();
+	    }
+	}
+	else{ // Concurrent restarts, each one evaluating in its own thread
+	    final ParallelBagEvaluator serial = new ParallelBagEvaluator(1);
+	    final double[][] bounds = b;
+	    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+	    try{
+		Future[] results = new Future[starts.size()];
+		for(int i=0; i<starts.size(); i++){
+		    final int index = i;
+		    final double[] x = (double[])starts.elementAt(i);
+		    results[i] = pool.submit(new Callable() {
+			    public Object call() throws Exception {
+				restart(index, x, bounds, serial);
+				return null;
+			    }
+			});
 		}
-		nll = opt.getMinFunction();
-		
-		if(nll < bestnll){
-		    bestnll = nll;
-		    m_Par = tmp;
-		    tmp = new double[x.length]; // Save memory
-		    if (m_Debug)
-			System.out.println("!!!!!!!!!!!!!!!!Smaller NLL found: "+nll);
+		for(int i=0; i<results.length; i++){
+		    try{
+			results[i].get();
+		    }catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new Exception("Restarts interrupted");
+		    }catch(ExecutionException e){
+			if(e.getCause() instanceof Exception)
+			    throw (Exception)e.getCause();
+			throw (Error)e.getCause();
+		    }
 		}
-		if (m_Debug)
-		    System.out.println(exIdx+":  -------------<Converged>--------------");
-	    }	
+	    }finally{
+		pool.shutdownNow();
+	    }
 	}
+	
+	if (m_Debug)
+	    System.out.println("Best NLL: "+m_BestNLL+" from restart "+m_BestStart);
     }		
+
+    /**
+     * Runs the optimization from one starting point and keeps the result
+     * if it is the best so far.
+     *
+     * @param index the index of the starting point
+     * @param x the starting point
+     * @param b the bounds of the variables
+     * @param evaluator evaluates the objective function
+     * @exception Exception if the optimization fails
+     */
+    private void restart(int index, double[] x, double[][] b,
+			 ParallelBagEvaluator evaluator) throws Exception {
+	OptEng opt = new OptEng(evaluator);
+	opt.setMemory(m_LBFGSMemory);
+	//opt.setDebug(m_Debug);
+	double[] tmp;
+	try{
+	    tmp = opt.findArgmin(x, b);
+	    while(tmp==null){
+		tmp = opt.getVarbValues();
+		if (m_Debug)
+		    System.out.println("200 iterations finished, not enough!");
+		tmp = opt.findArgmin(tmp, b);
+	    }
+	}catch(Abandoned e){
+	    if (m_Debug)
+		System.out.println(index+":  -------------<Abandoned>--------------");
+	    return;
+	}
+	
+	offer(index, opt.getMinFunction(), tmp);
+	if (m_Debug)
+	    System.out.println(index+":  -------------<Converged>--------------");
+    }
+
+    /**
+     * Keeps the result of a restart if its NLL is the smallest so far.
+     * Ties go to the restart with the smaller index, so that the result
+     * does not depend on the order the restarts finish in.
+     *
+     * @param index the index of the restart
+     * @param nll the NLL found by the restart
+     * @param par the parameters found by the restart
+     */
+    private synchronized void offer(int index, double nll, double[] par) {
+	if((nll < m_BestNLL) || ((nll == m_BestNLL) && (index < m_BestStart))){
+	    m_BestNLL = nll;
+	    m_BestStart = index;
+	    m_Par = par;
+	    if (m_Debug)
+		System.out.println("!!!!!!!!!!!!!!!!Smaller NLL found: "+nll);
+	}
+    }
+
+    /**
+     * Gets the best NLL found by the restarts so far.
+     *
+     * @return the best NLL
+     */
+    private synchronized double getBestNLL() {
+	return m_BestNLL;
+    }
     
     /**
      * Computes the distribution for a given exemplar
@@ -384,6 +659,46 @@ public class DD extends MIClassifier implements OptionHandler {
 	distribution[1] = 1.0-distribution[0];	
 	return distribution;
     }
+
+    /**
+     * Computes the distributions for the given exemplars.  The exemplars 
+     * are packed into columns once, and the distances to the target point of all
+     * instances of a block are computed one attribute at a time.
+     *
+     * @param data the exemplars to be classified
+     * @param numThreads the number of threads
+     * @return the distribution of each exemplar
+     * @exception Exception if the distributions can't be computed successfully
+     */
+    public double[][] distributionsForExemplars(Exemplars data, int numThreads)
+	throws Exception {
+	
+	final ColumnarExemplars cols = new ColumnarExemplars(data);
+	return scoreBlocks(new BlockScorer() {
+		public void score(int block, int from, int to, double[][] dists){
+		    int first = cols.bagStart(from), 
+			last = (to > from) ? cols.bagEnd(to-1) : first;
+		    double[] exp = new double[last-first];
+		    for(int r=0; r<cols.numColumns(); r++){
+			double[] col = cols.column(r);
+			for(int j=first; j<last; j++)
+			    exp[j-first] += (m_Par[r*2]-col[j])*(m_Par[r*2]-col[j])*
+				m_Par[r*2+1]*m_Par[r*2+1];
+		    }
+		    
+		    for(int i=from; i<to; i++){
+			int start = cols.bagStart(i), end = cols.bagEnd(i);
+			double [] distribution = new double[2];
+			for(int j=start; j<end; j++){
+			    distribution[0] += Math.log(1.0-Math.exp(-exp[j-first]));
+			}
+			distribution[0] = Math.exp(distribution[0]);
+			distribution[1] = 1.0-distribution[0];
+			dists[i] = distribution;
+		    }
+		}
+	    }, cols.numBags(), numThreads);
+    }
     
     /**
      * Gets a string describing the classifier.
@@ -0,0 +1,200 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Diagnostics.java
+ *
+ */
+package milk.classifiers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnostic output and counters shared by the classifiers. <p>
+ *
+ * The level is read once from the system property milk.diagnostics
+ * (off, info, debug or trace; default off), when the class is loaded.
+ * A guarded statement such as <p>
+ *
+ * <code>
+ * if(Diagnostics.DEBUG)<br>
+ * &nbsp;&nbsp; Diagnostics.log("TLD", "Dimension #"+x);<br>
+ * </code> <p>
+ *
+ * then costs one test of a final field when the level is lower: neither
+ * the message is built nor the stream locked.  The flags are not 
+ * compile-time constants, so javac keeps the guarded code, but the JIT
+ * compiler can treat them as constants and drop it.  Messages are 
+ * written to System.err, one line per call, prefixed by their source. <p>
+ *
+ * The counters of objective and gradient evaluations and of optimizer
+ * iterations are only updated from level info upwards.  They are
+ * shared by all classifiers in the process and never reset, so they
+ * count the events since the class was loaded; the events of one 
+ * build are found by taking a snapshot() at its start and passing it 
+ * to counters() at its end (which then also counts the events of any
+ * builds running at the same time).
+ *
+ * @version $Revision: 1.0 $
+ */
+public final class Diagnostics {
+
+    /** The level of the output: 0 (off), 1 (info), 2 (debug) or 3 (trace) */
+    public static final int LEVEL = 
+	parseLevel(System.getProperty("milk.diagnostics"));
+
+    /** Whether summaries, such as the fitted parameters, are written */
+    public static final boolean INFO = LEVEL >= 1;
+
+    /** Whether the progress of the optimizers is written */
+    public static final boolean DEBUG = LEVEL >= 2;
+
+    /** Whether per-exemplar and per-evaluation details are written */
+    public static final boolean TRACE = LEVEL >= 3;
+
+    /** The number of evaluations of objective functions */
+    public static final Counter OBJECTIVE_EVALUATIONS = 
+	new Counter("objective evaluations");
+
+    /** The number of evaluations of gradients */
+    public static final Counter GRADIENT_EVALUATIONS = 
+	new Counter("gradient evaluations");
+
+    /** The number of iterations of the optimizers */
+    public static final Counter ITERATIONS = new Counter("iterations");
+
+    /**
+     * A count of events, updated only from level info upwards.
+     */
+    public static final class Counter {
+
+	/** The name of the events */
+	private String m_Name;
+
+	/** The number of events */
+	private AtomicLong m_Count = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param name the name of the events
+	 */
+	private Counter(String name) {
+	    m_Name = name;
+	}
+
+	/**
+	 * Counts one event.
+	 */
+	public void increment() {
+	    if(INFO)
+		m_Count.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of events counted so far.
+	 *
+	 * @return the number of events
+	 */
+	public long get() {
+	    return m_Count.get();
+	}
+
+	/**
+	 * Returns the name and number of events.
+	 *
+	 * @return the description of the counter
+	 */
+	public String toString() {
+	    return m_Name+": "+m_Count.get();
+	}
+
+	/**
+	 * Returns the name and number of events since the given count.
+	 *
+	 * @param start the count returned by get() earlier
+	 * @return the description of the change of the counter
+	 */
+	public String since(long start) {
+	    return m_Name+": "+(m_Count.get()-start);
+	}
+    }
+
+    /** Not instantiable */
+    private Diagnostics() {
+    }
+
+    /**
+     * Writes a message.  Callers should test the flag of the message's
+     * level first, so that it is not built when it is not written.
+     *
+     * @param source the name of the class writing the message
+     * @param message the message
+     */
+    public static void log(String source, String message) {
+	System.err.println("["+source+"] "+message);
+    }
+
+    /**
+     * Returns the values of all counters since the class was loaded.
+     *
+     * @return the counters, separated by commas
+     */
+    public static String counters() {
+	return OBJECTIVE_EVALUATIONS+", "+GRADIENT_EVALUATIONS+", "+ITERATIONS;
+    }
+
+    /**
+     * Returns the current values of all counters, in the order of
+     * counters().
+     *
+     * @return the values
+     */
+    public static long[] snapshot() {
+	return new long[] {OBJECTIVE_EVALUATIONS.get(), 
+			   GRADIENT_EVALUATIONS.get(), ITERATIONS.get()};
+    }
+
+    /**
+     * Returns the changes of all counters since the given snapshot.
+     *
+     * @param start the values returned by snapshot()
+     * @return the changes, separated by commas
+     */
+    public static String counters(long[] start) {
+	return OBJECTIVE_EVALUATIONS.since(start[0])+", "+
+	    GRADIENT_EVALUATIONS.since(start[1])+", "+ITERATIONS.since(start[2]);
+    }
+
+    /**
+     * Converts the value of the milk.diagnostics property to a level.
+     *
+     * @param level the value of the property, may be null
+     * @return the level, 0 if the value is not recognized
+     */
+    private static int parseLevel(String level) {
+	if(level == null)
+	    return 0;
+	level = level.trim().toLowerCase();
+	if(level.equals("info"))
+	    return 1;
+	if(level.equals("debug"))
+	    return 2;
+	if(level.equals("trace"))
+	    return 3;
+	return 0;
+    }
+}
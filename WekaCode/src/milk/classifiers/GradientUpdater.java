@@ -0,0 +1,307 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    GradientUpdater.java
+ *
+ */
+package milk.classifiers;
+
+import milk.core.*;
+import java.io.Serializable;
+import java.util.*;
+import weka.core.*;
+
+/**
+ * Updates the coefficients of an MI logistic regression model with
+ * gradient steps on new exemplars, as done by MILR, MILRARITH and
+ * MILRGEOM. <p>
+ *
+ * New exemplars are collected until the batch size is reached, then the
+ * pending exemplars are used in one gradient step on the negative
+ * log-likelihood of the model, plus the batch's share of the ridge.  The
+ * step is taken in the units the data was normalised to when the model
+ * was built, so that the learning rate has the same meaning for all
+ * attributes.  Exemplars left pending at the end of a stream are used
+ * by flush(). <p>
+ *
+ * Valid options are: <p>
+ *
+ * -learning-rate rate <br>
+ * Set the learning rate of the updates with new exemplars.<p>
+ *
+ * -batch-size num <br>
+ * Set the number of new exemplars used in each update.<p>
+ *
+ * @version $Revision: 1.0 $
+ */
+public class GradientUpdater implements OptionHandler, Serializable {
+
+    /**
+     * Interface to the models updated.
+     */
+    public interface Model {
+
+	/**
+	 * Computes the gradient of the negative log-likelihood of the
+	 * given exemplars, without the ridge.
+	 *
+	 * @param data the exemplars, normalised as when building
+	 * @param classes the class value of each exemplar
+	 * @param x the coefficients, in normalised units
+	 * @return the gradient, summed over the exemplars
+	 * @exception Exception if the gradient cannot be computed
+	 */
+	double[] gradient(ColumnarExemplars data, int[] classes, double[] x)
+	    throws Exception;
+    }
+
+    /** Whether missing values are replaced by the mean when normalising */
+    private boolean m_ReplaceMissing;
+
+    /** The learning rate of the updates with new exemplars */
+    private double m_LearningRate = 0.01;
+
+    /** The number of new exemplars used in each update */
+    private int m_BatchSize = 1;
+
+    /** The number of exemplars the model has been fitted to */
+    private int m_NumExemplars;
+
+    /** The new exemplars not used in an update yet */
+    private FastVector m_Pending = new FastVector();
+
+    /** The header of the training data */
+    private Instances m_Header;
+
+    /** The index of the ID attribute */
+    private int m_IdIndex;
+
+    /** The mean and standard deviation used to normalise each attribute */
+    private double[] m_Shift, m_Scale;
+
+    /**
+     * Constructor
+     *
+     * @param replaceMissing whether missing values are replaced by the
+     * mean when the new exemplars are normalised
+     */
+    public GradientUpdater(boolean replaceMissing) {
+	m_ReplaceMissing = replaceMissing;
+    }
+
+    /**
+     * Returns an enumeration describing the available options
+     *
+     * @return an enumeration of all the available options
+     */
+    public Enumeration listOptions() {
+	Vector newVector = new Vector(2);
+	newVector.addElement(new Option("\tSet the learning rate of the updates with new\n"
+					+"\texemplars (default 0.01).",
+					"learning-rate", 1, "-learning-rate <rate>"));
+	newVector.addElement(new Option("\tSet the number of new exemplars used in each\n"
+					+"\tupdate (default 1).",
+					"batch-size", 1, "-batch-size <num>"));
+	return newVector.elements();
+    }
+
+    /**
+     * Parses a given list of options. Valid options are:<p>
+     *
+     * -learning-rate rate <br>
+     * Set the learning rate of the updates with new exemplars.<p>
+     *
+     * -batch-size num <br>
+     * Set the number of new exemplars used in each update.<p>
+     *
+     * @param options the list of options as an array of strings
+     * @exception Exception if an option is not supported
+     */
+    public void setOptions(String[] options) throws Exception {
+	String rateString = Utils.getOption("learning-rate", options);
+	if (rateString.length() != 0) 
+	    setLearningRate(Double.parseDouble(rateString));
+	else 
+	    setLearningRate(0.01);
+
+	String batchString = Utils.getOption("batch-size", options);
+	if (batchString.length() != 0) 
+	    setBatchSize(Integer.parseInt(batchString));
+	else 
+	    setBatchSize(1);
+    }
+
+    /**
+     * Gets the current settings of the updater.
+     *
+     * @return an array of strings suitable for passing to setOptions
+     */
+    public String [] getOptions() {
+	String [] options = new String [4];
+	int current = 0;
+	options[current++] = "-learning-rate";
+	options[current++] = ""+m_LearningRate;
+	options[current++] = "-batch-size";
+	options[current++] = ""+m_BatchSize;
+	return options;
+    }
+
+    /**
+     * Sets the learning rate of the updates with new exemplars.
+     *
+     * @param rate the learning rate
+     */
+    public void setLearningRate(double rate) {
+	m_LearningRate = rate;
+    }
+
+    /**
+     * Gets the learning rate of the updates with new exemplars.
+     *
+     * @return the learning rate
+     */
+    public double getLearningRate() {
+	return m_LearningRate;
+    }
+
+    /**
+     * Sets the number of new exemplars used in each update.
+     *
+     * @param size the number of exemplars, 1 for updating with each
+     * exemplar as it arrives
+     */
+    public void setBatchSize(int size) {
+	m_BatchSize = size;
+    }
+
+    /**
+     * Gets the number of new exemplars used in each update.
+     *
+     * @return the number of exemplars
+     */
+    public int getBatchSize() {
+	return m_BatchSize;
+    }
+
+    /**
+     * Starts updating a model that has just been built, discarding any
+     * exemplars still pending.
+     *
+     * @param train the training exemplars of the model
+     * @param shift the mean used to normalise each attribute
+     * @param scale the standard deviation used to normalise each attribute
+     */
+    public void start(Exemplars train, double[] shift, double[] scale) {
+	m_NumExemplars = train.numExemplars();
+	m_Pending = new FastVector();
+	m_Header = new Instances(train.exemplar(0).getInstances(), 0);
+	m_IdIndex = train.idIndex();
+	m_Shift = shift;
+	m_Scale = scale;
+    }
+
+    /**
+     * Adds the given exemplar to the pending ones, and takes a gradient
+     * step once the batch size is reached.  An exemplar with the same ID
+     * as a pending one first causes a step with the pending ones, since
+     * they can't be in one batch.
+     *
+     * @param example the new exemplar
+     * @param par the coefficients of the model, in attribute units,
+     * which are updated in place
+     * @param ridge the ridge of the model
+     * @param model computes the gradient of the model
+     * @exception Exception if the model has not been built yet
+     */
+    public void update(Exemplar example, double[] par, double ridge,
+		       Model model) throws Exception {
+	if (m_Header == null)
+	    throw new Exception("No model built yet: can't update.");
+
+	for(int i=0; i < m_Pending.size(); i++)
+	    if(((Exemplar)m_Pending.elementAt(i)).idValue() == example.idValue()){
+		flush(par, ridge, model);
+		break;
+	    }
+	
+	m_Pending.addElement(new Exemplar(example));
+	m_NumExemplars++;
+	if (m_Pending.size() >= m_BatchSize)
+	    flush(par, ridge, model);
+    }
+
+    /**
+     * Takes one gradient step with the pending exemplars, if there are
+     * any.
+     *
+     * @param par the coefficients of the model, in attribute units,
+     * which are updated in place
+     * @param ridge the ridge of the model
+     * @param model computes the gradient of the model
+     * @exception Exception if the exemplars are not compatible with
+     * the training data
+     */
+    public void flush(double[] par, double ridge, Model model) 
+	throws Exception {
+	int nR = m_Shift.length, nC = m_Pending.size();
+	if (nC == 0)
+	    return;
+
+	Exemplars batch = new Exemplars(new Instances(m_Header, 0), m_IdIndex);
+	for(int h=0; h<nC; h++)
+	    batch.add((Exemplar)m_Pending.elementAt(h));
+	m_Pending = new FastVector();
+	
+	int[] classes = new int [nC];
+	for(int h=0; h<nC; h++)
+	    classes[h] = (int)batch.exemplar(h).classValue();
+	ColumnarExemplars data = 
+	    new ColumnarExemplars(new ColumnarExemplars(batch), 
+				  m_Shift, m_Scale, m_ReplaceMissing);
+	
+	// Convert coefficients to normalized attribute units
+	double[] x = new double[nR+1];
+	x[0] = par[0];
+	for(int j = 1; j < nR+1; j++) {
+	    x[j] = par[j];
+	    if (m_Scale[j-1] != 0) {
+		x[j] *= m_Scale[j-1];
+		x[0] += par[j] * m_Shift[j-1];
+	    }
+	}
+	
+	double[] grad = model.gradient(data, classes, x);
+	
+	// Average gradient of the batch, plus its share of the ridge:
+	// note that intercepts NOT included
+	for(int p=0; p<x.length; p++){
+	    grad[p] /= (double)nC;
+	    if(p > 0)
+		grad[p] += 2.0*ridge*x[p]/(double)m_NumExemplars;
+	    x[p] -= m_LearningRate*grad[p];
+	}
+	
+	// Convert coefficients back to non-normalized attribute units
+	for(int j = 1; j < nR+1; j++) {
+	    if (m_Scale[j-1] != 0) {
+		x[j] /= m_Scale[j-1];
+		x[0] -= x[j] * m_Shift[j-1];
+	    }
+	}
+	System.arraycopy(x, 0, par, 0, x.length);
+    }
+}
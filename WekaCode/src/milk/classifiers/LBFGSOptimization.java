@@ -0,0 +1,307 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    LBFGSOptimization.java
+ *
+ */
+package milk.classifiers;
+
+import weka.core.*;
+
+/**
+ * Optimization with a limited-memory BFGS (L-BFGS) quasi-Newton method
+ * as an alternative to the dense BFGS of weka.core.Optimization. <p>
+ *
+ * Subclasses implement objectiveFunction() and evaluateGradient() as for
+ * Optimization, and findArgmin() takes the same bound constraints and
+ * follows the same conventions: it returns null when the maximum number
+ * of iterations is reached, in which case getVarbValues() returns the
+ * current values so that the search can be resumed. <p>
+ *
+ * Instead of a d-by-d approximation of the inverse Hessian, only the
+ * last m pairs of steps and gradient changes are kept, so memory and
+ * the cost of an iteration are O(m d) instead of O(d^2).  Bounds are
+ * handled by projection: variables held at a bound by the gradient are
+ * fixed for the iteration, and each trial point of the backtracking line
+ * search is projected onto the feasible box. <p>
+ *
+ * With a memory of 0 findArgmin() uses the dense BFGS of Optimization,
+ * so classifiers can offer both and select one with a single option.
+ *
+ * @version $Revision: 1.0 $
+ */
+public abstract class LBFGSOptimization extends Optimization {
+
+    /** The maximum number of times a step is halved in the line search */
+    private static final int MAX_BACKTRACKS = 40;
+
+    /** The number of correction pairs kept, 0 for dense BFGS */
+    private int m_Memory = 0;
+
+    /** The values of the variables found by the last L-BFGS search,
+	null if dense BFGS was used */
+    private double[] m_Values = null;
+
+    /**
+     * Sets the number of correction pairs kept.
+     *
+     * @param memory the number of pairs, 0 for dense BFGS
+     */
+    public void setMemory(int memory) {
+	m_Memory = memory;
+    }
+
+    /**
+     * Returns the number of correction pairs kept.
+     *
+     * @return the number of pairs, 0 for dense BFGS
+     */
+    public int getMemory() {
+	return m_Memory;
+    }
+
+    /**
+     * Returns the values of the variables found by the last search.
+     *
+     * @return a copy of the values
+     */
+    public double[] getVarbValues() {
+	if(m_Values == null)
+	    return super.getVarbValues();
+	return (double[])m_Values.clone();
+    }
+
+    /**
+     * Finds the values of the variables that minimise the objective
+     * function within the given bounds.
+     *
+     * @param initX the initial values of the variables
+     * @param constraints the lower (constraints[0]) and upper
+     * (constraints[1]) bounds of the variables, NaN if there is none
+     * @return the values found, or null if the maximum number of
+     * iterations was reached
+     * @exception Exception if the objective function or gradient cannot
+     * be evaluated
+     */
+    public double[] findArgmin(double[] initX, double[][] constraints)
+	throws Exception {
+	m_Values = null;
+	if(m_Memory <= 0)
+	    return super.findArgmin(initX, constraints);
+
+	int n = initX.length;
+	double[] lower = constraints[0], upper = constraints[1];
+	double[] x = new double[n];
+	for(int i=0; i < n; i++)
+	    x[i] = project(initX[i], lower[i], upper[i]);
+
+	double f = objectiveFunction(x);
+	if(Double.isNaN(f))
+	    throw new Exception("Objective function value is NaN!");
+	double[] g = evaluateGradient(x);
+
+	double[][] s = new double[m_Memory][], y = new double[m_Memory][];
+	double[] rho = new double[m_Memory];
+	int numPairs = 0, newest = -1;
+
+	double sum = 0;
+	for(int i=0; i < n; i++)
+	    sum += x[i]*x[i];
+	double stpmax = m_STPMX*Math.max(Math.sqrt(sum), (double)n);
+
+	boolean[] isFixed = new boolean[n];
+	double[] d = new double[n], alpha = new double[m_Memory];
+	for(int iter=0; iter < m_MAXITS; iter++){
+	    Diagnostics.ITERATIONS.increment();
+	    // Variables the gradient pushes against their bounds
+	    double test = 0;
+	    for(int i=0; i < n; i++){
+		isFixed[i] = 
+		    (!Double.isNaN(lower[i]) && (x[i] <= lower[i]) && (g[i] > 0)) ||
+		    (!Double.isNaN(upper[i]) && (x[i] >= upper[i]) && (g[i] < 0));
+		if(!isFixed[i])
+		    test = Math.max(test, Math.abs(g[i])*Math.max(Math.abs(x[i]), 1.0));
+	    }
+	    if(test/Math.max(Math.abs(f), 1.0) < m_Zero){
+		if(m_Debug)
+		    System.err.println("L-BFGS: gradient converged after "+iter+" iterations");
+		return finish(x, f);
+	    }
+
+	    // Two-loop recursion on the free variables
+	    for(int i=0; i < n; i++)
+		d[i] = isFixed[i] ? 0 : -g[i];
+	    for(int p=0, k=newest; p < numPairs; p++, k=(k+m_Memory-1)%m_Memory){
+		alpha[k] = rho[k]*dot(s[k], d, isFixed);
+		axpy(-alpha[k], y[k], d, isFixed);
+	    }
+	    if(numPairs > 0){
+		double gamma = dot(s[newest], y[newest], isFixed)/
+		    dot(y[newest], y[newest], isFixed);
+		if((gamma > 0) && !Double.isInfinite(gamma))
+		    for(int i=0; i < n; i++)
+			d[i] *= gamma;
+	    }
+	    for(int p=0, k=(newest-numPairs+1+m_Memory)%m_Memory; p < numPairs;
+		p++, k=(k+1)%m_Memory){
+		double beta = rho[k]*dot(y[k], d, isFixed);
+		axpy(alpha[k]-beta, s[k], d, isFixed);
+	    }
+
+	    double slope = dot(g, d, isFixed);
+	    if(!(slope < 0)){ // Not a descent direction: restart from the gradient
+		numPairs = 0;
+		for(int i=0; i < n; i++)
+		    d[i] = isFixed[i] ? 0 : -g[i];
+		slope = dot(g, d, isFixed);
+	    }
+	    double norm = Math.sqrt(dot(d, d, isFixed));
+	    if(norm > stpmax){
+		for(int i=0; i < n; i++)
+		    d[i] *= stpmax/norm;
+		slope *= stpmax/norm;
+	    }
+
+	    // Backtracking line search along the projected path
+	    double step = 1.0;
+	    if(numPairs == 0)
+		step = Math.min(1.0, 1.0/Math.max(norm, m_Epsilon));
+	    double[] xnew = new double[n];
+	    double fnew = Double.NaN;
+	    boolean found = false;
+	    for(int t=0; (t < MAX_BACKTRACKS) && !found; t++){
+		double decrease = 0;
+		for(int i=0; i < n; i++){
+		    xnew[i] = isFixed[i] ? x[i] :
+			project(x[i]+step*d[i], lower[i], upper[i]);
+		    decrease += g[i]*(xnew[i]-x[i]);
+		}
+		fnew = objectiveFunction(xnew);
+		if(!Double.isNaN(fnew) && (fnew <= f + m_ALF*decrease))
+		    found = true;
+		else
+		    step *= 0.5;
+	    }
+	    if(!found){
+		if(numPairs == 0){
+		    if(m_Debug)
+			System.err.println("L-BFGS: no decrease along the gradient after "
+					   +iter+" iterations");
+		    return finish(x, f);
+		}
+		numPairs = 0; // Try again from the gradient, which is still g
+		continue;
+	    }
+
+	    double[] gnew = evaluateGradient(xnew);
+	    double[] sk = new double[n], yk = new double[n];
+	    double change = 0, sy = 0, yy = 0;
+	    for(int i=0; i < n; i++){
+		sk[i] = xnew[i]-x[i];
+		yk[i] = gnew[i]-g[i];
+		sy += sk[i]*yk[i];
+		yy += yk[i]*yk[i];
+		change = Math.max(change, Math.abs(sk[i])/Math.max(Math.abs(xnew[i]), 1.0));
+	    }
+	    x = xnew;
+	    f = fnew;
+	    g = gnew;
+	    if(m_Debug)
+		System.err.println("L-BFGS iteration "+iter+": f="+f);
+	    if(change < m_TOLX){
+		if(m_Debug)
+		    System.err.println("L-BFGS: variables converged after "+iter+" iterations");
+		return finish(x, f);
+	    }
+
+	    // Only keep pairs that preserve positive definiteness
+	    if(sy > m_Epsilon*yy){
+		newest = (newest+1)%m_Memory;
+		s[newest] = sk;
+		y[newest] = yk;
+		rho[newest] = 1.0/sy;
+		if(numPairs < m_Memory)
+		    numPairs++;
+	    }
+	}
+
+	if(m_Debug)
+	    System.err.println("L-BFGS: maximum number of iterations reached");
+	m_Values = x;
+	m_f = f;
+	return null;
+    }
+
+    /**
+     * Records the solution.
+     *
+     * @param x the values of the variables
+     * @param f the value of the objective function at x
+     * @return a copy of x
+     */
+    private double[] finish(double[] x, double f) {
+	m_Values = x;
+	m_f = f;
+	return (double[])x.clone();
+    }
+
+    /**
+     * Moves a value inside its bounds.
+     *
+     * @param v the value
+     * @param lower the lower bound, NaN if there is none
+     * @param upper the upper bound, NaN if there is none
+     * @return the nearest value within the bounds
+     */
+    private static double project(double v, double lower, double upper) {
+	if(!Double.isNaN(lower) && (v < lower))
+	    return lower;
+	if(!Double.isNaN(upper) && (v > upper))
+	    return upper;
+	return v;
+    }
+
+    /**
+     * Returns the dot product of two vectors over the free variables.
+     *
+     * @param a the first vector
+     * @param b the second vector
+     * @param isFixed whether each variable is fixed
+     * @return the dot product
+     */
+    private static double dot(double[] a, double[] b, boolean[] isFixed) {
+	double sum = 0;
+	for(int i=0; i < a.length; i++)
+	    if(!isFixed[i])
+		sum += a[i]*b[i];
+	return sum;
+    }
+
+    /**
+     * Adds a multiple of one vector to another over the free variables.
+     *
+     * @param c the multiple
+     * @param a the vector added
+     * @param b the vector added to
+     * @param isFixed whether each variable is fixed
+     */
+    private static void axpy(double c, double[] a, double[] b, boolean[] isFixed) {
+	for(int i=0; i < a.length; i++)
+	    if(!isFixed[i])
+		b[i] += c*a[i];
+    }
+}
@@ -55,12 +55,21 @@ public class MDD extends MIClassifier implements OptionHandler {
     
     /** Debugging output */
     protected boolean m_Debug;
+
+    /** The number of threads used to evaluate the objective function */
+    protected int m_NumThreads = 1;
+
+    /** The number of correction pairs kept by L-BFGS, 0 for dense BFGS */
+    protected int m_LBFGSMemory = 0;
+
+    /** Evaluates the objective function while building */
+    protected transient ParallelBagEvaluator m_Evaluator;
    
     /** Class labels for each bag */
     protected int[] m_Classes;
 
     /** MI data */ 
-    protected double[][][] m_Data;
+    protected ColumnarExemplars m_Data;
 
     /** All attribute names */
     protected Instances m_Attributes;
@@ -73,9 +82,15 @@ public class MDD extends MIClassifier implements OptionHandler {
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
-	Vector newVector = new Vector(1);
+	Vector newVector = new Vector(2);
 	newVector.addElement(new Option("\tTurn on debugging output.",
 					"D", 0, "-D"));
+	newVector.addElement(new Option("\tSet the number of threads used to evaluate\n"
+					+"\tthe objective function (default 1).",
+					"num-threads", 1, "-num-threads <num>"));
+	newVector.addElement(new Option("\tUse L-BFGS keeping the given number of correction\n"
+					+"\tpairs instead of dense BFGS (default 0: dense BFGS).",
+					"lbfgs", 1, "-lbfgs <num>"));
 	return newVector.elements();
     }
     
@@ -91,11 +106,29 @@ public class MDD extends MIClassifier implements OptionHandler {
      * -R ridge <br>
      * Set the ridge parameter for the log-likelihood.<p>
      *
+     * -num-threads num <br>
+     * Set the number of threads used to evaluate the objective function.<p>
+     *
+     * -lbfgs num <br>
+     * Use L-BFGS with the given number of correction pairs (0 for dense BFGS).<p>
+     *
      * @param options the list of options as an array of strings
      * @exception Exception if an option is not supported
      */
     public void setOptions(String[] options) throws Exception {
 	setDebug(Utils.getFlag('D', options));
+
+	String threadsString = Utils.getOption("num-threads", options);
+	if (threadsString.length() != 0) 
+	    setNumThreads(Integer.parseInt(threadsString));
+	else 
+	    setNumThreads(1);
+
+	String memoryString = Utils.getOption("lbfgs", options);
+	if (memoryString.length() != 0) 
+	    setLBFGSMemory(Integer.parseInt(memoryString));
+	else 
+	    setLBFGSMemory(0);
     }
     
     /**
@@ -105,13 +138,19 @@ public class MDD extends MIClassifier implements OptionHandler {
      */
     public String [] getOptions() {
 	
-	String [] options = new String [1];
+	String [] options = new String [5];
 	int current = 0;
 	
 	if (getDebug()) {
 	    options[current++] = "-D";
 	}
 	
+	options[current++] = "-num-threads";
+	options[current++] = ""+m_NumThreads;
+	
+	options[current++] = "-lbfgs";
+	options[current++] = ""+m_LBFGSMemory;
+	
 	while (current < options.length) 
 	    options[current++] = "";
 	return options;
@@ -135,24 +174,83 @@ public class MDD extends MIClassifier implements OptionHandler {
 	return m_Debug;
     }
 
-    private class OptEng extends Optimization{
+    /**
+     * Sets the number of threads used to evaluate the objective
+     * function and its gradient.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to evaluate the objective
+     * function and its gradient.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
+    }
+
+    /**
+     * Sets the number of correction pairs kept by L-BFGS.  L-BFGS needs
+     * memory and time per iteration linear in the number of parameters,
+     * where the default dense BFGS needs them quadratic.
+     *
+     * @param memory the number of pairs, 0 for dense BFGS
+     */
+    public void setLBFGSMemory(int memory) {
+	m_LBFGSMemory = memory;
+    }
+
+    /**
+     * Gets the number of correction pairs kept by L-BFGS.
+     *
+     * @return the number of pairs, 0 for dense BFGS
+     */
+    public int getLBFGSMemory() {
+	return m_LBFGSMemory;
+    }
+
+    private class OptEng extends LBFGSOptimization implements BagFunction {
+
+	/** The value exp(-distance) of each instance */
+	private PredictorCache m_Cache = new PredictorCache(m_Data.numInstances());
 	/** 
 	 * Evaluate objective function
 	 * @param x the current values of variables
 	 * @return the value of the objective function 
 	 */
 	protected double objectiveFunction(double[] x){
+	    return m_Evaluator.objective(this, x, m_Classes.length, m_Cache);
+	}
+
+	/** 
+	 * Evaluate the objective function's terms of the given bags
+	 * @param x the current values of variables
+	 * @param from the index of the first bag
+	 * @param to the index after the last bag
+	 * @return the sum of the bags' terms
+	 */
+	public double objective(double[] x, int from, int to){
+	    double[] pred = m_Cache.values();
 	    double nll = 0; // -LogLikelihood
-	    for(int i=0; i<m_Classes.length; i++){ // ith bag
-		int nI = m_Data[i][0].length; // numInstances in ith bag
+	    int nR = m_Data.numColumns();
+	    for(int i=from; i<to; i++){ // ith bag
+		int nI = m_Data.bagSize(i); // numInstances in ith bag
+		int start = m_Data.bagStart(i), end = m_Data.bagEnd(i);
 		double bag = 0;  // NLL of each bag
 		
-		for(int j=0; j<nI; j++){
+		for(int j=start; j<end; j++){
 		    double ins=0.0;
-		    for(int k=0; k<m_Data[i].length; k++)
-			ins += (m_Data[i][k][j]-x[k*2])*(m_Data[i][k][j]-x[k*2])/
-			    (x[k*2+1]*x[k*2+1]);
+		    for(int k=0; k<nR; k++){
+			double d = m_Data.column(k)[j];
+			ins += (d-x[k*2])*(d-x[k*2])/(x[k*2+1]*x[k*2+1]);
+		    }
 		    ins = Math.exp(-ins);
+		    pred[j] = ins;
 		    
 		    if(m_Classes[i] == 1)
 			bag += ins/(double)nI;
@@ -161,7 +259,7 @@ public class MDD extends MIClassifier implements OptionHandler {
 		}		
 		if(bag<=m_Zero) bag=m_Zero;
 		nll -= Math.log(bag);
-	    }		
+	    }
 	    
 	    return nll;
 	}
@@ -172,30 +270,40 @@ public class MDD extends MIClassifier implements OptionHandler {
 	 * @return the gradient vector 
 	 */
 	protected double[] evaluateGradient(double[] x){
-	    double[] grad = new double[x.length];
-	    for(int i=0; i<m_Classes.length; i++){ // ith bag
-		int nI = m_Data[i][0].length; // numInstances in ith bag 
+	    return m_Evaluator.gradient(this, x, m_Classes.length, m_Cache);
+	}
+
+	/** 
+	 * Add the gradients of the objective function's terms of the
+	 * given bags to grad
+	 * @param x the current values of variables
+	 * @param from the index of the first bag
+	 * @param to the index after the last bag
+	 * @param grad the gradient vector being computed
+	 */
+	public void addGradient(double[] x, int from, int to, double[] grad){
+	    double[] pred = m_Cache.values();
+	    int nR = m_Data.numColumns();
+	    for(int i=from; i<to; i++){ // ith bag
+		int start = m_Data.bagStart(i), end = m_Data.bagEnd(i);
 		
 		double denom=0.0;
 		double[] numrt = new double[x.length];
 		
-		for(int j=0; j<nI; j++){
-		    double exp=0.0;
-		    for(int k=0; k<m_Data[i].length; k++)
-			exp += (m_Data[i][k][j]-x[k*2])*(m_Data[i][k][j]-x[k*2])/
-			    (x[k*2+1]*x[k*2+1]);			
-		    exp = Math.exp(-exp);
+		for(int j=start; j<end; j++){
+		    double exp = pred[j];
 		    if(m_Classes[i]==1)
 			denom += exp;
 		    else
 			denom += (1.0-exp);		   
 		    
 		    // Instance-wise update
-		    for(int p=0; p<m_Data[i].length; p++){  // pth variable
-			numrt[2*p] += exp*2.0*(x[2*p]-m_Data[i][p][j])/
+		    for(int p=0; p<nR; p++){  // pth variable
+			double d = m_Data.column(p)[j];
+			numrt[2*p] += exp*2.0*(x[2*p]-d)/
 			    (x[2*p+1]*x[2*p+1]);
 			numrt[2*p+1] += 
-			    exp*(x[2*p]-m_Data[i][p][j])*(x[2*p]-m_Data[i][p][j])/
+			    exp*(x[2*p]-d)*(x[2*p]-d)/
 			    (x[2*p+1]*x[2*p+1]*x[2*p+1]);
 		    }			
 		}
@@ -205,7 +313,7 @@ public class MDD extends MIClassifier implements OptionHandler {
 		}
 		
 		// Bag-wise update 
-		for(int q=0; q<m_Data[i].length; q++){
+		for(int q=0; q<nR; q++){
 		    if(m_Classes[i]==1){
 			grad[2*q] += numrt[2*q]/denom;
 			grad[2*q+1] -= numrt[2*q+1]/denom;
@@ -215,8 +323,6 @@ public class MDD extends MIClassifier implements OptionHandler {
 		    }
 		}
 	    }
-	    	   
-	    return grad;
 	}
     }
     
@@ -254,7 +360,6 @@ public class MDD extends MIClassifier implements OptionHandler {
 	int nR = train.numAttributes() - 2;
 	int nC = train.numExemplars();
 	
-	m_Data  = new double [nC][nR][];              // Data values
 	m_Classes  = new int [nC];                    // Class values
 	m_Attributes = new Instances(train.exemplar(0).getInstances(),0);	
 	double sY1=0, sY0=0;                          // Number of classes
@@ -262,14 +367,13 @@ public class MDD extends MIClassifier implements OptionHandler {
 	if (m_Debug) {
 	    System.out.println("Extracting data...");
 	}
+	m_Data = new ColumnarExemplars(train);        // Data values
 	FastVector maxSzIdx=new FastVector();
 	int maxSz=0;
 	
-	for(int h=0; h<m_Data.length; h++){
-	    Exemplar current = train.exemplar(h);
-	    m_Classes[h] = (int)current.classValue();  // Class value starts from 0
-	    Instances currInsts = current.getInstances();
-	    int nI = currInsts.numInstances();
+	for(int h=0; h<nC; h++){
+	    m_Classes[h] = (int)m_Data.classValue(h);  // Class value starts from 0
+	    int nI = m_Data.bagSize(h);
 	    if(m_Classes[h]==1){
 		if(nI>maxSz){
 		    maxSz=nI;
@@ -279,17 +383,6 @@ public class MDD extends MIClassifier implements OptionHandler {
 		else if(nI == maxSz)
 		    maxSzIdx.addElement(new Integer(h));
 	    }
-	    int idx=0;
-	    for (int i = 0; i < train.numAttributes(); i++) {  		
-		if ((i==m_ClassIndex) || (i==m_IdIndex))
-		    continue;
-		
-		// initialize m_data[][][]		
-		m_Data[h][idx] = new double[nI];
-		for (int k=0; k<nI; k++)
-		    m_Data[h][idx][k] = currInsts.instance(k).value(i);
-		idx++;
-	    }	    
 	    
 	    // Class count	
 	    if (m_Classes[h] == 1)
@@ -316,35 +409,41 @@ public class MDD extends MIClassifier implements OptionHandler {
 	//   if(m_Classes[s] != 1)
 	//     continue;
 	    
-	// Largest positive exemplar
-	for(int s=0; s<maxSzIdx.size(); s++){
-	    int exIdx = ((Integer)maxSzIdx.elementAt(s)).intValue();
-	    for(int p=0; p<m_Data[exIdx][0].length; p++){
-		for (int q=0; q < nR;q++){
-		    x[2*q] = m_Data[exIdx][q][p];  // pick one instance
-		    x[2*q+1] = 1.0;
-		}
+	m_Evaluator = new ParallelBagEvaluator(m_NumThreads);
+	try{
+	    // Largest positive exemplar
+	    for(int s=0; s<maxSzIdx.size(); s++){
+		int exIdx = ((Integer)maxSzIdx.elementAt(s)).intValue();
+		for(int p=0; p<m_Data.bagSize(exIdx); p++){
+		    for (int q=0; q < nR;q++){
+			x[2*q] = m_Data.value(q, exIdx, p);  // pick one instance
+			x[2*q+1] = 1.0;
+		    }
 		
-		opt = new OptEng();	
-		//opt.setDebug(m_Debug);
-		tmp = opt.findArgmin(x, b);
-		while(tmp==null){
-		    tmp = opt.getVarbValues();
-		    if (m_Debug)
-			System.out.println("200 iterations finished, not enough!");
-		    tmp = opt.findArgmin(tmp, b);
-		}
-		nll = opt.getMinFunction();
+		    opt = new OptEng();	
+		    opt.setMemory(m_LBFGSMemory);
+		    //opt.setDebug(m_Debug);
+		    tmp = opt.findArgmin(x, b);
+		    while(tmp==null){
+			tmp = opt.getVarbValues();
+			if (m_Debug)
+			    System.out.println("200 iterations finished, not enough!");
+			tmp = opt.findArgmin(tmp, b);
+		    }
+		    nll = opt.getMinFunction();
 		
-		if(nll < bestnll){
-		    bestnll = nll;
-		    m_Par = tmp;
+		    if(nll < bestnll){
+			bestnll = nll;
+			m_Par = tmp;
+			if (m_Debug)
+			    System.out.println("!!!!!!!!!!!!!!!!Smaller NLL found: "+nll);
+		    }
 		    if (m_Debug)
-			System.out.println("!!!!!!!!!!!!!!!!Smaller NLL found: "+nll);
+			System.out.println(exIdx+":  -------------<Converged>--------------");
 		}
-		if (m_Debug)
-		    System.out.println(exIdx+":  -------------<Converged>--------------");
 	    }
+	}finally{
+	    m_Evaluator.shutdown();
 	}
     }		
     
@@ -390,6 +489,47 @@ public class MDD extends MIClassifier implements OptionHandler {
 	
 	return distribution;
     }
+
+    /**
+     * Computes the distributions for the given exemplars.  The exemplars 
+     * are packed into columns once, and the distances to the target point of all
+     * instances of a block are computed one attribute at a time.
+     *
+     * @param data the exemplars to be classified
+     * @param numThreads the number of threads
+     * @return the distribution of each exemplar
+     * @exception Exception if the distributions can't be computed successfully
+     */
+    public double[][] distributionsForExemplars(Exemplars data, int numThreads)
+	throws Exception {
+	
+	final ColumnarExemplars cols = new ColumnarExemplars(data);
+	return scoreBlocks(new BlockScorer() {
+		public void score(int block, int from, int to, double[][] dists){
+		    int first = cols.bagStart(from), 
+			last = (to > from) ? cols.bagEnd(to-1) : first;
+		    double[] exp = new double[last-first];
+		    for(int r=0; r<cols.numColumns(); r++){
+			double[] col = cols.column(r);
+			for(int j=first; j<last; j++)
+			    exp[j-first] += (m_Par[r*2]-col[j])*(m_Par[r*2]-col[j])/
+				((m_Par[r*2+1])*(m_Par[r*2+1]));
+		    }
+		    
+		    for(int i=from; i<to; i++){
+			int start = cols.bagStart(i), end = cols.bagEnd(i);
+			double nI = (double)(end-start);
+			double [] distribution = new double[2];
+			for(int j=start; j<end; j++){
+			    double e = Math.exp(-exp[j-first]);
+			    distribution[1] += e/nI;
+			    distribution[0] += (1.0-e)/nI;
+			}
+			dists[i] = distribution;
+		    }
+		}
+	    }, cols.numBags(), numThreads);
+    }
     
     /**
      * Gets a string describing the classifier.
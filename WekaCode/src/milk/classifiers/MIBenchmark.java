@@ -0,0 +1,319 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    MIBenchmark.java
+ *
+ */
+package milk.classifiers;
+
+import milk.core.*;
+import milk.data.*;
+import java.util.*;
+import java.lang.reflect.Method;
+import weka.core.*;
+
+/**
+ * Measures the training and prediction throughput of MI classifiers on
+ * synthetic bags generated with TLDData or MIDataPopulation. <p>
+ *
+ * For every classifier the model is first built and used for
+ * prediction a number of times to warm up the JVM.  Then the time of
+ * each buildClassifier() on the whole data, and of
+ * distributionForExemplar() on each bag, is measured.  The result is
+ * reported as operations per second.  Where the JVM can report it, the
+ * number of bytes the calling thread allocates per operation is also
+ * shown.  Work done in other threads (see -num-threads) is not counted.
+ * <p>
+ *
+ * Valid options are:<p>
+ *
+ * -G tld|population <br>
+ * The data generator (default tld).<p>
+ *
+ * -n num <br>
+ * The number of bags (default 100).<p>
+ *
+ * -z num <br>
+ * The number of instances in each bag (default 10).<p>
+ *
+ * -a num <br>
+ * The number of attributes (default 5).<p>
+ *
+ * -s seed <br>
+ * The random number seed of the generator (default 1).<p>
+ *
+ * -w num <br>
+ * The number of warm-up iterations (default 2).<p>
+ *
+ * -i num <br>
+ * The number of measured iterations (default 5).<p>
+ *
+ * -W classname[,classname...] <br>
+ * The classifiers to benchmark (default all in DEFAULT_CLASSIFIERS),
+ * all with their default options.<p>
+ *
+ * @version $Revision: 1.0 $
+ */
+public class MIBenchmark {
+
+    /** The classifiers benchmarked by default */
+    public static final String[] DEFAULT_CLASSIFIERS = {
+	"milk.classifiers.DD",
+	"milk.classifiers.MDD",
+	"milk.classifiers.MILR",
+	"milk.classifiers.TLD",
+	"milk.classifiers.TLDSimple",
+	"milk.classifiers.MINND",
+	"milk.classifiers.MIBoost",
+	"milk.classifiers.MIWrapper",
+	"milk.classifiers.SimpleMI",
+	"milk.classifiers.MIRBFNetwork"
+    };
+
+    /** The thread management bean, null if not available */
+    private static Object m_ThreadBean = null;
+
+    /** The method returning the bytes allocated by a thread, null if
+     *  not available */
+    private static Method m_AllocatedBytes = null;
+
+    static {
+	try{
+	    Class factory = Class.forName("java.lang.management.ManagementFactory");
+	    Object bean = factory.getMethod("getThreadMXBean", new Class[0])
+		.invoke(null, new Object[0]);
+	    Class beanClass = Class.forName("com.sun.management.ThreadMXBean");
+	    if(beanClass.isInstance(bean)){
+		m_AllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes",
+						       new Class[]{Long.TYPE});
+		m_ThreadBean = bean;
+	    }
+	}catch(Throwable e){
+	    m_AllocatedBytes = null;
+	    m_ThreadBean = null;
+	}
+    }
+
+    /**
+     * Generates the benchmark data.
+     *
+     * @param generator "tld" or "population"
+     * @param numBags the number of bags
+     * @param bagSize the number of instances in each bag
+     * @param numAtts the number of attributes
+     * @param seed the random number seed
+     * @return the generated exemplars
+     * @exception Exception if the data cannot be generated
+     */
+    public static Exemplars generateData(String generator, int numBags,
+					 int bagSize, int numAtts, long seed) 
+	throws Exception {
+	Instances data;
+	if(generator.equals("population")){
+	    double[] beta = new double[numAtts];
+	    for(int i=0; i<numAtts; i++)
+		beta[i] = 1.0;
+	    data = new MIDataPopulation().generateBags("benchmark", numBags,
+							bagSize, beta, 
+							new Random(seed));
+	}
+	else if(generator.equals("tld")){
+	    double[][] a = new double[2][numAtts], b = new double[2][numAtts], 
+		w = new double[2][numAtts], m = new double[2][numAtts];
+	    for(int i=0; i<2; i++){
+		for(int j=0; j<numAtts; j++){
+		    a[i][j] = 1.0;
+		    b[i][j] = 3.0;
+		    w[i][j] = 1.0;
+		    m[i][j] = (i == 0) ? -1.0 : 1.0;
+		}
+	    }
+	    data = TLDData.generateBags("benchmark", numBags/2, bagSize,
+					a, b, w, m, new RandomVariates(seed));
+	}
+	else
+	    throw new Exception("Unknown generator: "+generator);
+	
+	return new Exemplars(data, 0);
+    }
+
+    /**
+     * Benchmarks one classifier.
+     *
+     * @param template the classifier, copied before each build
+     * @param data the data
+     * @param warmups the number of warm-up iterations
+     * @param iterations the number of measured iterations
+     * @return the build and predict throughput in operations per
+     * second, followed by the bytes allocated per build and per
+     * prediction (-1 if not available)
+     * @exception Exception if the classifier fails
+     */
+    public static double[] benchmark(MIClassifier template, Exemplars data,
+				     int warmups, int iterations) 
+	throws Exception {
+	MIClassifier model = null;
+	for(int i=0; i<warmups; i++){
+	    model = MIClassifier.makeCopies(template, 1)[0];
+	    model.buildClassifier(data);
+	    predictAll(model, data);
+	}
+	
+	long buildTime = 0, buildBytes = 0, predictTime = 0, predictBytes = 0;
+	for(int i=0; i<iterations; i++){
+	    model = MIClassifier.makeCopies(template, 1)[0];
+	    long bytes = allocatedBytes(), time = System.nanoTime();
+	    model.buildClassifier(data);
+	    buildTime += System.nanoTime() - time;
+	    buildBytes += allocatedBytes() - bytes;
+	    
+	    bytes = allocatedBytes();
+	    time = System.nanoTime();
+	    predictAll(model, data);
+	    predictTime += System.nanoTime() - time;
+	    predictBytes += allocatedBytes() - bytes;
+	}
+	
+	double numPredictions = (double)iterations*data.numExemplars();
+	double[] result = new double[4];
+	result[0] = iterations/(buildTime/1.0e9);
+	result[1] = numPredictions/(predictTime/1.0e9);
+	if(m_AllocatedBytes != null){
+	    result[2] = buildBytes/(double)iterations;
+	    result[3] = predictBytes/numPredictions;
+	}
+	else
+	    result[2] = result[3] = -1;
+	return result;
+    }
+
+    /**
+     * Computes the distribution of every exemplar.
+     *
+     * @param model the classifier
+     * @param data the exemplars
+     * @exception Exception if the distribution can't be computed
+     */
+    private static void predictAll(MIClassifier model, Exemplars data) 
+	throws Exception {
+	for(int j=0; j<data.numExemplars(); j++)
+	    model.distributionForExemplar(data.exemplar(j));
+    }
+
+    /**
+     * Returns the number of bytes allocated by the calling thread so
+     * far, or 0 if the JVM cannot report it.
+     *
+     * @return the number of bytes
+     */
+    private static long allocatedBytes() {
+	if(m_AllocatedBytes == null)
+	    return 0;
+	try{
+	    Object bytes = m_AllocatedBytes.invoke(m_ThreadBean, new Object[]{
+		new Long(Thread.currentThread().getId())});
+	    return ((Long)bytes).longValue();
+	}catch(Exception e){
+	    return 0;
+	}
+    }
+
+    /**
+     * Runs the benchmark with the given options.
+     *
+     * @param options the options (see the class description)
+     * @return a table of the results
+     * @exception Exception if an option is not supported or a classifier
+     * fails
+     */
+    public static String benchmark(String[] options) throws Exception {
+	String generator = Utils.getOption('G', options);
+	if(generator.length() == 0)
+	    generator = "tld";
+	String numString = Utils.getOption('n', options);
+	int numBags = (numString.length() != 0) ? Integer.parseInt(numString) : 100;
+	numString = Utils.getOption('z', options);
+	int bagSize = (numString.length() != 0) ? Integer.parseInt(numString) : 10;
+	numString = Utils.getOption('a', options);
+	int numAtts = (numString.length() != 0) ? Integer.parseInt(numString) : 5;
+	numString = Utils.getOption('s', options);
+	long seed = (numString.length() != 0) ? Long.parseLong(numString) : 1;
+	numString = Utils.getOption('w', options);
+	int warmups = (numString.length() != 0) ? Integer.parseInt(numString) : 2;
+	numString = Utils.getOption('i', options);
+	int iterations = (numString.length() != 0) ? Integer.parseInt(numString) : 5;
+	if(iterations < 1)
+	    throw new Exception("At least one measured iteration is needed.");
+	
+	String[] names = DEFAULT_CLASSIFIERS;
+	String classifierString = Utils.getOption('W', options);
+	if(classifierString.length() != 0){
+	    StringTokenizer st = new StringTokenizer(classifierString, ",");
+	    names = new String[st.countTokens()];
+	    for(int i=0; i<names.length; i++)
+		names[i] = st.nextToken().trim();
+	}
+	Utils.checkForRemainingOptions(options);
+	
+	Exemplars data = generateData(generator, numBags, bagSize, numAtts, seed);
+	StringBuffer text = new StringBuffer();
+	text.append("Data: "+generator+", "+data.numExemplars()+" bags of "+
+		    bagSize+" instances, "+numAtts+" attributes\n");
+	text.append("Iterations: "+warmups+" warm-up, "+iterations+" measured\n\n");
+	text.append(pad("Classifier", 30)+pad("build/s", 12)+pad("B/build", 14)+
+		    pad("predict/s", 12)+pad("B/predict", 14)+"\n");
+	for(int i=0; i<names.length; i++){
+	    MIClassifier classifier = MIClassifier.forName(names[i], null);
+	    double[] result = benchmark(classifier, data, warmups, iterations);
+	    text.append(pad(names[i], 30)+
+			pad(Utils.doubleToString(result[0], 3), 12)+
+			pad((result[2] < 0) ? "?" : Utils.doubleToString(result[2], 0), 14)+
+			pad(Utils.doubleToString(result[1], 3), 12)+
+			pad((result[3] < 0) ? "?" : Utils.doubleToString(result[3], 0), 14)+
+			"\n");
+	}
+	return text.toString();
+    }
+
+    /**
+     * Pads a string with blanks on the right.
+     *
+     * @param s the string
+     * @param width the minimum width
+     * @return the padded string
+     */
+    private static String pad(String s, int width) {
+	StringBuffer text = new StringBuffer(s);
+	while(text.length() < width)
+	    text.append(' ');
+	return text.append(' ').toString();
+    }
+
+    /**
+     * Runs the benchmark from the command line.
+     *
+     * @param args the options (see the class description)
+     */
+    public static void main(String [] args) {
+	try {
+	    System.out.println(benchmark(args));
+	} catch (Exception ex) {
+	    ex.printStackTrace();
+	    System.err.println(ex.getMessage());
+	}
+    }
+}
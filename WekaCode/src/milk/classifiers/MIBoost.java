@@ -24,6 +24,7 @@ import milk.core.*;
 import weka.classifiers.trees.*;
 import weka.classifiers.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import weka.core.*;
 import weka.filters.*;
@@ -73,6 +74,9 @@ public class MIBoost extends MIClassifier
 
     protected int m_DiscretizeBin = 0;
     protected Discretize m_Filter = null;
+
+    /** The number of threads used to evaluate the bags in each iteration */
+    protected int m_NumThreads = 1;
     
     /**
      * Returns an enumeration describing the available options
@@ -80,7 +84,7 @@ public class MIBoost extends MIClassifier
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
-	Vector newVector = new Vector(6);
+	Vector newVector = new Vector(7);
 	newVector.addElement(new Option("\tTurn on debugging output.",
 					"D", 0, "-D"));
 	
@@ -92,6 +96,10 @@ public class MIBoost extends MIClassifier
 					+"\t(default 10)",
 					"R", 1, "-R <num>"));	
 	
+	newVector.addElement(new Option("\tThe number of threads used to evaluate\n"
+					+"\tthe bags in each iteration (default 1)",
+					"num-threads", 1, "-num-threads <num>"));	
+	
 	newVector.addElement(new Option("\tFull name of classifier to boost.\n"
 					+"\teg: weka.classifiers.bayes.NaiveBayes",
 					"W", 1, "-W <class name>"));
@@ -115,6 +123,9 @@ public class MIBoost extends MIClassifier
      * -D <br>
      * Turn on debugging output.<p>
      *
+     * -num-threads num <br>
+     * Set the number of threads used to evaluate the bags in each
+     * iteration.<p>
      *
      * @param options the list of options as an array of strings
      * @exception Exception if an option is not supported
@@ -136,6 +147,13 @@ public class MIBoost extends MIClassifier
 	    setMaxIterations(10);
 	}
 	
+	String threads = Utils.getOption("num-threads", options);
+	if (threads.length() != 0) {
+	    setNumThreads(Integer.parseInt(threads));
+	} else {
+	    setNumThreads(1);
+	}
+	
 	String classifierName = Utils.getOption('W', options);
 	if (classifierName.length() != 0) 
 	    m_Classifier=Classifier.forName(classifierName,
@@ -160,7 +178,7 @@ public class MIBoost extends MIClassifier
 	    classifierOptions = ((OptionHandler)m_Classifier).getOptions();
 	}
 	
-	String [] options = new String [classifierOptions.length + 11];
+	String [] options = new String [classifierOptions.length + 13];
 	int current = 0;
 	if (getDebug()) {
 	    options[current++] = "-D";
@@ -168,6 +186,7 @@ public class MIBoost extends MIClassifier
   
 	options[current++] = "-R"; options[current++] = "" + getMaxIterations();
 	options[current++] = "-B"; options[current++] = "" + getDiscretizeBin();
+	options[current++] = "-num-threads"; options[current++] = "" + getNumThreads();
 	
 	if (m_Classifier != null) {
 	    options[current++] = "-W";
@@ -258,6 +277,26 @@ public class MIBoost extends MIClassifier
     public int getDiscretizeBin() {	
 	return m_DiscretizeBin;
     }
+
+    /**
+     * Sets the number of threads used to evaluate the bags in each
+     * iteration.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to evaluate the bags in each
+     * iteration.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
+    }
     
     private class OptEng extends Optimization{
 	private double[] weights, errs;
@@ -276,6 +315,7 @@ public class MIBoost extends MIClassifier
 	 * @return the value of the objective function 
 	 */
 	protected double objectiveFunction(double[] x) throws Exception{
+	    Diagnostics.OBJECTIVE_EVALUATIONS.increment();
 	    double obj=0;
 	    for(int i=0; i<weights.length; i++){
 		obj += weights[i]*Math.exp(x[0]*(2.0*errs[i]-1.0));
@@ -292,6 +332,7 @@ public class MIBoost extends MIClassifier
 	 * @return the gradient vector 
 	 */
 	protected double[] evaluateGradient(double[] x)  throws Exception{
+	    Diagnostics.GRADIENT_EVALUATIONS.increment();
 	    double[] grad = new double[1];
 	    for(int i=0; i<weights.length; i++){
 		grad[0] += weights[i]*(2.0*errs[i]-1.0)*Math.exp(x[0]*(2.0*errs[i]-1.0));
@@ -311,8 +352,30 @@ public class MIBoost extends MIClassifier
      * @exception Exception if the classifier could not be built successfully
      */
     public void buildClassifier(Exemplars exps) throws Exception {
+	// One pool for the parallel steps of all iterations
+	ExecutorService pool = (m_NumThreads > 1) ?
+	    Executors.newFixedThreadPool(m_NumThreads) : null;
+	try{
+	    boost(exps, pool);
+	}finally{
+	    if(pool != null)
+		pool.shutdownNow();
+	}
+    }
+
+    /**
+     * Runs the boosting iterations.
+     *
+     * @param exps the training data
+     * @param pool the threads used for the prediction and reweighting 
+     * of the bags, null if only one thread is used
+     * @exception Exception if the classifier could not be built successfully
+     */
+    private void boost(Exemplars exps, ExecutorService pool) 
+	throws Exception {
 	
-	Exemplars train = new Exemplars(exps);
+	// The exemplars are only read; their weights are kept in bagWeights
+	final Exemplars train = exps;
 
 	if (train.classAttribute().type() != Attribute.NOMINAL) {
 	    throw new Exception("Class attribute must be nominal.");
@@ -347,13 +410,19 @@ public class MIBoost extends MIClassifier
 	data.deleteAttributeAt(m_IdIndex);// ID attribute useless	
 	Instances dataset = new Instances(data,0);
 	
-	// Initialize weights
+	// The instances of the ith bag are data.instance(bagStart[i]) to 
+	// data.instance(bagStart[i+1]-1)
+	final int[] bagStart = new int[(int)N+1];
 	for(int i=0; i<N; i++)
-	    sumNi += train.exemplar(i).getInstances().numInstances();
+	    bagStart[i+1] = bagStart[i] + 
+		train.exemplar(i).getInstances().numInstances();
+	sumNi = bagStart[(int)N];
 	
+	// Initialize weights
+	final double[] bagWeights = new double[(int)N];
 	for(int i=0; i<N; i++){
 	    Exemplar exi = train.exemplar(i);
-	    exi.setWeight(sumNi/N);
+	    bagWeights[i] = sumNi/N;
 	    Instances insts = exi.getInstances();
 	    double ni = (double)insts.numInstances();    
 	    for(int j=0; j<ni; j++){	
@@ -362,7 +431,7 @@ public class MIBoost extends MIClassifier
 		
 		ins.deleteAttributeAt(m_IdIndex);
 		ins.setDataset(dataset);
-		ins.setWeight(exi.weight()/ni);
+		ins.setWeight(bagWeights[i]/ni);
 		data.add(ins);
 	    }
 	}
@@ -376,7 +445,6 @@ public class MIBoost extends MIClassifier
 	}
 	
 	// Main algorithm
-	int dataIdx;
     iterations:
 	for(int m=0; m < m_MaxIterations; m++){
 	    if(m_Debug)
@@ -384,23 +452,35 @@ public class MIBoost extends MIClassifier
 	    // Build a model
 	    m_Models[m].buildClassifier(data);
 	    
-	    // Prediction of each bag
-	    double[] err=new double[(int)N], weights=new double[(int)N];
+	    // Prediction of each bag, each block of bags with its own 
+	    // copy of the model
+	    final double[] err=new double[(int)N];
+	    double[] weights=(double[])bagWeights.clone();
+	    int numBlocks = numBlocks((int)N, m_NumThreads);
+	    final Classifier[] models = (numBlocks > 1) ? 
+		Classifier.makeCopies(m_Models[m], numBlocks) :
+		new Classifier[] {m_Models[m]};
+	    final Instances predData = data;
+	    runBlocks(new RangeTask() {
+		    public void run(int block, int from, int to) throws Exception {
+			for(int n=from; n<to; n++){
+			    double cls = train.exemplar(n).classValue();
+			    // Prediction of each instance and the predicted class 
+			    // distribution of the bag		
+			    double nn = (double)(bagStart[n+1]-bagStart[n]);
+			    for(int p=bagStart[n]; p<bagStart[n+1]; p++){
+				Instance testIns = predData.instance(p);
+				if((int)models[block].classifyInstance(testIns) 
+				   != (int)cls) // Weighted instance-wise 0-1 errors
+				    err[n] ++;		       		       
+			    }
+			    err[n] /= nn;
+			}
+		    }
+		}, (int)N, m_NumThreads, pool);
+	    
 	    boolean perfect = true, tooWrong=true;
-	    dataIdx = 0;
 	    for(int n=0; n<N; n++){
-		Exemplar exn = train.exemplar(n);
-		// Prediction of each instance and the predicted class distribution
-		// of the bag		
-		double nn = (double)exn.getInstances().numInstances();
-		for(int p=0; p<nn; p++){
-		    Instance testIns = data.instance(dataIdx++);			
-		    if((int)m_Models[m].classifyInstance(testIns) 
-		       != (int)exn.classValue()) // Weighted instance-wise 0-1 errors
-			err[n] ++;		       		       
-		}
-		weights[n] = exn.weight();
-		err[n] /= nn;
 		if(err[n] > 0.5)
 		    perfect = false;
 		if(err[n] < 0.5)
@@ -458,36 +538,29 @@ public class MIBoost extends MIClassifier
 	    }
 	    
 	    // Update weights of data and class label of wfData
-	    dataIdx=0;
 	    double totWeights=0;
 	    for(int r=0; r<N; r++){		
-		Exemplar exr = train.exemplar(r);
-		exr.setWeight(weights[r]*Math.exp(m_Beta[m]*(2.0*err[r]-1.0)));
-		totWeights += exr.weight();
+		bagWeights[r] = weights[r]*Math.exp(m_Beta[m]*(2.0*err[r]-1.0));
+		totWeights += bagWeights[r];
 	    }
 	    
 	    if(m_Debug)
 		System.err.println("Total weights = "+totWeights);
 
-	    for(int r=0; r<N; r++){		
-		Exemplar exr = train.exemplar(r);
-		double num = (double)exr.getInstances().numInstances();
-		exr.setWeight(sumNi*exr.weight()/totWeights);
-		//if(m_Debug)
-		//    System.err.print("\nExemplar "+r+"="+exr.weight()+": \t");
-		for(int s=0; s<num; s++){
-		    Instance inss = data.instance(dataIdx);	
-		    inss.setWeight(exr.weight()/num);		   
-		    //    if(m_Debug)
-		    //  System.err.print("instance "+s+"="+inss.weight()+
-		    //			 "|ew*iw*sumNi="+data.instance(dataIdx).weight()+"\t");
-		    if(Double.isNaN(inss.weight()))
-			throw new Exception("instance "+s+" in bag "+r+" has weight NaN!"); 
-		    dataIdx++;
-		}
-		//if(m_Debug)
-		//    System.err.println();
-	    }	       
+	    final double scale = sumNi/totWeights;
+	    runBlocks(new RangeTask() {
+		    public void run(int block, int from, int to) throws Exception {
+			for(int r=from; r<to; r++){		
+			    double num = (double)(bagStart[r+1]-bagStart[r]);
+			    bagWeights[r] = scale*bagWeights[r];
+			    double w = bagWeights[r]/num;
+			    if(Double.isNaN(w))
+				throw new Exception("instances in bag "+r+" have weight NaN!"); 
+			    for(int s=bagStart[r]; s<bagStart[r+1]; s++)
+				predData.instance(s).setWeight(w);
+			}
+		    }
+		}, (int)N, m_NumThreads, pool);
 	}
     }		
     
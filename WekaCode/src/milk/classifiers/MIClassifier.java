@@ -24,6 +24,7 @@ package milk.classifiers;
 import milk.core.*;
 
 import java.io.Serializable;
+import java.util.concurrent.*;
 import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -42,6 +43,42 @@ import weka.classifiers.*;
  */
 public abstract class MIClassifier implements Cloneable, Serializable {
   
+  /**
+   * Interface to the scoring of a contiguous block of exemplars, used
+   * by distributionsForExemplars().
+   */
+  protected interface BlockScorer {
+
+    /**
+     * Computes the distributions of the exemplars from..to-1.
+     *
+     * @param block the block's index
+     * @param from the index of the first exemplar
+     * @param to the index after the last exemplar
+     * @param dists the array the distributions are stored in
+     * @exception Exception if a distribution could not be computed
+     */
+    void score(int block, int from, int to, double[][] dists) 
+      throws Exception;
+  }
+
+  /**
+   * Interface to the work done on a contiguous block of a range of
+   * indices, used by runBlocks().
+   */
+  protected interface RangeTask {
+
+    /**
+     * Does the work for the indices from..to-1.
+     *
+     * @param block the block's index
+     * @param from the first index
+     * @param to the index after the last one
+     * @exception Exception if the work could not be done
+     */
+    void run(int block, int from, int to) throws Exception;
+  }
+
   /**
    * Generates a classifier. Must initialize all fields of the classifier
    * that are not being set via options (ie. multiple calls of buildClassifier
@@ -123,6 +160,167 @@ public abstract class MIClassifier implements Cloneable, Serializable {
     }
   }
   
+  /**
+   * Predicts the class memberships for all the given exemplars.
+   *
+   * @param data the exemplars to be classified
+   * @return the distribution of each exemplar, as returned by
+   * distributionForExemplar()
+   * @exception Exception if a distribution could not be computed
+   * successfully
+   */
+  public double[][] distributionsForExemplars(Exemplars data) 
+    throws Exception {
+    return distributionsForExemplars(data, 1);
+  }
+
+  /**
+   * Predicts the class memberships for all the given exemplars, using
+   * the given number of threads.  The exemplars are split into one
+   * contiguous block per thread.  By default each block is scored by
+   * its own copy of the classifier (see makeCopies()), so that 
+   * classifiers need not be thread-safe; subclasses whose predictions 
+   * only read the model override this to share it and to set up the 
+   * scoring once per block.
+   *
+   * @param data the exemplars to be classified
+   * @param numThreads the number of threads, 1 for scoring in the
+   * calling thread
+   * @return the distribution of each exemplar, as returned by
+   * distributionForExemplar()
+   * @exception Exception if a distribution could not be computed
+   * successfully
+   */
+  public double[][] distributionsForExemplars(final Exemplars data, 
+					      int numThreads) 
+    throws Exception {
+
+    int numBlocks = numBlocks(data.numExemplars(), numThreads);
+    final MIClassifier[] models = (numBlocks > 1) ? 
+      makeCopies(this, numBlocks) : new MIClassifier[] {this};
+    return scoreBlocks(new BlockScorer() {
+	public void score(int block, int from, int to, double[][] dists)
+	  throws Exception {
+	  for (int i = from; i < to; i++) {
+	    dists[i] = models[block].distributionForExemplar(data.exemplar(i));
+	  }
+	}
+      }, data.numExemplars(), numThreads);
+  }
+
+  /**
+   * Returns the number of blocks a range of indices is split into
+   * by runBlocks() and scoreBlocks().
+   *
+   * @param size the number of indices
+   * @param numThreads the number of threads
+   * @return the number of blocks
+   */
+  protected static int numBlocks(int size, int numThreads) {
+    return Math.max(1, Math.min(numThreads, size));
+  }
+
+  /**
+   * Splits the exemplars into numBlocks() contiguous blocks and scores 
+   * them with one thread each, or in the calling thread if there is 
+   * only one block.
+   *
+   * @param scorer the scoring of one block
+   * @param numExemplars the number of exemplars
+   * @param numThreads the number of threads
+   * @return the distribution of each exemplar
+   * @exception Exception if a block could not be scored
+   */
+  protected static double[][] scoreBlocks(final BlockScorer scorer,
+					  int numExemplars, int numThreads) 
+    throws Exception {
+
+    final double[][] dists = new double[numExemplars][];
+    runBlocks(new RangeTask() {
+	public void run(int block, int from, int to) throws Exception {
+	  scorer.score(block, from, to, dists);
+	}
+      }, numExemplars, numThreads);
+    return dists;
+  }
+
+  /**
+   * Splits the indices 0..size-1 into numBlocks() contiguous blocks and 
+   * runs the task on them with one thread each, or in the calling 
+   * thread if there is only one block.
+   *
+   * @param task the work done on one block
+   * @param size the number of indices
+   * @param numThreads the number of threads
+   * @exception Exception if the task failed on a block
+   */
+  protected static void runBlocks(RangeTask task, int size, int numThreads)
+    throws Exception {
+
+    runBlocks(task, size, numThreads, null);
+  }
+
+  /**
+   * Splits the indices 0..size-1 into numBlocks() contiguous blocks and 
+   * runs the task on them in the given pool, or in the calling thread 
+   * if there is only one block.  A pool reused by repeated calls saves 
+   * starting new threads each time.
+   *
+   * @param task the work done on one block
+   * @param size the number of indices
+   * @param numThreads the number of threads
+   * @param pool the pool, with at least numThreads threads, which is 
+   * left running; or null to use a pool of its own
+   * @exception Exception if the task failed on a block
+   */
+  protected static void runBlocks(final RangeTask task, int size, 
+				  int numThreads, ExecutorService pool)
+    throws Exception {
+
+    int numBlocks = numBlocks(size, numThreads);
+    if (numBlocks == 1) {
+      task.run(0, 0, size);
+      return;
+    }
+
+    ExecutorService threads = (pool != null) ? pool :
+      Executors.newFixedThreadPool(numBlocks);
+    Future[] results = new Future[numBlocks];
+    try {
+      for (int b = 0; b < numBlocks; b++) {
+	final int block = b, 
+	  from = (int)((long)size * b / numBlocks),
+	  to = (int)((long)size * (b + 1) / numBlocks);
+	results[b] = threads.submit(new Callable() {
+	    public Object call() throws Exception {
+	      task.run(block, from, to);
+	      return null;
+	    }
+	  });
+      }
+      for (int b = 0; b < numBlocks; b++) {
+	try {
+	  results[b].get();
+	} catch (ExecutionException e) {
+	  if (e.getCause() instanceof Exception) {
+	    throw (Exception)e.getCause();
+	  }
+	  throw new Exception(e.getCause().toString());
+	}
+      }
+    } finally {
+      if (pool == null) {
+	threads.shutdownNow();
+      } else {
+	for (int b = 0; b < numBlocks; b++) {
+	  if (results[b] != null) {
+	    results[b].cancel(true);
+	  }
+	}
+      }
+    }
+  }
+
   /**
    * Creates a new instance of a classifier given it's class name and
    * (optional) arguments to pass to it's setOptions method. If the
@@ -24,6 +24,7 @@ package milk.classifiers;
 import milk.core.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import weka.core.*;
 import weka.estimators.*;
@@ -43,6 +44,9 @@ import java.util.zip.GZIPOutputStream;
  * Name of the file with the test data. If missing a cross-validation 
  * is performed. <p>
  *
+ * Files whose names end with ".mib" are read in the binary format of
+ * BinaryExemplars, which holds its own class and ID indices. <p>
+ *
  * -c index <br>
  * Index of the class attribute (1, 2, ...; default: last). <p>
  * 
@@ -273,8 +277,8 @@ public class MIEvaluation implements Summarizable {
 				   Exemplars data, int numFolds) 
 	throws Exception {
 	
-	// Make a copy of the data we can reorder
-	data = new Exemplars(data);
+	// Make a view of the data we can reorder
+	data = data.view();
 	data.stratify(numFolds);
 	
 	// Do the folds
@@ -288,6 +292,83 @@ public class MIEvaluation implements Summarizable {
 	m_NumFolds = numFolds;
     }
     
+    /**
+     * Performs a (stratified if class is nominal) cross-validation 
+     * for a classifier on a set of exemplars, building and evaluating
+     * several folds at the same time.  Each fold uses its own copy of
+     * the classifier, so the given classifier is left unchanged.  The
+     * predictions of the folds are added to the statistics in fold
+     * order, so the result is the same as that of the sequential
+     * cross-validation.
+     *
+     * @param classifier the classifier with any options set.
+     * @param data the data on which the cross-validation is to be 
+     * performed 
+     * @param numFolds the number of folds for the cross-validation
+     * @param numThreads the number of folds processed concurrently, 
+     * 1 for the sequential cross-validation
+     * @exception Exception if a classifier could not be generated 
+     * successfully or the class is not defined
+     */
+    public void crossValidateModel(MIClassifier classifier,
+				   Exemplars data, int numFolds,
+				   int numThreads) 
+	throws Exception {
+	
+	if ((numThreads <= 1) || (numFolds <= 1)) {
+	    crossValidateModel(classifier, data, numFolds);
+	    return;
+	}
+	
+	// Make a view of the data we can reorder
+	final Exemplars cvData = data.view();
+	cvData.stratify(numFolds);
+	final int folds = numFolds;
+	final MIClassifier[] copies = MIClassifier.makeCopies(classifier, numFolds);
+	
+	ExecutorService pool = 
+	    Executors.newFixedThreadPool(Math.min(numThreads, numFolds));
+	try {
+	    // Build and test the folds
+	    Future[] results = new Future[numFolds];
+	    for (int i = 0; i < numFolds; i++) {
+		final int fold = i;
+		results[i] = pool.submit(new Callable() {
+			public Object call() throws Exception {
+			    copies[fold].buildClassifier(cvData.trainCV(folds, fold));
+			    Exemplars test = cvData.testCV(folds, fold);
+			    double[][] dists = new double[test.numExemplars()][];
+			    for (int j = 0; j < dists.length; j++) {
+				Exemplar classMissing = new Exemplar(test.exemplar(j));
+				dists[j] = copies[fold].distributionForExemplar(classMissing);
+			    }
+			    copies[fold] = null; // Save memory
+			    return dists;
+			}
+		    });
+	    }
+	    
+	    // Add up the folds in order
+	    for (int i = 0; i < numFolds; i++) {
+		double[][] dists;
+		try {
+		    dists = (double[][])results[i].get();
+		} catch (ExecutionException e) {
+		    if (e.getCause() instanceof Exception)
+			throw (Exception)e.getCause();
+		    throw (Error)e.getCause();
+		}
+		setPriors(cvData.trainCV(numFolds, i));
+		Exemplars test = cvData.testCV(numFolds, i);
+		for (int j = 0; j < dists.length; j++)
+		    updateStatsForClassifier(dists[j], test.exemplar(j));
+	    }
+	} finally {
+	    pool.shutdownNow();
+	}
+	m_NumFolds = numFolds;
+    }
+    
     /**
      * Performs a (stratified if class is nominal) cross-validation 
      * for a classifier on a set of exemplars.
@@ -323,6 +404,11 @@ public class MIEvaluation implements Summarizable {
      * Name of the file with the test data. If missing a cross-validation 
      * is performed. <p>
      *
+     * -stream-test <br>
+     * Reads the test data one exemplar at a time instead of all at once.
+     * The instances of each exemplar must be contiguous in the file,
+     * unless it is a binary (.mib) file. <p>
+     *
      * -c index <br>
      * Index of the class attribute (1, 2, ...; default: last). <p>
      * 
@@ -332,6 +418,9 @@ public class MIEvaluation implements Summarizable {
      * -x number <br>
      * The number of folds for the cross-validation (default: 10). <p>
      *
+     * -fold-threads number <br>
+     * The number of folds built and evaluated concurrently (default: 1). <p>
+     *
      * -s seed <br>
      * Random number seed for the cross-validation (default: 1). <p>
      *
@@ -415,6 +504,11 @@ public class MIEvaluation implements Summarizable {
      * Name of the file with the test data. If missing a cross-validation 
      * is performed. <p>
      *
+     * -stream-test <br>
+     * Reads the test data one exemplar at a time instead of all at once.
+     * The instances of each exemplar must be contiguous in the file,
+     * unless it is a binary (.mib) file. <p>
+     *
      * -c index <br>
      * Index of the class attribute (1, 2, ...; default: last). <p>
      * 
@@ -424,6 +518,9 @@ public class MIEvaluation implements Summarizable {
      * -x number <br>
      * The number of folds for the cross-validation (default: 10). <p>
      *
+     * -fold-threads number <br>
+     * The number of folds built and evaluated concurrently (default: 1). <p>
+     *
      * -s seed <br>
      * Random number seed for the cross-validation (default: 1). <p>
      *
@@ -458,16 +555,19 @@ public class MIEvaluation implements Summarizable {
 				       String [] options) throws Exception {
 	
 	Exemplars train = null, tempTrain, test = null, template = null;
-	int seed = 1, folds = 10, classIndex = -1, idIndex = -1;
+	int seed = 1, folds = 10, classIndex = -1, idIndex = -1, foldThreads = 1;
 	String trainFileName, testFileName, sourceClass, 
 	    classIndexString, idIndexString, seedString, foldsString, 
 	    objectInputFileName, objectOutputFileName, attributeRangeString;
 	boolean IRstatistics = false, noOutput = false, leaveOneOut = false,
+	    streamTest = false,
 	    printClassifications = false, trainStatistics = true,
 	    printMargins = false, printComplexityStatistics = false,
 	    classStatistics = true, printSource = false, printGraph = false;
 	StringBuffer text = new StringBuffer();
 	BufferedReader trainReader = null, testReader = null;
+	ExemplarReader testExemplars = null;
+	BinaryExemplars binaryTest = null;
 	ObjectInputStream objectInputStream = null;
 	Random random = null;
 	CostMatrix costMatrix = null;
@@ -475,8 +575,6 @@ public class MIEvaluation implements Summarizable {
 	Range attributesToOutput = null;
 	long trainTimeStart = 0, trainTimeElapsed = 0,
 	    testTimeStart = 0, testTimeElapsed = 0;
-	Instances data = null;
-	
 	try {
 	    
 	    // Get basic options (options the same for all schemes)
@@ -491,6 +589,7 @@ public class MIEvaluation implements Summarizable {
 	    objectInputFileName = Utils.getOption('l', options);
 	    objectOutputFileName = Utils.getOption('d', options);
 	    testFileName = Utils.getOption('T', options);
+	    streamTest = Utils.getFlag("stream-test", options);
 	    if (trainFileName.length() == 0) {
 		if (objectInputFileName.length() == 0) {
 		    throw new Exception("No training file and no object "+
@@ -509,11 +608,14 @@ public class MIEvaluation implements Summarizable {
 	    }
 
 	    try {
-		if (trainFileName.length() != 0) {
+		if ((trainFileName.length() != 0) && 
+		    !BinaryExemplars.isBinaryFile(trainFileName)) {
 		    trainReader = new BufferedReader(new FileReader(trainFileName));
 		}
 		
-		if (testFileName.length() != 0)
+		if (BinaryExemplars.isBinaryFile(testFileName))
+		    binaryTest = new BinaryExemplars(new File(testFileName));
+		else if (testFileName.length() != 0)
 		    testReader = new BufferedReader(new FileReader(testFileName));
 		
 		if (objectInputFileName.length() != 0) {
@@ -527,40 +629,43 @@ public class MIEvaluation implements Summarizable {
 		throw new Exception("Can't open file " + e.getMessage() + '.');
 	    }
 
-	    if (testFileName.length() != 0) {
-		Instances insts = new Instances(testReader);
-		if (classIndex != -1) 
-		    insts.setClassIndex(classIndex - 1);
-		else 
-		    insts.setClassIndex(insts.numAttributes() - 1);
-		if (classIndex > insts.numAttributes()) 
-		    throw new Exception("Index of class attribute too large.");
-
-		if(idIndex != -1)
-		    test = new Exemplars(insts, idIndex);
-		else
-		    test = new Exemplars(insts, 0);
-		template = test;
-		testReader.close();
+	    if (binaryTest != null) {
+		if (streamTest) {
+		    // The exemplars are taken from the mapped file one 
+		    // at a time when testing
+		    template = binaryTest.getHeader();
+		} else {
+		    test = binaryTest.readExemplars();
+		    template = test;
+		    binaryTest.close();
+		    binaryTest = null;
+		}
+	    } else if (testFileName.length() != 0) {
+		testExemplars = new ExemplarReader(testReader, classIndex - 1,
+						   (idIndex != -1) ? idIndex : 0,
+						   streamTest);
+		if (streamTest) {
+		    // Only the header is read here; the exemplars are 
+		    // read one at a time when testing
+		    template = testExemplars.getHeader();
+		} else {
+		    test = testExemplars.readExemplars();
+		    template = test;
+		    testExemplars.close();
+		    testExemplars = null;
+		}
 	    }
 	   
-	    if (trainFileName.length() != 0) {
-		data = new Instances(trainReader);
-		
-		if (classIndex != -1)
-		    data.setClassIndex(classIndex - 1);
-	        else
-		    data.setClassIndex(data.numAttributes() - 1);
-		
-		if (classIndex > data.numAttributes())
-		    throw new Exception("Index of class attribute too large.");
-		Instances tmp = new Instances(data);
-		if(idIndex != -1)
-		    train = new Exemplars(tmp,idIndex);
-		else
-		    train = new Exemplars(tmp, 0);			      
+	    if (BinaryExemplars.isBinaryFile(trainFileName)) {
+		train = BinaryExemplars.read(new File(trainFileName));
+		template = train;
+	    } else if (trainFileName.length() != 0) {
+		ExemplarReader trainExemplars = 
+		    new ExemplarReader(trainReader, classIndex - 1,
+				       (idIndex != -1) ? idIndex : 0, false);
+		train = trainExemplars.readExemplars();
 		template = train;
-		trainReader.close();
+		trainExemplars.close();
 	    }
 	    
 	    if (template == null)
@@ -575,6 +680,10 @@ public class MIEvaluation implements Summarizable {
 	    if (foldsString.length() != 0) {
 		folds = Integer.parseInt(foldsString);
 	    }
+	    String foldThreadsString = Utils.getOption("fold-threads", options);
+	    if (foldThreadsString.length() != 0) {
+		foldThreads = Integer.parseInt(foldThreadsString);
+	    }
 	    costMatrix = handleCostOption(Utils.getOption('m', options), template.numClasses());
 	    printGraph = Utils.getFlag('g', options);
 	    sourceClass = Utils.getOption('z', options);
@@ -621,6 +730,28 @@ public class MIEvaluation implements Summarizable {
 	    (new Exemplars(template), costMatrix);
 	MIEvaluation testingEvaluation = new MIEvaluation
 	    (new Exemplars(template), costMatrix);
+	if ((testExemplars != null) && (trainFileName.length() == 0)) {
+	    
+	    // The priors are taken from the test data, which are read 
+	    // once more for this
+	    ExemplarReader priorReader = new ExemplarReader
+		(new BufferedReader(new FileReader(testFileName)), 
+		 classIndex - 1, (idIndex != -1) ? idIndex : 0, true);
+	    Exemplar ex;
+	    while ((ex = priorReader.readExemplar()) != null) {
+		trainingEvaluation.updatePriors(ex);
+		testingEvaluation.updatePriors(ex);
+	    }
+	    priorReader.close();
+	} else if ((binaryTest != null) && (trainFileName.length() == 0)) {
+	    
+	    // The priors are taken from the test data
+	    for (int i = 0; i < binaryTest.numExemplars(); i++) {
+		Exemplar ex = binaryTest.exemplar(i);
+		trainingEvaluation.updatePriors(ex);
+		testingEvaluation.updatePriors(ex);
+	    }
+	}
 	
 	if (objectInputFileName.length() != 0) {
 	    
@@ -629,31 +760,24 @@ public class MIEvaluation implements Summarizable {
 	    objectInputStream.close();
 	}
 
-	// Build the classifier if no object file provided
+	// Build the classifier if no object file provided, otherwise 
+	// update the loaded classifier with the training data. The 
+	// updateable classifiers are only approximately fitted by updates, 
+	// so they are not built incrementally from scratch.
 	if ((classifier instanceof MIUpdateableClassifier) &&
 	    (testFileName.length() != 0) &&
 	    (costMatrix == null) &&
-	    (trainFileName.length() != 0)) {
-	    
-	    // Build classifier incrementally
-	    int x= 0;
-	    Exemplars traineg = new Exemplars
-		(train.exemplar(x++).getInstances(), train.idIndex());
+	    (trainFileName.length() != 0) &&
+	    (objectInputFileName.length() != 0)) {
 	    
-	    trainingEvaluation.setPriors(traineg);
-	    testingEvaluation.setPriors(traineg);
+	    // Update classifier incrementally
+	    trainingEvaluation.setPriors(train);
+	    testingEvaluation.setPriors(train);
 	    trainTimeStart = System.currentTimeMillis();
-	    if (objectInputFileName.length() == 0) {
-		classifier.buildClassifier(traineg);
-	    }
-	    while (x < train.numExemplars()) {
-		
-		trainingEvaluation.updatePriors(train.exemplar(x));
-		testingEvaluation.updatePriors(train.exemplar(x));
+	    for(int x=0; x < train.numExemplars(); x++) 
 		((MIUpdateableClassifier)classifier).
 		    updateClassifier(train.exemplar(x));
-		x++;
-	    }
+	    ((MIUpdateableClassifier)classifier).flushUpdates();
 	    trainTimeElapsed = System.currentTimeMillis() - trainTimeStart;
 	} else if (objectInputFileName.length() == 0) {
 	    
@@ -713,20 +837,20 @@ public class MIEvaluation implements Summarizable {
 		
 		// Classifier was trained incrementally, so we have to 
 		// reopen the training data in order to test on it.
-		trainReader = new BufferedReader(new FileReader(trainFileName));
-		
-		// Incremental testing
-		Instances trn = new Instances(trainReader);
-		if (classIndex != -1) {
-		    trn.setClassIndex(classIndex - 1);
+		if (BinaryExemplars.isBinaryFile(trainFileName)) {
+		    train = BinaryExemplars.read(new File(trainFileName));
+		    testTimeStart = System.currentTimeMillis();
 		} else {
-		    trn.setClassIndex(trn.numAttributes() - 1);
+		    trainReader = new BufferedReader(new FileReader(trainFileName));
+		
+		    // Incremental testing
+		    ExemplarReader trainExemplars = 
+			new ExemplarReader(trainReader, classIndex - 1,
+					   (idIndex != -1) ? idIndex : 0, false);
+		    testTimeStart = System.currentTimeMillis();
+		    train = trainExemplars.readExemplars();
+		    trainExemplars.close();
 		}
-		testTimeStart = System.currentTimeMillis();
-		if(idIndex != -1)
-		    train = new Exemplars(trn,idIndex);
-		else
-		    train = new Exemplars(trn, 0);
  	
 		for(int y=0; y < train.numExemplars(); y++) {		    
 		    trainingEvaluation.
@@ -734,7 +858,6 @@ public class MIEvaluation implements Summarizable {
 					  train.exemplar(y));
 		}
 		testTimeElapsed = System.currentTimeMillis() - testTimeStart;
-		trainReader.close();
 	    } else {
 		testTimeStart = System.currentTimeMillis();
 		trainingEvaluation.evaluateModel(classifier, 
@@ -765,9 +888,22 @@ public class MIEvaluation implements Summarizable {
 	if (testFileName.length() != 0) {
 	    
 	    // Testing is on the supplied test data
-	    for(int z=0; z < test.numExemplars(); z++) 
-		testingEvaluation.evaluateModelOnce((MIClassifier)classifier, 
-						    test.exemplar(z));
+	    if (testExemplars != null) {
+		Exemplar ex;
+		while ((ex = testExemplars.readExemplar()) != null)
+		    testingEvaluation.evaluateModelOnce((MIClassifier)classifier, 
+							ex);
+		testExemplars.close();
+	    } else if (binaryTest != null) {
+		for (int z = 0; z < binaryTest.numExemplars(); z++)
+		    testingEvaluation.evaluateModelOnce((MIClassifier)classifier, 
+							binaryTest.exemplar(z));
+		binaryTest.close();
+	    } else {
+		for(int z=0; z < test.numExemplars(); z++) 
+		    testingEvaluation.evaluateModelOnce((MIClassifier)classifier, 
+							test.exemplar(z));
+	    }
 	    
 	    text.append("\n\n" + testingEvaluation.
 			toSummaryString("=== Error on test data ===\n",
@@ -780,13 +916,11 @@ public class MIEvaluation implements Summarizable {
 	    random.setSeed(seed);
 
 	    // In case exemplars are changed by classifier
-	    if(idIndex != -1)
-		train = new Exemplars(data,idIndex);
-	    else
-		train = new Exemplars(data, 0);	
+	    train = new Exemplars(train);
 	    train.randomize(random); 
 
-	    testingEvaluation.crossValidateModel(classifier, train, folds);
+	    testingEvaluation.crossValidateModel(classifier, train, folds, 
+						 foldThreads);
 	    
 	    if(leaveOneOut)
 		text.append("\n\n\n" + testingEvaluation.
@@ -2146,10 +2280,16 @@ public class MIEvaluation implements Summarizable {
     optionsText.append("-T <name of test file>\n");
     optionsText.append("\tSets test file. If missing, a cross-validation");
     optionsText.append(" will be performed on the training data.\n");
+    optionsText.append("\tFiles ending with " + BinaryExemplars.FILE_EXTENSION);
+    optionsText.append(" are read in the binary format.\n");
+    optionsText.append("-stream-test\n");
+    optionsText.append("\tReads test file one exemplar at a time (exemplars must be contiguous).\n");
     optionsText.append("-c <class index>\n");
     optionsText.append("\tSets index of class attribute (default: last).\n");
     optionsText.append("-x <number of folds>\n");
     optionsText.append("\tSets number of folds for cross-validation (default: 10).\n");
+    optionsText.append("-fold-threads <number of threads>\n");
+    optionsText.append("\tSets number of folds evaluated concurrently (default: 1).\n");
     optionsText.append("-s <random number seed>\n");
     optionsText.append("\tSets random number seed for cross-validation (default: 1).\n");
     optionsText.append("-m <name of file with cost matrix>\n");
@@ -43,11 +43,24 @@ import weka.filters.*;
  * -R ridge <br>
  * Set the ridge parameter for the log-likelihood.<p>
  *
+ * -num-threads num <br>
+ * Set the number of threads used to evaluate the objective function.<p>
+ *
+ * -lbfgs num <br>
+ * Use L-BFGS with the given number of correction pairs (0 for dense BFGS).<p>
+ *
+ * -learning-rate rate <br>
+ * Set the learning rate of the updates with new exemplars.<p>
+ *
+ * -batch-size num <br>
+ * Set the number of new exemplars used in each update.<p>
+ *
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
  * @author Xin Xu (xx5@cs.waikato.ac.nz)
  * @version $Revision: 1.0$ 
  */
-public class MILRARITH extends MIClassifier implements OptionHandler {
+public class MILRARITH extends MIClassifier implements OptionHandler,
+					    MIUpdateableClassifier {
   
     /** The index of the class attribute */
     protected int m_ClassIndex;
@@ -69,12 +82,24 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
     
     /** Debugging output */
     protected boolean m_Debug;
+
+    /** The number of threads used to evaluate the objective function */
+    protected int m_NumThreads = 1;
+
+    /** The number of correction pairs kept by L-BFGS, 0 for dense BFGS */
+    protected int m_LBFGSMemory = 0;
+
+    /** Evaluates the objective function while building */
+    protected transient ParallelBagEvaluator m_Evaluator;
+
+    /** Updates the model with new exemplars */
+    protected GradientUpdater m_Updater = new GradientUpdater(true);
    
     /** Class labels for each bag */
     protected int[] m_Classes;
 
     /** MI data */ 
-    protected double[][][] m_Data;
+    protected ColumnarExemplars m_Data;
 
     /** All attribute names */
     protected Instances m_Attributes;
@@ -87,11 +112,20 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
-	Vector newVector = new Vector(3);
+	Vector newVector = new Vector(6);
 	newVector.addElement(new Option("\tTurn on debugging output.",
 					"D", 0, "-D"));
 	newVector.addElement(new Option("\tSet the ridge in the log-likelihood.",
 					"R", 1, "-R <ridge>"));
+	newVector.addElement(new Option("\tSet the number of threads used to evaluate\n"
+					+"\tthe objective function (default 1).",
+					"num-threads", 1, "-num-threads <num>"));
+	newVector.addElement(new Option("\tUse L-BFGS keeping the given number of correction\n"
+					+"\tpairs instead of dense BFGS (default 0: dense BFGS).",
+					"lbfgs", 1, "-lbfgs <num>"));
+	Enumeration enu = m_Updater.listOptions();
+	while (enu.hasMoreElements())
+	    newVector.addElement(enu.nextElement());
 	return newVector.elements();
     }
     
@@ -107,11 +141,37 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
      * -R ridge <br>
      * Set the ridge parameter for the log-likelihood.<p>
      *
+     * -num-threads num <br>
+     * Set the number of threads used to evaluate the objective function.<p>
+     *
+     * -lbfgs num <br>
+     * Use L-BFGS with the given number of correction pairs (0 for dense BFGS).<p>
+     *
+     * -learning-rate rate <br>
+     * Set the learning rate of the updates with new exemplars.<p>
+     *
+     * -batch-size num <br>
+     * Set the number of new exemplars used in each update.<p>
+     *
      * @param options the list of options as an array of strings
      * @exception Exception if an option is not supported
      */
     public void setOptions(String[] options) throws Exception {
 	setDebug(Utils.getFlag('D', options));
+
+	String threadsString = Utils.getOption("num-threads", options);
+	if (threadsString.length() != 0) 
+	    setNumThreads(Integer.parseInt(threadsString));
+	else 
+	    setNumThreads(1);
+
+	String memoryString = Utils.getOption("lbfgs", options);
+	if (memoryString.length() != 0) 
+	    setLBFGSMemory(Integer.parseInt(memoryString));
+	else 
+	    setLBFGSMemory(0);
+
+	m_Updater.setOptions(options);
 	
 	String ridgeString = Utils.getOption('R', options);
 	if (ridgeString.length() != 0) 
@@ -127,7 +187,7 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
      */
     public String [] getOptions() {
 	
-	String [] options = new String [3];
+	String [] options = new String [11];
 	int current = 0;
 	
 	if (getDebug()) {
@@ -136,6 +196,17 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 	options[current++] = "-R";
 	options[current++] = ""+m_Ridge;
 	
+	options[current++] = "-num-threads";
+	options[current++] = ""+m_NumThreads;
+	
+	options[current++] = "-lbfgs";
+	options[current++] = ""+m_LBFGSMemory;
+	
+	String[] updaterOptions = m_Updater.getOptions();
+	System.arraycopy(updaterOptions, 0, options, current, 
+			 updaterOptions.length);
+	current += updaterOptions.length;
+	
 	while (current < options.length) 
 	    options[current++] = "";
 	return options;
@@ -158,6 +229,46 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
     public boolean getDebug() {
 	return m_Debug;
     }
+
+    /**
+     * Sets the number of threads used to evaluate the objective
+     * function and its gradient.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to evaluate the objective
+     * function and its gradient.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
+    }
+
+    /**
+     * Sets the number of correction pairs kept by L-BFGS.  L-BFGS needs
+     * memory and time per iteration linear in the number of parameters,
+     * where the default dense BFGS needs them quadratic.
+     *
+     * @param memory the number of pairs, 0 for dense BFGS
+     */
+    public void setLBFGSMemory(int memory) {
+	m_LBFGSMemory = memory;
+    }
+
+    /**
+     * Gets the number of correction pairs kept by L-BFGS.
+     *
+     * @return the number of pairs, 0 for dense BFGS
+     */
+    public int getLBFGSMemory() {
+	return m_LBFGSMemory;
+    }
       
     /**
      * Sets the ridge in the log-likelihood.
@@ -176,25 +287,102 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
     public double getRidge() {
 	return m_Ridge;
     }
+
+    /**
+     * Sets the learning rate of the updates with new exemplars.
+     *
+     * @param rate the learning rate
+     */
+    public void setLearningRate(double rate) {
+	m_Updater.setLearningRate(rate);
+    }
+
+    /**
+     * Gets the learning rate of the updates with new exemplars.
+     *
+     * @return the learning rate
+     */
+    public double getLearningRate() {
+	return m_Updater.getLearningRate();
+    }
+
+    /**
+     * Sets the number of new exemplars used in each update.
+     *
+     * @param size the number of exemplars, 1 for updating with each
+     * exemplar as it arrives
+     */
+    public void setBatchSize(int size) {
+	m_Updater.setBatchSize(size);
+    }
+
+    /**
+     * Gets the number of new exemplars used in each update.
+     *
+     * @return the number of exemplars
+     */
+    public int getBatchSize() {
+	return m_Updater.getBatchSize();
+    }
     
-    private class OptEng extends Optimization{
+    private class OptEng extends LBFGSOptimization implements BagFunction {
+
+	/** The normalized data the objective function is computed on */
+	private final ColumnarExemplars m_Data;
+
+	/** The class label of each bag */
+	private final int[] m_Classes;
+
+	/** The exponentiated linear predictor of each instance */
+	private final PredictorCache m_Cache;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param data the normalized data
+	 * @param classes the class label of each bag
+	 */
+	OptEng(ColumnarExemplars data, int[] classes){
+	    m_Data = data;
+	    m_Classes = classes;
+	    m_Cache = new PredictorCache(data.numInstances());
+	}
+
 	/** 
 	 * Evaluate objective function
 	 * @param x the current values of variables
 	 * @return the value of the objective function 
 	 */
 	protected double objectiveFunction(double[] x){
+	    double nll = m_Evaluator.objective(this, x, m_Classes.length, m_Cache);
+	    
+	    // ridge: note that intercepts NOT included
+	    for(int r=1; r<x.length; r++)
+		nll += m_Ridge*x[r]*x[r];
+	    return nll;
+	}
+
+	/** 
+	 * Evaluate the objective function's terms of the given bags
+	 * @param x the current values of variables
+	 * @param from the index of the first bag
+	 * @param to the index after the last bag
+	 * @return the sum of the bags' terms
+	 */
+	public double objective(double[] x, int from, int to){
+	    double[] pred = m_Cache.values();
 	    double nll = 0; // -LogLikelihood
-	    for(int i=0; i<m_Classes.length; i++){ // ith bag
-		int nI = m_Data[i][0].length; // numInstances in ith bag
+	    for(int i=from; i<to; i++){ // ith bag
+		int nI = m_Data.bagSize(i), start = m_Data.bagStart(i);
 		double bag = 0;  // NLL of each bag
 
 		for(int j=0; j<nI; j++){
 		    double exp=0.0;
-		    for(int k=m_Data[i].length-1; k>=0; k--)
-			exp += m_Data[i][k][j]*x[k+1];
+		    for(int k=m_Data.numColumns()-1; k>=0; k--)
+			exp += m_Data.column(k)[start+j]*x[k+1];
 		    exp += x[0];
 		    exp = Math.exp(exp);
+		    pred[start+j] = exp;
 		    
 		    if(m_Classes[i] == 1)
 			bag += 1.0-1.0/(1.0+exp); // To avoid exp infinite
@@ -204,12 +392,8 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 		bag /= (double)nI;
 		
 		nll -= Math.log(bag);
-	    }		
+	    }
 	    
-	    // ridge: note that intercepts NOT included
-	    for(int r=1; r<x.length; r++)
-		nll += m_Ridge*x[r]*x[r];
-
 	    return nll;
 	}
 	
@@ -219,20 +403,34 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 	 * @return the gradient vector 
 	 */
 	protected double[] evaluateGradient(double[] x){
-	    double[] grad = new double[x.length];
-	    for(int i=0; i<m_Classes.length; i++){ // ith bag
-		int nI = m_Data[i][0].length; // numInstances in ith bag 
+	    double[] grad = m_Evaluator.gradient(this, x, m_Classes.length, m_Cache);
+	    
+	    // ridge: note that intercepts NOT included
+	    for(int r=1; r<x.length; r++){
+		grad[r] += 2.0*m_Ridge*x[r];
+	    }
+	    return grad;
+	}
+
+	/** 
+	 * Add the gradients of the objective function's terms of the
+	 * given bags to grad
+	 * @param x the current values of variables
+	 * @param from the index of the first bag
+	 * @param to the index after the last bag
+	 * @param grad the gradient vector being computed
+	 */
+	public void addGradient(double[] x, int from, int to, double[] grad){
+	    double[] pred = m_Cache.values();
+	    for(int i=from; i<to; i++){ // ith bag
+		int nI = m_Data.bagSize(i), start = m_Data.bagStart(i); 
 		
 		double denom=0.0;
 		double[] numrt = new double[x.length];
 		
 		for(int j=0; j<nI; j++){
-		    // Compute exp(b0+b1*Xi1j+...)/[1+exp(b0+b1*Xi1j+...)]
-		    double exp=0.0;
-		    for(int k=m_Data[i].length-1; k>=0; k--)
-			exp += m_Data[i][k][j]*x[k+1];
-		    exp += x[0];
-		    exp = Math.exp(exp);
+		    // exp(b0+b1*Xi1j+...)
+		    double exp = pred[start+j];
 		    if(m_Classes[i]==1)
 			denom += exp/(1.0+exp);
 		    else
@@ -241,7 +439,7 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 		    // Instance-wise update of dNLL/dBk
 		    for(int p=0; p<x.length; p++){  // pth variable
 			double m = 1.0;
-			if(p>0) m=m_Data[i][p-1][j];
+			if(p>0) m=m_Data.column(p-1)[start+j];
 			numrt[p] += m*exp/((1.0+exp)*(1.0+exp));   
 		    }			
 		}
@@ -254,13 +452,6 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 			grad[q] += numrt[q]/denom;    	    
 		}
 	    }
-	    
-	    // ridge: note that intercepts NOT included
-	    for(int r=1; r<x.length; r++){
-		grad[r] += 2.0*m_Ridge*x[r];
-	    }
-	    
-	    return grad;
 	}
     }
     
@@ -288,7 +479,6 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 	int nR = train.numAttributes() - 2;
 	int nC = train.numExemplars();
 	
-	m_Data  = new double [nC][nR][];              // Data values
 	m_Classes  = new int [nC];                    // Class values
 	m_Attributes = new Instances(train.exemplar(0).getInstances(),0);	
 
@@ -302,40 +492,28 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 	    System.out.println("Extracting data...");
 	}
 	
-	for(int h=0; h<m_Data.length; h++){
-	    Exemplar current = train.exemplar(h);
-	    m_Classes[h] = (int)current.classValue();  // Class value starts from 0
-	    Instances currInsts = current.getInstances();
-	    int nI = currInsts.numInstances();
+	ColumnarExemplars data = new ColumnarExemplars(train);
+	for(int h=0; h<nC; h++){
+	    m_Classes[h] = (int)data.classValue(h);  // Class value starts from 0
+	    int nI = data.bagSize(h), start = data.bagStart(h);
 	    totIns += (double)nI;
 
-	    int idx=0;
-	    for (int i = 0; i < train.numAttributes(); i++) {  		
-		if ((i==m_ClassIndex) || (i==m_IdIndex))
-		    continue;
-		
-		// initialize m_data[][][]		
-		m_Data[h][idx] = new double[nI];
+	    for (int idx = 0; idx < nR; idx++) {  		
+		double[] col = data.column(idx);
 		double avg=0, std=0, num=0;
-		for (int k=0; k<nI; k++){
-		    if(!currInsts.instance(k).isMissing(i)){
-			m_Data[h][idx][k] = currInsts.instance(k).value(i);	 	
-			//xMean[idx] += m_Data[h][idx][k];
-			//xSD[idx] += m_Data[h][idx][k]*m_Data[h][idx][k];  
-			avg += m_Data[h][idx][k];
-			std += m_Data[h][idx][k]*m_Data[h][idx][k];
+		for (int k=start; k<start+nI; k++){
+		    if(!Double.isNaN(col[k])){
+			avg += col[k];
+			std += col[k]*col[k];
 			num++;
 		    }
-		    else
-			m_Data[h][idx][k] = Double.NaN;
 		}
 		if(num > 0){
 		    xMean[idx] += avg/num;
 		    xSD[idx] += std/num;
 		}
 		else
-		    missingbags[idx]++;
-		idx++;
+		    missingbags[idx]++;		
 	    }	    
 	    
 	    // Class count	
@@ -366,19 +544,8 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 				   + Utils.doubleToString(xSD[j], 10,4));
 	}
 	
-	// Normalise input data and remove ignored attributes
-	for (int i = 0; i < nC; i++) {
-	    for (int j = 0; j < nR; j++) {
-		for(int k=0; k < m_Data[i][j].length; k++){
-		    if(xSD[j] != 0){
-			if(!Double.isNaN(m_Data[i][j][k]))
-			    m_Data[i][j][k] = (m_Data[i][j][k] - xMean[j]) / xSD[j];
-			else
-			    m_Data[i][j][k] = 0;
-		    }
-		}
-	    }
-	}
+	// Normalise input data, missing values become the mean (zero)
+	m_Data = new ColumnarExemplars(data, xMean, xSD, true);
 	
 	if (m_Debug) {
 	    System.out.println("\nIteration History..." );
@@ -395,15 +562,21 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 	    b[1][q] = Double.NaN;
 	}
 	
-	OptEng opt = new OptEng();	
-	//opt.setDebug(m_Debug);
-	//opt.setMaxIteration(200*x.length);
-	m_Par = opt.findArgmin(x, b);
-	while(m_Par==null){
-	    m_Par = opt.getVarbValues();
-	    if (m_Debug)
-		System.out.println("200 iterations finished, not enough!");
-	    m_Par = opt.findArgmin(m_Par, b);
+	m_Evaluator = new ParallelBagEvaluator(m_NumThreads);
+	try{
+	    OptEng opt = new OptEng(m_Data, m_Classes);
+	    opt.setMemory(m_LBFGSMemory);
+	    //opt.setDebug(m_Debug);
+	    //opt.setMaxIteration(200*x.length);
+	    m_Par = opt.findArgmin(x, b);
+	    while(m_Par==null){
+		m_Par = opt.getVarbValues();
+		if (m_Debug)
+		    System.out.println("200 iterations finished, not enough!");
+		m_Par = opt.findArgmin(m_Par, b);
+	    }
+	}finally{
+	    m_Evaluator.shutdown();
 	}
 	if (m_Debug)
 	    System.out.println(" -------------<Converged>--------------");
@@ -426,7 +599,49 @@ public class MILRARITH extends MIClassifier implements OptionHandler {
 		m_Par[0] -= m_Par[j] * xMean[j-1];
 	    }
 	}
+	m_Updater.start(train, xMean, xSD);
     }		
+
+    /**
+     * Updates the classifier with the given exemplar.  Once the batch
+     * size is reached, the pending exemplars are used in one gradient
+     * step on the same negative log-likelihood and ridge as when
+     * building (see GradientUpdater).
+     *
+     * @param example the new exemplar
+     * @exception Exception if the classifier has not been built yet
+     */
+    public void updateClassifier(Exemplar example) throws Exception {
+	if (m_Par == null)
+	    throw new Exception("No model built yet: can't update.");
+	m_Updater.update(example, m_Par, m_Ridge, new UpdateModel());
+    }
+
+    /**
+     * Takes a gradient step with the exemplars still pending, if any.
+     *
+     * @exception Exception if the classifier has not been built yet
+     */
+    public void flushUpdates() throws Exception {
+	if (m_Par == null)
+	    throw new Exception("No model built yet: can't update.");
+	m_Updater.flush(m_Par, m_Ridge, new UpdateModel());
+    }
+
+    /**
+     * Computes the gradient used by the updates with this classifier's
+     * objective function.
+     */
+    private class UpdateModel implements GradientUpdater.Model {
+	public double[] gradient(ColumnarExemplars data, int[] classes, 
+				 double[] x) {
+	    OptEng opt = new OptEng(data, classes);
+	    double[] grad = new double[x.length];
+	    opt.objective(x, 0, classes.length);
+	    opt.addGradient(x, 0, classes.length, grad);
+	    return grad;
+	}
+    }
     
     /**
      * Computes the distribution for a given exemplar
@@ -27,6 +27,7 @@ import weka.classifiers.*;
 import weka.core.*;
 import java.lang.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /** 
  * 0657.591B Dissertation
@@ -106,6 +107,17 @@ public class MINND extends MIClassifier implements OptionHandler{
     
     /** The decay rate of learning rate */
     private double m_Decay = 0.5;
+
+    /** The trees used to find the nearest exemplars by Kullback distance,
+	and by distance to the valid and the noise data */
+    private SummaryTree m_KullbackTree = null, m_ValidTree = null, 
+	m_NoiseTree = null;
+
+    /** The tree used to find the nearest exemplars while pre-processing */
+    private SummaryTree m_MeanTree = null;
+
+    /** The number of threads used to process the training exemplars */
+    protected int m_NumThreads = 1;
     
     /**
      * As normal Nearest Neighbour algorithm does, it's lazy and simply
@@ -160,36 +172,82 @@ public class MINND extends MIClassifier implements OptionHandler{
 	    m_Weights[x] = example.weight();	
 	}
 	
-	for(int z=0; z < numegs; z++)
-	    findWeights(z, m_Mean);
+	// Each exemplar only writes its own rows of m_Change, m_NoiseM, 
+	// m_NoiseV, m_ValidM and m_ValidV, and only reads the scaled means 
+	// and variances and the other rows of the matrix in use, which are 
+	// not changed by the pass, so the exemplars are processed in 
+	// parallel blocks, with one pool for the three passes.
+	ExecutorService pool = (m_NumThreads > 1) ?
+	    Executors.newFixedThreadPool(m_NumThreads) : null;
+	try{
+	    runBlocks(new RangeTask() {
+		    public void run(int block, int from, int to) throws Exception {
+			for(int z=from; z < to; z++)
+			    findWeights(z, m_Mean);
+		    }
+		}, numegs, m_NumThreads, pool);
+	    m_MeanTree = new SummaryTree(m_Mean, m_Variance, m_Change);
 	
-	// Pre-process and record "true estimated" parameters for distributions 
-	for(int x=0; x < numegs; x++){
-	    Exemplar example = preprocess(data, x);
-	    System.out.println("???Exemplar "+x+" has been pre-processed:"+
-			       data.exemplar(x).getInstances().sumOfWeights()+
-			       "|"+example.getInstances().sumOfWeights()+
-			       "; class:"+m_Class[x]);
-	    if(Utils.gr(example.getInstances().sumOfWeights(), 0)){	
-		m_ValidM[x] = example.meanOrMode();
-		m_ValidV[x] = example.variance();
-		for(int y=0; y < m_ValidV[x].length; y++){
-		    if(Utils.eq(m_ValidV[x][y],0.0))
-			m_ValidV[x][y] = m_ZERO;
-		}	
-	    }
-	    else{
-		m_ValidM[x] = null;
-		m_ValidV[x] = null;
-	    }
-	}
+	    // Pre-process and record "true estimated" parameters for distributions 
+	    final Exemplars scaled = data;
+	    runBlocks(new RangeTask() {
+		    public void run(int block, int from, int to) throws Exception {
+			for(int x=from; x < to; x++)
+			    validate(scaled, x);
+		    }
+		}, numegs, m_NumThreads, pool);
+	
+	    m_MeanTree = null;
 	
-	for(int z=0; z < numegs; z++)
-	  if(m_ValidM[z] != null)
-	    findWeights(z, m_ValidM);	
+	    // Weights are found against the valid means of all the exemplars, 
+	    // so this pass can only start once the pre-processing is finished
+	    runBlocks(new RangeTask() {
+		    public void run(int block, int from, int to) throws Exception {
+			for(int z=from; z < to; z++)
+			    if(m_ValidM[z] != null)
+				findWeights(z, m_ValidM);
+		    }
+		}, numegs, m_NumThreads, pool);
+	}finally{
+	    if(pool != null)
+		pool.shutdownNow();
+	}
 	
+	m_KullbackTree = new SummaryTree(m_ValidM, m_Variance, m_Change);
+	m_ValidTree = new SummaryTree(m_ValidM, m_ValidV, m_Change);
+	m_NoiseTree = new SummaryTree(m_NoiseM, m_NoiseV, m_Change);
     }
     
+    /**
+     * Pre-processes the given exemplar and records the mean and variance
+     * of its remaining instances in m_ValidM and m_ValidV, or null if
+     * all its instances are noises.
+     *
+     * @param data the whole (scaled) exemplars
+     * @param x the position of given exemplar in data
+     * @exception Exception if the exemplar cannot be pre-processed
+     */
+    private void validate(Exemplars data, int x) throws Exception{
+	Exemplar example = preprocess(data, x);
+	if(Diagnostics.TRACE)
+	    Diagnostics.log("MINND", "Exemplar "+x+" has been pre-processed:"+
+			    data.exemplar(x).sumOfWeights()+
+			    "|"+example.sumOfWeights()+
+			    "; class:"+m_Class[x]);
+	if(Utils.gr(example.sumOfWeights(), 0)){	
+	    m_ValidM[x] = example.meanOrMode();
+	    m_ValidV[x] = example.variance();
+	    for(int y=0; y < m_ValidV[x].length; y++){
+		if(Utils.eq(m_ValidV[x][y],0.0))
+		    m_ValidV[x][y] = m_ZERO;
+	    }	
+	}
+	else{
+	    m_ValidM[x] = null;
+	    m_ValidV[x] = null;
+	}
+    }
+
     /**
      * Pre-process the given exemplar according to the other exemplars 
      * in the given exemplars.  It also updates noise data statistics.
@@ -210,27 +268,20 @@ public class MINND extends MIClassifier implements OptionHandler{
 	
 	Exemplar after = new Exemplar(before, 0);
 	Exemplar noises =  new Exemplar(before, 0);
+	if(m_MeanTree == null)
+	    m_MeanTree = new SummaryTree(m_Mean, m_Variance, m_Change);
 	
 	for(int g=0; g < before.getInstances().numInstances(); g++){
 	    Instance datum = before.getInstances().instance(g);
-	    double[] dists = new double[data.numExemplars()];
-	    
-	    for(int i=0; i < data.numExemplars(); i++){
-		if(i != pos)
-		    dists[i] = distance(datum, m_Mean[i], m_Variance[i], i);
-		else
-		    dists[i] = Double.POSITIVE_INFINITY;
-	    }		   
+	    int[] nearest = m_MeanTree.nearest
+		(new InstanceMetric(datum, m_Mean, m_Variance), m_Select, pos, null);
 
 	    int[] pred = new int[m_NumClasses];
 	    for(int n=0; n < pred.length; n++)
 		pred[n] = 0;
 	    
-	    for(int o=0; o<m_Select; o++){
-		int index = Utils.minIndex(dists);
-		pred[(int)m_Class[index]]++;
-		dists[index] = Double.POSITIVE_INFINITY;
-	    }
+	    for(int o=0; o<m_Select; o++)
+		pred[(int)m_Class[nearest[o]]]++;
 
 	    int clas = Utils.maxIndex(pred);
 	    if((int)datum.classValue() != clas)
@@ -239,7 +290,7 @@ public class MINND extends MIClassifier implements OptionHandler{
 		after.add(datum);		
 	}
 	
-	if(Utils.gr(noises.getInstances().sumOfWeights(), 0)){	
+	if(Utils.gr(noises.sumOfWeights(), 0)){	
 	    m_NoiseM[pos] = noises.meanOrMode();
 	    m_NoiseV[pos] = noises.variance();
 	    for(int y=0; y < m_NoiseV[pos].length; y++){
@@ -293,6 +344,134 @@ public class MINND extends MIClassifier implements OptionHandler{
 	return distance;
     }
     
+    /**
+     * The distance of one instance to the exemplars' distributions,
+     * as computed by distance().
+     */
+    private class InstanceMetric implements SummaryTree.Metric {
+
+	/** The instance */
+	private Instance m_Datum;
+
+	/** The mean and variance of each exemplar */
+	private double[][] m_Means, m_Vars;
+
+	/**
+	 * Constructor
+	 *
+	 * @param datum the instance
+	 * @param mean the mean of each exemplar
+	 * @param var the variance of each exemplar
+	 */
+	InstanceMetric(Instance datum, double[][] mean, double[][] var) {
+	    m_Datum = datum;
+	    m_Means = mean;
+	    m_Vars = var;
+	}
+
+	public double distance(int row) {
+	    return MINND.this.distance(m_Datum, m_Means[row], m_Vars[row], row);
+	}
+
+	public double lowerBound(double[] meanLo, double[] meanHi, 
+				 double[] varLo, double[] varHi,
+				 double[] weightLo, double[] weightHi) {
+	    double bound = 0;
+	    int j=0;
+	    for(int i = 0; i < m_Datum.numAttributes(); i++) { 
+		if ((i == m_ClassIndex) || (i == m_IdIndex))
+		    continue;
+		
+		if(m_Datum.attribute(i).isNumeric()){
+		    // The variance is used as the scale unless it is zero
+		    double wLo = varLo[j], wHi = varHi[j];
+		    if(!Utils.gr(varLo[j], m_ZERO)){
+			wLo = Math.min(wLo, 1.0);
+			wHi = Math.max(wHi, 1.0);
+		    }
+		    
+		    double tLo = wLo, tHi = wHi;
+		    if (!m_Datum.isMissing(i)){
+			double v = m_Datum.value(i);
+			double dLo = 0, 
+			    dHi = Math.max(Math.abs(v-meanLo[j]), Math.abs(v-meanHi[j]));
+			if(v < meanLo[j])
+			    dLo = meanLo[j] - v;
+			else if(v > meanHi[j])
+			    dLo = v - meanHi[j];
+			tLo *= dLo*dLo;
+			tHi *= dHi*dHi;
+		    }
+		    bound += SummaryTree.minProduct(weightLo[j], weightHi[j], tLo, tHi);
+		}
+		j++;
+	    }
+	    return bound;
+	}
+    }
+
+    /**
+     * The Kullback distance of one exemplar's distribution to the 
+     * training exemplars, as computed by kullback().
+     */
+    private class KullbackMetric implements SummaryTree.Metric {
+
+	/** The mean and variance of the exemplar */
+	private double[] m_Mu, m_Var;
+
+	/**
+	 * Constructor
+	 *
+	 * @param mean the mean of the exemplar
+	 * @param var the variance of the exemplar
+	 */
+	KullbackMetric(double[] mean, double[] var) {
+	    m_Mu = mean;
+	    m_Var = var;
+	}
+
+	public double distance(int row) {
+	    return kullback(m_Mu, m_ValidM[row], m_Var, m_Variance[row], row);
+	}
+
+	public double lowerBound(double[] meanLo, double[] meanHi, 
+				 double[] varLo, double[] varHi,
+				 double[] weightLo, double[] weightHi) {
+	    double bound = 0;
+	    for(int y=0; y < m_Mu.length; y++){
+		if(!Utils.gr(m_Var[y], 0))
+		    continue;
+		
+		// Only variances above Utils.SMALL count
+		double lo = Math.max(varLo[y], Utils.SMALL), hi = varHi[y];
+		if(lo > hi)
+		    continue;
+		
+		// ln(SIGMA2/SIGMA1)+SIGMA1^2/(2*SIGMA2^2) is smallest when 
+		// SIGMA2 is nearest to SIGMA1
+		double v = Math.min(Math.max(m_Var[y], lo), hi);
+		double term = Math.log(Math.sqrt(v/m_Var[y])) + 
+		    m_Var[y]/(2.0*v) - 0.5;
+		
+		double dLo = 0, 
+		    dHi = Math.max(Math.abs(m_Mu[y]-meanLo[y]), 
+				   Math.abs(m_Mu[y]-meanHi[y]));
+		if(m_Mu[y] < meanLo[y])
+		    dLo = meanLo[y] - m_Mu[y];
+		else if(m_Mu[y] > meanHi[y])
+		    dLo = m_Mu[y] - meanHi[y];
+		term += SummaryTree.minProduct(weightLo[y], weightHi[y],
+					       dLo*dLo/(2.0*hi), dHi*dHi/(2.0*lo));
+		
+		// Exemplars with a zero variance leave out the dimension
+		if(!Utils.gr(varLo[y], 0))
+		    term = Math.min(term, 0);
+		bound += term;
+	    }
+	    return bound;
+	}
+    }
+
     /**
      * Updates the minimum and maximum values for all the attributes
      * based on a new exemplar.
@@ -304,21 +483,17 @@ public class MINND extends MIClassifier implements OptionHandler{
 	int m=0;
 	for (int j = 0;j < insts.numAttributes(); j++) {
 	    if((j != ex.idIndex()) && (j != ex.classIndex())){
-		if (insts.attribute(j).isNumeric()){
-		    for(int k=0; k < insts.numInstances(); k++){
-			Instance ins = insts.instance(k);
-			if(!ins.isMissing(j)){
-			    if (Double.isNaN(m_MinArray[m])) {
-				m_MinArray[m] = ins.value(j);
-				m_MaxArray[m] = ins.value(j);
-			    } else {
-				if (ins.value(j) < m_MinArray[m])
-				    m_MinArray[m] = ins.value(j);
-				else if (ins.value(j) > m_MaxArray[m])
-				    m_MaxArray[m] = ins.value(j);
-			    }
-			}
-		    } 
+		if (insts.attribute(j).isNumeric() && !ex.isAllMissing(j)){
+		    double[] minimax = ex.minimax(j);
+		    if (Double.isNaN(m_MinArray[m])) {
+			m_MinArray[m] = minimax[0];
+			m_MaxArray[m] = minimax[1];
+		    } else {
+			if (minimax[0] < m_MinArray[m])
+			    m_MinArray[m] = minimax[0];
+			if (minimax[1] > m_MaxArray[m])
+			    m_MaxArray[m] = minimax[1];
+		    }
 		}
 		m++;
 	    }
@@ -360,8 +535,9 @@ public class MINND extends MIClassifier implements OptionHandler{
      * 
      * @param row the given row index
      * @return the result after gradient descent
+     * @exception Exception if a distance between exemplars is infinite
      */
-    public void findWeights(int row, double[][] mean){
+    public void findWeights(int row, double[][] mean) throws Exception{
 	
 	double[] neww = new double[m_Dimension];
 	double[] oldw = new double[m_Dimension];
@@ -373,7 +549,8 @@ public class MINND extends MIClassifier implements OptionHandler{
 	double rate= 0.05;
 	if(m_Rate != -1)
 	    rate = m_Rate;
-	System.out.println("???Start searching ...");
+	if(Diagnostics.DEBUG)
+	    Diagnostics.log("MINND", "Start searching weights of exemplar "+row);
     search: 
 	while(Utils.gr((result-newresult), m_STOP)){ // Full step
 	    oldw = neww;
@@ -405,7 +582,8 @@ public class MINND extends MIClassifier implements OptionHandler{
 		}
 	    }
 	}
-	System.out.println("???Stop");
+	if(Diagnostics.DEBUG)
+	    Diagnostics.log("MINND", "Stop searching weights of exemplar "+row);
 	m_Change[row] = neww;
     }
     
@@ -461,8 +639,11 @@ public class MINND extends MIClassifier implements OptionHandler{
      * @param rowpos row index of x in X
      * @param Y the observed class label
      * @return the result of the target function
+     * @exception Exception if a distance between exemplars is infinite
      */
-    public double target(double[] x, double[][] X, int rowpos, double[] Y){
+    public double target(double[] x, double[][] X, int rowpos, double[] Y)
+	throws Exception{
+	Diagnostics.OBJECTIVE_EVALUATIONS.increment();
 	double y = Y[rowpos], result=0;
 	
 	for(int i=0; i < X.length; i++){
@@ -477,7 +658,8 @@ public class MINND extends MIClassifier implements OptionHandler{
 		f = Math.sqrt(f);
 		//System.out.println("???distance between "+rowpos+" and "+i+": "+f+"|y:"+y+" vs "+Y[i]);
 		if(Double.isInfinite(f))
-		    System.exit(1);
+		    throw new Exception("Distance between exemplars "+rowpos+
+					" and "+i+" is infinite!");
 		result += 0.5 * (f - var) * (f - var);
 	    }
 	}
@@ -501,8 +683,6 @@ public class MINND extends MIClassifier implements OptionHandler{
 	ex = scale(ex);
 	
 	double[] var = ex.variance();		
-	// The Kullback distance to all exemplars
-	double[] kullback = new double[m_Class.length];
 	
 	// The first K nearest neighbours' predictions */
 	double[] predict = new double[m_NumClasses];
@@ -511,7 +691,8 @@ public class MINND extends MIClassifier implements OptionHandler{
 	ex = cleanse(ex);
 	
 	if(ex.getInstances().numInstances() == 0){
-	    System.out.println("???Whole exemplar falls into ambiguous area!");
+	    if(Diagnostics.TRACE)
+		Diagnostics.log("MINND", "Whole exemplar falls into ambiguous area!");
 	    return 1.0;                          // Bias towards positive class
 	}
 	
@@ -523,20 +704,18 @@ public class MINND extends MIClassifier implements OptionHandler{
 		var[h] = m_ZERO;
 	}	
 	
-	for(int i=0; i < m_Class.length; i++){
-	    if(m_ValidM[i] != null)
-		kullback[i] = kullback(mean, m_ValidM[i], var, m_Variance[i], i);
-	    else
-		kullback[i] = Double.POSITIVE_INFINITY;
-	}
+	// The exemplars nearest by Kullback distance
+	int[] nearest = m_KullbackTree.nearest
+	    (new KullbackMetric(mean, var), m_Neighbour, -1, null);
 	
 	for(int j=0; j < m_Neighbour; j++){
-	    int pos = Utils.minIndex(kullback);
+	    int pos = nearest[j];
 	    predict[(int)m_Class[pos]] += m_Weights[pos];	   
-	    kullback[pos] = Double.POSITIVE_INFINITY;
 	}	
 	
-	System.out.println("???There are still some unambiguous instances in this exemplar! Predicted as: "+Utils.maxIndex(predict));
+	if(Diagnostics.TRACE)
+	    Diagnostics.log("MINND", "There are still some unambiguous instances "
+			    +"in this exemplar! Predicted as: "+Utils.maxIndex(predict));
 	return (double)Utils.maxIndex(predict);	
     } 
 
@@ -556,29 +735,11 @@ public class MINND extends MIClassifier implements OptionHandler{
 	    double[] minNoiDists = new double[m_Choose];
 	    double[] minValDists = new double[m_Choose];
 	    int noiseCount = 0, validCount = 0;
-	    double[] nDist = new double[m_Mean.length]; 
-	    double[] vDist = new double[m_Mean.length]; 
 	    
-	    for(int h=0; h < m_Mean.length; h++){
-		if(m_ValidM[h] == null)
-		    vDist[h] = Double.POSITIVE_INFINITY;
-		else
-		    vDist[h] = distance(datum, m_ValidM[h], m_ValidV[h], h);
-		
-		if(m_NoiseM[h] == null)
-		    nDist[h] = Double.POSITIVE_INFINITY;
-		else
-		    nDist[h] = distance(datum, m_NoiseM[h], m_NoiseV[h], h);
-	    }
-	    
-	    for(int k=0; k < m_Choose; k++){
-		int pos = Utils.minIndex(vDist);
-		minValDists[k] = vDist[pos];
-		vDist[pos] = Double.POSITIVE_INFINITY;
-		pos = Utils.minIndex(nDist);
-		minNoiDists[k] = nDist[pos];
-		nDist[pos] = Double.POSITIVE_INFINITY;
-	    }
+	    m_ValidTree.nearest(new InstanceMetric(datum, m_ValidM, m_ValidV),
+				m_Choose, -1, minValDists);
+	    m_NoiseTree.nearest(new InstanceMetric(datum, m_NoiseM, m_NoiseV),
+				m_Choose, -1, minNoiDists);
 	    
 	    int x = 0,y = 0;
 	    while((x+y) < m_Choose){
@@ -657,10 +818,14 @@ public class MINND extends MIClassifier implements OptionHandler{
      * testing data 
      * (Default: 1) <p>
      *
+     * -num-threads number <br>
+     * Set number of threads used to process the training exemplars
+     * (Default: 1) <p>
+     *
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
-	Vector newVector = new Vector(3);
+	Vector newVector = new Vector(4);
 	
 	newVector.addElement(new Option("\tSet number of nearest neighbour\n" +
 					"\tfor prediction\n" +
@@ -674,6 +839,10 @@ public class MINND extends MIClassifier implements OptionHandler{
 					"\tfor cleansing the testing data\n" +
 					"\t(default 1)","E", 1, "-E <number of"
 					+"neighbours>"));
+	newVector.addElement(new Option("\tSet the number of threads used to\n"+
+					"\tprocess the training exemplars.\n"+
+					"\t(default 1)",
+					"num-threads", 1, "-num-threads <num>"));
 	return newVector.elements();
     }
     
@@ -702,6 +871,31 @@ public class MINND extends MIClassifier implements OptionHandler{
 	    m_Choose = Integer.parseInt(numNeighbourString);
 	else 
 	    m_Choose = 1;
+
+	String threadsString = Utils.getOption("num-threads", options);
+	if (threadsString.length() != 0) 
+	    setNumThreads(Integer.parseInt(threadsString));
+	else 
+	    setNumThreads(1);
+    }
+
+    /**
+     * Sets the number of threads used to find the weights of, and to
+     * pre-process, the training exemplars.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to process the training exemplars.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
     }
     
     /**
@@ -711,11 +905,13 @@ public class MINND extends MIClassifier implements OptionHandler{
      */
     public String [] getOptions() {
 	
-	String [] options = new String [6];
+	String [] options = new String [8];
 	int current = 0;
 	options[current++] = "-K"; options[current++] = "" + m_Neighbour;
 	options[current++] = "-S"; options[current++] = "" + m_Select;
 	options[current++] = "-E"; options[current++] = "" + m_Choose;
+	options[current++] = "-num-threads"; 
+	options[current++] = "" + m_NumThreads;
 	while (current < options.length) 
 	    options[current++] = "";
 	return options;
@@ -43,5 +43,15 @@ public interface MIUpdateableClassifier {
      * successfully
      */
     void updateClassifier(Exemplar example) throws Exception;   
+
+    /**
+     * Applies any updates still pending.  Classifiers that update their
+     * model with batches of exemplars use the exemplars of the last,
+     * incomplete batch; it is called once the last exemplar of a stream
+     * has been given to updateClassifier().
+     *
+     * @exception Exception if the updates could not be applied
+     */
+    void flushUpdates() throws Exception;
 }
 
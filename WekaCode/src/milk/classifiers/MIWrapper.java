@@ -67,7 +67,39 @@ public class MIWrapper
     
     protected int m_Method = 1;
 
+    /** The header of the data given to the base classifier, i.e. 
+	without the ID attribute */
+    protected Instances m_Header;
+
+    /** The PredictionContext of each thread */
+    protected transient ThreadLocal m_Contexts;
+
     //protected double[] m_Prior=null;
+
+    /**
+     * The objects reused by one thread to make predictions, so that
+     * scoring an exemplar allocates nothing but the result.  The base
+     * classifier must not change the instance it is given.
+     */
+    protected static class PredictionContext {
+	
+	/** The values of the instance given to the base classifier */
+	public double[] values;
+	
+	/** The instance given to the base classifier, backed by values */
+	public Instance instance;
+	
+	/**
+	 * Constructor
+	 *
+	 * @param header the header of the data given to the base classifier
+	 */
+	public PredictionContext(Instances header) {
+	    values = new double[header.numAttributes()];
+	    instance = new Instance(1.0, values);
+	    instance.setDataset(header);
+	}
+    }
     /**
      * Returns an enumeration describing the available options.
      *
@@ -284,11 +316,56 @@ public class MIWrapper
 	m_IdIndex = train.idIndex();
 	m_NumClasses = train.numClasses();
 	m_Attributes = new Instances(train.exemplar(0).getInstances(), 0);
+	m_Header = new Instances(m_Attributes, 0);
+	m_Header.deleteAttributeAt(m_IdIndex);// ID attribute useless
+	m_Contexts = new ThreadLocal();
 	//m_Prior = new double[m_NumClasses];	
 	Instances data = transform(train);
 	m_Classifier.buildClassifier(data);
 	//Utils.normalize(m_Prior);
     }		
+
+    /**
+     * Returns the calling thread's prediction context.
+     *
+     * @return the context
+     */
+    protected PredictionContext context() {
+	PredictionContext context = (PredictionContext)m_Contexts.get();
+	if (context == null) {
+	    context = new PredictionContext(m_Header);
+	    m_Contexts.set(context);
+	}
+	return context;
+    }
+
+    /**
+     * Restores the prediction contexts, which are not serialized.
+     *
+     * @param in the stream the classifier is read from
+     * @exception IOException if the classifier cannot be read
+     * @exception ClassNotFoundException if a class cannot be found
+     */
+    private void readObject(ObjectInputStream in) 
+	throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	m_Contexts = new ThreadLocal();
+    }
+
+    /**
+     * Copies the values of the given instance, apart from the ID, 
+     * into the given context's instance.
+     *
+     * @param ins the instance
+     * @param context the context
+     */
+    protected void fill(Instance ins, PredictionContext context) {
+	double[] values = context.values;
+	for(int k=0, idx=0; k < ins.numAttributes(); k++)
+	    if(k != m_IdIndex)
+		values[idx++] = ins.value(k);
+	context.instance.setWeight(ins.weight());
+    }
     
     /**
      * Computes the distribution for a given exemplar
@@ -299,17 +376,61 @@ public class MIWrapper
      */
     public double[] distributionForExemplar(Exemplar exmp) 
 	throws Exception {
+	return distribution(exmp, m_Classifier, context());
+    }
+
+    /**
+     * Computes the distributions for the given exemplars.  Each block
+     * of exemplars is scored with its own copy of the base classifier,
+     * which need not be thread-safe.
+     *
+     * @param data the exemplars to be classified
+     * @param numThreads the number of threads
+     * @return the distribution of each exemplar
+     * @exception Exception if the distributions can't be computed successfully
+     */
+    public double[][] distributionsForExemplars(final Exemplars data, 
+						int numThreads)
+	throws Exception {
+	
+	int numBlocks = numBlocks(data.numExemplars(), numThreads);
+	final Classifier[] base = (numBlocks > 1) ?
+	    Classifier.makeCopies(m_Classifier, numBlocks) : 
+	    new Classifier[] {m_Classifier};
+	return scoreBlocks(new BlockScorer() {
+		public void score(int block, int from, int to, double[][] dists)
+		    throws Exception {
+		    PredictionContext context = context();
+		    for(int i=from; i<to; i++)
+			dists[i] = distribution(data.exemplar(i), base[block], context);
+		}
+	    }, data.numExemplars(), numThreads);
+    }
+
+    /**
+     * Computes the distribution for a given exemplar with the given
+     * base classifier and prediction context
+     *
+     * @param exmp the exemplar for which distribution is computed
+     * @param classifier the base classifier
+     * @param context the calling thread's prediction context
+     * @return the distribution
+     * @exception Exception if the distribution can't be computed successfully
+     */
+    protected double[] distribution(Exemplar exmp, Classifier classifier,
+				    PredictionContext context)
+	throws Exception {
 	
 	// Extract the data
-	Instances insts = new Instances(exmp.getInstances());	
+	Instances insts = exmp.getInstances();	
 	double nI = (double)insts.numInstances();
-	insts.deleteAttributeAt(m_IdIndex);// ID attribute useless	
 	
 	// Compute the log-probability of the bag
 	double [] distribution = new double[m_NumClasses];
 	
 	for(int i=0; i<nI; i++){
-	    double[] dist = m_Classifier.distributionForInstance(insts.instance(i));
+	    fill(insts.instance(i), context);
+	    double[] dist = classifier.distributionForInstance(context.instance);
 	    for(int j=0; j<m_NumClasses; j++){
 		
 		switch(m_Method){
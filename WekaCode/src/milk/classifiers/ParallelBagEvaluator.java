@@ -0,0 +1,239 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ParallelBagEvaluator.java
+ *
+ */
+package milk.classifiers;
+
+import java.util.concurrent.*;
+
+/**
+ * Evaluates a BagFunction over all bags using a pool of threads. <p>
+ *
+ * The bags are split into at most MAX_BLOCKS contiguous blocks whose
+ * boundaries only depend on the number of bags.  The partial sums of
+ * the blocks are added up in block order, so the result is the same
+ * whatever the number of threads (including one, in which case the
+ * blocks are evaluated by the calling thread). <p>
+ *
+ * The pool is created on first use and must be released with
+ * shutdown() once the classifier has been built.
+ *
+ * @version $Revision: 1.0 $
+ */
+public class ParallelBagEvaluator {
+
+    /** The maximum number of blocks the bags are split into */
+    public static final int MAX_BLOCKS = 64;
+
+    /** The number of threads */
+    private int m_NumThreads;
+
+    /** The thread pool, null until needed */
+    private ExecutorService m_Pool = null;
+
+    /**
+     * Interface to the work done for one block.
+     */
+    private interface Block {
+	void evaluate(int block);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param numThreads the number of threads to use, 1 or less
+     * for evaluating in the calling thread
+     */
+    public ParallelBagEvaluator(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Returns the number of threads.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
+    }
+
+    /**
+     * Evaluates the objective function over all bags.
+     *
+     * @param f the function
+     * @param x the current values of variables
+     * @param numBags the number of bags
+     * @return the value of the objective function
+     */
+    public double objective(final BagFunction f, final double[] x,
+			    int numBags) {
+	Diagnostics.OBJECTIVE_EVALUATIONS.increment();
+	final int[] bounds = blocks(numBags);
+	final double[] partial = new double[bounds.length-1];
+	run(partial.length, new Block() {
+		public void evaluate(int b) {
+		    partial[b] = f.objective(x, bounds[b], bounds[b+1]);
+		}
+	    });
+
+	double sum = 0;
+	for(int b=0; b < partial.length; b++)
+	    sum += partial[b];
+	return sum;
+    }
+
+    /**
+     * Evaluates the gradient of the objective function over all bags.
+     *
+     * @param f the function
+     * @param x the current values of variables
+     * @param numBags the number of bags
+     * @return the gradient vector
+     */
+    public double[] gradient(final BagFunction f, final double[] x,
+			     int numBags) {
+	Diagnostics.GRADIENT_EVALUATIONS.increment();
+	final int[] bounds = blocks(numBags);
+	final double[][] partial = new double[bounds.length-1][x.length];
+	run(partial.length, new Block() {
+		public void evaluate(int b) {
+		    f.addGradient(x, bounds[b], bounds[b+1], partial[b]);
+		}
+	    });
+
+	double[] grad = new double[x.length];
+	for(int b=0; b < partial.length; b++)
+	    for(int p=0; p < grad.length; p++)
+		grad[p] += partial[b][p];
+	return grad;
+    }
+
+    /**
+     * Evaluates the objective function over all bags, letting it fill
+     * the given cache for x.
+     *
+     * @param f the function, which stores its values for x in cache
+     * @param x the current values of variables
+     * @param numBags the number of bags
+     * @param cache the cache filled in by f
+     * @return the value of the objective function
+     */
+    public double objective(BagFunction f, double[] x, int numBags,
+			    PredictorCache cache) {
+	cache.invalidate();
+	double value = objective(f, x, numBags);
+	cache.validate(x);
+	return value;
+    }
+
+    /**
+     * Evaluates the gradient of the objective function over all bags,
+     * reusing the values cached by the objective function.  If the
+     * cache does not hold the values for x, the objective function is
+     * evaluated first to fill it.
+     *
+     * @param f the function, which reads its values for x from cache
+     * @param x the current values of variables
+     * @param numBags the number of bags
+     * @param cache the cache filled in by f
+     * @return the gradient vector
+     */
+    public double[] gradient(BagFunction f, double[] x, int numBags,
+			     PredictorCache cache) {
+	if(!cache.isValidFor(x))
+	    objective(f, x, numBags, cache);
+	return gradient(f, x, numBags);
+    }
+
+    /**
+     * Releases the threads.  The evaluator can still be used afterwards,
+     * in which case a new pool is created.
+     */
+    public void shutdown() {
+	if(m_Pool != null){
+	    m_Pool.shutdown();
+	    m_Pool = null;
+	}
+    }
+
+    /**
+     * Splits the given number of bags into blocks.
+     *
+     * @param numBags the number of bags
+     * @return the index of the first bag of each block, followed by numBags
+     */
+    private static int[] blocks(int numBags) {
+	int numBlocks = Math.max(1, Math.min(numBags, MAX_BLOCKS));
+	int[] bounds = new int[numBlocks+1];
+	for(int b=0; b <= numBlocks; b++)
+	    bounds[b] = (int)((long)numBags * b / numBlocks);
+	return bounds;
+    }
+
+    /**
+     * Evaluates all blocks, in the calling thread if only one thread
+     * is used, and waits for them to finish.
+     *
+     * @param numBlocks the number of blocks
+     * @param block the work done for each block
+     * @exception RuntimeException if the evaluation of a block failed
+     */
+    private void run(int numBlocks, final Block block) {
+	if((m_NumThreads <= 1) || (numBlocks == 1)){
+	    for(int b=0; b < numBlocks; b++)
+		block.evaluate(b);
+	    return;
+	}
+
+	if(m_Pool == null)
+	    m_Pool = Executors.newFixedThreadPool(m_NumThreads, new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+
+	Future[] results = new Future[numBlocks];
+	for(int b=0; b < numBlocks; b++){
+	    final int index = b;
+	    results[b] = m_Pool.submit(new Runnable() {
+		    public void run() {
+			block.evaluate(index);
+		    }
+		});
+	}
+
+	try{
+	    for(int b=0; b < numBlocks; b++)
+		results[b].get();
+	}catch(InterruptedException e){
+	    for(int b=0; b < numBlocks; b++)
+		results[b].cancel(true);
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException("Evaluation interrupted");
+	}catch(ExecutionException e){
+	    for(int b=0; b < numBlocks; b++)
+		results[b].cancel(true);
+	    if(e.getCause() instanceof RuntimeException)
+		throw (RuntimeException)e.getCause();
+	    throw new RuntimeException(e.getCause());
+	}
+    }
+}
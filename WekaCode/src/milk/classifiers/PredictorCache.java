@@ -0,0 +1,96 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PredictorCache.java
+ *
+ */
+package milk.classifiers;
+
+
+import java.util.Arrays;
+
+/**
+ * Holds values an objective function computes for every instance (or
+ * bag) at one parameter vector, such as the exponentiated linear
+ * predictors, so that the gradient at the same point can reuse them
+ * instead of computing them again. <p>
+ *
+ * The objective function of each block of bags writes its own
+ * positions of values(), so the cache can be filled in by several
+ * threads at once (see ParallelBagEvaluator).
+ *
+ * @version $Revision: 1.0 $
+ */
+public class PredictorCache {
+
+    /** The cached values */
+    private double[] m_Values;
+
+    /** The parameters the values were computed for */
+    private double[] m_X = null;
+
+    /** Whether the values were computed for m_X */
+    private boolean m_Valid = false;
+
+    /**
+     * Constructor
+     *
+     * @param size the number of cached values
+     */
+    public PredictorCache(int size) {
+	m_Values = new double[size];
+    }
+
+    /**
+     * Returns the array holding the cached values.  It is not copied.
+     *
+     * @return the cached values
+     */
+    public final double[] values() {
+	return m_Values;
+    }
+
+    /**
+     * Returns whether the cached values were computed for the given
+     * parameters.
+     *
+     * @param x the parameters
+     * @return true if the values can be reused for x
+     */
+    public boolean isValidFor(double[] x) {
+	return m_Valid && Arrays.equals(m_X, x);
+    }
+
+    /**
+     * Marks the values as computed for the given parameters.
+     *
+     * @param x the parameters, which are copied
+     */
+    public void validate(double[] x) {
+	if((m_X == null) || (m_X.length != x.length))
+	    m_X = new double[x.length];
+	System.arraycopy(x, 0, m_X, 0, x.length);
+	m_Valid = true;
+    }
+
+    /**
+     * Marks the values as not computed for any parameters.
+     */
+    public void invalidate() {
+	m_Valid = false;
+    }
+}
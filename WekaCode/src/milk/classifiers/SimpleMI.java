@@ -44,7 +44,6 @@ import weka.core.*;
 public class SimpleMI extends MIWrapper implements OptionHandler, MITransform {  
   
     protected int m_TransformMethod = 1;
-    protected Exemplars m_Exemplars;
     /**
      * Returns an enumeration describing the available options.
      *
@@ -172,12 +171,10 @@ public class SimpleMI extends MIWrapper implements OptionHandler, MITransform {
 		    continue;
 		double value;
 		if(m_TransformMethod==1){
-		    value = insts.meanOrMode(j);
-		}
-		else{
-		    double[] minimax = minimax(insts, j);
-		    value = (minimax[0]+minimax[1])/2.0;
+		    value = exi.meanOrMode(j);
 		}
+		else
+		    value = midRange(exi, j);
 		newIns.setValue(attIdx++, value);
 	    }
 	    newIns.setClassValue(exi.classValue());
@@ -187,6 +184,84 @@ public class SimpleMI extends MIWrapper implements OptionHandler, MITransform {
 	return data;
     }
     
+    /**
+     * Get the average of the minimal and maximal value of a certain 
+     * attribute in an exemplar, from the exemplar's cached statistics.
+     * Infinite extremes are treated as missing, as in minimax().
+     *
+     * @param ex the exemplar
+     * @param attIndex the index of the attribute
+     * @return the mid-range of the attribute's values
+     */
+    private static double midRange(Exemplar ex, int attIndex){
+	double[] rt = ex.minimax(attIndex);
+	for(int j=0; j<2; j++)
+	    if(Double.isInfinite(rt[j]))
+		rt[j] = Double.NaN;
+	
+	return (rt[0]+rt[1])/2.0;
+    }
+
+    /**
+     * Get the weighted mean of a numeric attribute in a certain data,
+     * ignoring missing values, as Exemplar.meanOrMode(int) does, but
+     * without computing the exemplar's cached statistics.
+     *
+     * @param data the data
+     * @param attIndex the index of the attribute
+     * @return the mean, 0 if all values are missing
+     */
+    private static double mean(Instances data, int attIndex){
+	double sum = 0, sumOfWeights = 0;
+	for(int i=0; i<data.numInstances(); i++){
+	    Instance ins = data.instance(i);
+	    if(ins.isMissing(attIndex))
+		continue;
+	    double w = ins.weight();
+	    sumOfWeights += w;
+	    sum += w * ins.value(attIndex);
+	}
+	if(Utils.eq(sumOfWeights, 0))
+	    return 0;
+	return sum / sumOfWeights;
+    }
+
+    /**
+     * Get the average of the minimal and maximal value of a certain 
+     * attribute in a certain data, ignoring missing values, as 
+     * midRange(Exemplar, int) does, but without computing the 
+     * exemplar's cached statistics.
+     *
+     * @param data the data
+     * @param attIndex the index of the attribute
+     * @return the mid-range of the attribute's values, NaN if all 
+     * values are missing or an extreme is infinite
+     */
+    private static double midRange(Instances data, int attIndex){
+	double min = Double.NaN, max = Double.NaN;
+	for(int i=0; i<data.numInstances(); i++){
+	    Instance ins = data.instance(i);
+	    if(ins.isMissing(attIndex))
+		continue;
+	    double val = ins.value(attIndex);
+	    if(Double.isNaN(min)){
+		min = max = val;
+	    }
+	    else{
+		if(val < min)
+		    min = val;
+		if(val > max)
+		    max = val;
+	    }
+	}
+	if(Double.isInfinite(min))
+	    min = Double.NaN;
+	if(Double.isInfinite(max))
+	    max = Double.NaN;
+	
+	return (min+max)/2.0;
+    }
+
     /**
      * Get the minimal and maximal value of a certain attribute in a certain data
      *
@@ -211,19 +286,6 @@ public class SimpleMI extends MIWrapper implements OptionHandler, MITransform {
 	return rt;
     }
 
-    /**
-     * Builds the classifier
-     *
-     * @param train the training data to be used for generating the
-     * boosted classifier.
-     * @exception Exception if the classifier could not be built successfully
-     */
-    public void buildClassifier(Exemplars train) throws Exception {
-
-	super.buildClassifier(train);
-	m_Exemplars = new Exemplars(train, 1);
-    }		
-    
     /**
      * Computes the distribution for a given exemplar
      *
@@ -234,9 +296,28 @@ public class SimpleMI extends MIWrapper implements OptionHandler, MITransform {
     //public double[] distributionForExemplar(Exemplar exmp)
     public double classifyExemplar(Exemplar exmp) 
 	throws Exception {
-	Exemplars test = new Exemplars(m_Exemplars, 1);
-	test.add(exmp);
-	Instance datum = transform(test).firstInstance();
+	// Transform the exemplar as in transform(), into the
+	// calling thread's scratch instance.  The summaries are computed
+	// straight from the instances, so that a new exemplar does not
+	// build and cache statistics it is only summarized with once
+	Instances insts = exmp.getInstances();
+	PredictionContext context = context();
+	double[] values = context.values;
+	int attIdx = 0;
+	for(int j=0; j<insts.numAttributes(); j++){	
+	    if((j==m_IdIndex) || (j==m_ClassIndex))
+		continue;
+	    if(m_TransformMethod==1)
+		values[attIdx++] = insts.attribute(j).isNumeric() ?
+		    mean(insts, j) : exmp.meanOrMode(j);
+	    else
+		values[attIdx++] = midRange(insts, j);
+	}
+	while(attIdx < values.length)
+	    values[attIdx++] = Instance.missingValue();
+	values[m_Header.classIndex()] = exmp.classValue();
+	context.instance.setWeight(1.0);
+	Instance datum = context.instance;
 	//return ((DistributionClassifier)m_Classifier).
 	//  distributionForInstance(datum);	
 	return m_Classifier.classifyInstance(datum);	   
@@ -0,0 +1,390 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    SummaryTree.java
+ *
+ */
+package milk.classifiers;
+
+import java.io.*;
+import weka.core.*;
+
+/**
+ * A tree over exemplars summarised by a mean, a variance and a weight
+ * per dimension, used to find the exemplars nearest to a query without
+ * computing the distance to every exemplar. <p>
+ *
+ * Each node holds the range of the means, variances and weights of the
+ * exemplars below it.  The distance is supplied as a Metric which, apart
+ * from the exact distance to one exemplar, gives a lower bound of the
+ * distance to any exemplar whose summaries lie in the given ranges.  The
+ * nodes whose lower bound is larger than the distance of the kth nearest
+ * exemplar found so far are skipped. <p>
+ *
+ * The result is the same as when all distances are computed and the
+ * smallest one is picked k times with Utils.minIndex: ties are broken by
+ * the lower index, and when there are fewer than k candidates the
+ * remaining positions are index 0 at an infinite distance.
+ *
+ * @version $Revision: 1.0 $
+ */
+public class SummaryTree implements Serializable {
+
+    /** The maximum number of exemplars in a leaf */
+    public static final int LEAF_SIZE = 8;
+
+    /** The relative tolerance on the lower bounds, which may be 
+     *  rounded differently from the distances */
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * Interface to the distance from one query to the exemplars.
+     */
+    public interface Metric {
+
+	/**
+	 * Computes the distance to one exemplar.
+	 *
+	 * @param row the exemplar's index
+	 * @return the distance
+	 */
+	double distance(int row);
+
+	/**
+	 * Computes a lower bound of the distance to any exemplar whose
+	 * summaries lie in the given ranges in every dimension.
+	 *
+	 * @param meanLo the smallest mean of each dimension
+	 * @param meanHi the largest mean of each dimension
+	 * @param varLo the smallest variance of each dimension
+	 * @param varHi the largest variance of each dimension
+	 * @param weightLo the smallest weight of each dimension
+	 * @param weightHi the largest weight of each dimension
+	 * @return the lower bound
+	 */
+	double lowerBound(double[] meanLo, double[] meanHi, 
+			  double[] varLo, double[] varHi,
+			  double[] weightLo, double[] weightHi);
+    }
+
+    /**
+     * A node of the tree, holding the exemplars m_Rows[from..to-1].
+     */
+    private static class Node implements Serializable {
+	int from, to;
+	Node left = null, right = null;
+	double[] meanLo, meanHi, varLo, varHi, weightLo, weightHi;
+    }
+
+    /**
+     * The k nearest exemplars found so far, as a heap with the furthest
+     * one on top.
+     */
+    private static class TopK {
+	int size = 0;
+	int[] rows;
+	double[] dists;
+
+	TopK(int k) {
+	    rows = new int[k];
+	    dists = new double[k];
+	}
+
+	/** Whether (d1, r1) is further than (d2, r2) */
+	static boolean further(double d1, int r1, double d2, int r2) {
+	    return (d1 > d2) || ((d1 == d2) && (r1 > r2));
+	}
+
+	boolean isFull() {
+	    return size == rows.length;
+	}
+
+	double worst() {
+	    return dists[0];
+	}
+
+	void offer(int row, double dist) {
+	    if(Double.isNaN(dist))
+		return;
+	    if(size < rows.length){
+		int i = size++;
+		while(i > 0){
+		    int parent = (i-1)/2;
+		    if(!further(dist, row, dists[parent], rows[parent]))
+			break;
+		    rows[i] = rows[parent];
+		    dists[i] = dists[parent];
+		    i = parent;
+		}
+		rows[i] = row;
+		dists[i] = dist;
+	    }
+	    else if(further(dists[0], rows[0], dist, row)){
+		int i = 0;
+		while(true){
+		    int child = 2*i+1;
+		    if(child >= size)
+			break;
+		    if((child+1 < size) && 
+		       further(dists[child+1], rows[child+1], 
+			       dists[child], rows[child]))
+			child++;
+		    if(!further(dists[child], rows[child], dist, row))
+			break;
+		    rows[i] = rows[child];
+		    dists[i] = dists[child];
+		    i = child;
+		}
+		rows[i] = row;
+		dists[i] = dist;
+	    }
+	}
+    }
+
+    /** The summaries of the exemplars */
+    private double[][] m_Mean, m_Variance, m_Weight;
+
+    /** The exemplars in the tree, ordered by leaf */
+    private int[] m_Rows;
+
+    /** The root, null if the tree is empty */
+    private Node m_Root = null;
+
+    /**
+     * Builds a tree over the exemplars whose mean is not null.  The
+     * arrays are not copied and must not be changed while the tree is
+     * in use.
+     *
+     * @param mean the mean of each exemplar, null for left out exemplars
+     * @param var the variance of each exemplar
+     * @param weight the weight of each dimension of each exemplar
+     */
+    public SummaryTree(double[][] mean, double[][] var, double[][] weight) {
+	m_Mean = mean;
+	m_Variance = var;
+	m_Weight = weight;
+
+	int n = 0;
+	for(int i=0; i < mean.length; i++)
+	    if(mean[i] != null)
+		n++;
+	m_Rows = new int[n];
+	for(int i=0, idx=0; i < mean.length; i++)
+	    if(mean[i] != null)
+		m_Rows[idx++] = i;
+	if(n > 0)
+	    m_Root = build(0, n);
+    }
+
+    /**
+     * Builds the node holding the given exemplars, splitting them at the
+     * median of the dimension whose means are the most spread.
+     *
+     * @param from the position of the first exemplar in m_Rows
+     * @param to the position after the last exemplar
+     * @return the node
+     */
+    private Node build(int from, int to) {
+	Node node = new Node();
+	node.from = from;
+	node.to = to;
+	int dim = m_Mean[m_Rows[from]].length;
+	node.meanLo = new double[dim];
+	node.meanHi = new double[dim];
+	node.varLo = new double[dim];
+	node.varHi = new double[dim];
+	node.weightLo = new double[dim];
+	node.weightHi = new double[dim];
+	for(int j=0; j < dim; j++){
+	    node.meanLo[j] = node.varLo[j] = node.weightLo[j] = 
+		Double.POSITIVE_INFINITY;
+	    node.meanHi[j] = node.varHi[j] = node.weightHi[j] = 
+		Double.NEGATIVE_INFINITY;
+	}
+	for(int p=from; p < to; p++){
+	    int row = m_Rows[p];
+	    for(int j=0; j < dim; j++){
+		node.meanLo[j] = Math.min(node.meanLo[j], m_Mean[row][j]);
+		node.meanHi[j] = Math.max(node.meanHi[j], m_Mean[row][j]);
+		node.varLo[j] = Math.min(node.varLo[j], m_Variance[row][j]);
+		node.varHi[j] = Math.max(node.varHi[j], m_Variance[row][j]);
+		node.weightLo[j] = Math.min(node.weightLo[j], m_Weight[row][j]);
+		node.weightHi[j] = Math.max(node.weightHi[j], m_Weight[row][j]);
+	    }
+	}
+	if(to - from <= LEAF_SIZE)
+	    return node;
+
+	int split = 0;
+	for(int j=1; j < dim; j++)
+	    if((node.meanHi[j]-node.meanLo[j]) > 
+	       (node.meanHi[split]-node.meanLo[split]))
+		split = j;
+	if(!(node.meanHi[split] > node.meanLo[split]))
+	    return node; // All means equal (or missing)
+
+	double[] values = new double[to-from];
+	int[] rows = new int[to-from];
+	for(int p=from; p < to; p++){
+	    values[p-from] = m_Mean[m_Rows[p]][split];
+	    rows[p-from] = m_Rows[p];
+	}
+	int[] order = Utils.sort(values);
+	for(int p=0; p < order.length; p++)
+	    m_Rows[from+p] = rows[order[p]];
+
+	int middle = from + (to-from)/2;
+	node.left = build(from, middle);
+	node.right = build(middle, to);
+	return node;
+    }
+
+    /**
+     * Finds the k nearest exemplars.
+     *
+     * @param metric the distance from the query
+     * @param k the number of exemplars
+     * @param exclude an exemplar left out of the search, or -1
+     * @param dists filled in with the distance of each exemplar found,
+     * may be null
+     * @return the indices of the k nearest exemplars, nearest first
+     */
+    public int[] nearest(Metric metric, int k, int exclude, double[] dists) {
+	TopK top = new TopK(Math.max(k, 1));
+	if(m_Root != null)
+	    search(m_Root, metric, exclude, top,
+		   metric.lowerBound(m_Root.meanLo, m_Root.meanHi, 
+				     m_Root.varLo, m_Root.varHi,
+				     m_Root.weightLo, m_Root.weightHi));
+
+	// Sort the exemplars found, nearest first
+	int n = top.size;
+	for(int p=1; p < n; p++){
+	    int row = top.rows[p];
+	    double dist = top.dists[p];
+	    int q = p;
+	    for(; (q > 0) && TopK.further(top.dists[q-1], top.rows[q-1], 
+					  dist, row); q--){
+		top.rows[q] = top.rows[q-1];
+		top.dists[q] = top.dists[q-1];
+	    }
+	    top.rows[q] = row;
+	    top.dists[q] = dist;
+	}
+
+	int[] result = new int[k];
+	for(int p=0; p < k; p++){
+	    if(p < n)
+		result[p] = top.rows[p];
+	    if(dists != null)
+		dists[p] = (p < n) ? top.dists[p] : Double.POSITIVE_INFINITY;
+	}
+	return result;
+    }
+
+    /**
+     * Searches the given node for exemplars nearer than the ones
+     * found so far, visiting the child with the smaller bound first.
+     *
+     * @param node the node
+     * @param metric the distance from the query
+     * @param exclude an exemplar left out of the search, or -1
+     * @param top the nearest exemplars found so far
+     * @param bound the lower bound of the distances in the node
+     */
+    private void search(Node node, Metric metric, int exclude, TopK top,
+			double bound) {
+	if(top.isFull() && pruned(bound, top.worst()))
+	    return;
+
+	if(node.left == null){
+	    for(int p=node.from; p < node.to; p++){
+		int row = m_Rows[p];
+		if(row != exclude)
+		    top.offer(row, metric.distance(row));
+	    }
+	    return;
+	}
+
+	Node first = node.left, second = node.right;
+	double firstBound = lowerBound(metric, first), 
+	    secondBound = lowerBound(metric, second);
+	if(secondBound < firstBound){
+	    Node tmp = first;
+	    first = second;
+	    second = tmp;
+	    double b = firstBound;
+	    firstBound = secondBound;
+	    secondBound = b;
+	}
+	search(first, metric, exclude, top, firstBound);
+	search(second, metric, exclude, top, secondBound);
+    }
+
+    /**
+     * Computes the lower bound of the distances in the given node.
+     *
+     * @param metric the distance from the query
+     * @param node the node
+     * @return the lower bound
+     */
+    private static double lowerBound(Metric metric, Node node) {
+	return metric.lowerBound(node.meanLo, node.meanHi, 
+				 node.varLo, node.varHi,
+				 node.weightLo, node.weightHi);
+    }
+
+    /**
+     * Whether a node with the given lower bound can be skipped.
+     *
+     * @param bound the node's lower bound
+     * @param worst the distance of the kth nearest exemplar so far
+     * @return true if no exemplar of the node can be nearer
+     */
+    private static boolean pruned(double bound, double worst) {
+	return bound - TOLERANCE*(Math.abs(bound)+1.0) > worst;
+    }
+
+    /**
+     * Returns the smallest product of two values lying in the given 
+     * ranges, where 0 times an infinite value is 0.
+     *
+     * @param aLo the smallest first value
+     * @param aHi the largest first value
+     * @param bLo the smallest second value
+     * @param bHi the largest second value
+     * @return the smallest product
+     */
+    public static double minProduct(double aLo, double aHi, 
+				    double bLo, double bHi) {
+	return Math.min(Math.min(product(aLo, bLo), product(aLo, bHi)),
+			Math.min(product(aHi, bLo), product(aHi, bHi)));
+    }
+
+    /**
+     * Multiplies two values, where 0 times an infinite value is 0.
+     *
+     * @param a the first value
+     * @param b the second value
+     * @return the product
+     */
+    private static double product(double a, double b) {
+	if((a == 0) || (b == 0))
+	    return 0;
+	return a*b;
+    }
+}
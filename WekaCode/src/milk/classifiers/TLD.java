@@ -87,6 +87,9 @@ public class TLD extends MIClassifier implements OptionHandler{
     protected double m_Cutoff;
 
     protected boolean m_UseEmpiricalCutOff = false;    
+
+    /** The number of threads used to estimate the dimensions */
+    protected int m_NumThreads = 1;
     
     /**
      *
@@ -94,6 +97,7 @@ public class TLD extends MIClassifier implements OptionHandler{
      * @exception if the model cannot be built properly
      */    
     public void buildClassifier(Exemplars exs)throws Exception{
+	long[] counters = Diagnostics.snapshot();
 	m_ClassIndex = exs.classIndex();
 	m_IdIndex = exs.idIndex();
 	int numegs = exs.numExemplars();
@@ -140,18 +144,13 @@ public class TLD extends MIClassifier implements OptionHandler{
 	    Exemplar px = pos.exemplar(v);
 	    m_MeanP[v] = px.meanOrMode();
 	    m_VarianceP[v] = px.variance();
-	    Instances pxi =  px.getInstances();
 	    
 	    for (int w=0,t=0; w < m_Dimension; w++,t++){		
 		if((t==m_ClassIndex) || (t==m_IdIndex))
 		    t++;		
 
 		if(!Double.isNaN(m_MeanP[v][w])){
-		    for(int u=0;u<pxi.numInstances();u++){
-			Instance ins = pxi.instance(u);			
-			if(!ins.isMissing(t))
-			    m_SumP[v][w] += ins.weight();			   
-		    }   
+		    m_SumP[v][w] = px.sumOfWeights(t);
 		    numExsP[w]++;  
 		    pSumVal[w] += m_MeanP[v][w];
 		    meanVarP[w] += m_MeanP[v][w]*m_MeanP[v][w];    
@@ -169,16 +168,13 @@ public class TLD extends MIClassifier implements OptionHandler{
 	    Exemplar nx = neg.exemplar(v);
 	    m_MeanN[v] = nx.meanOrMode();
 	    m_VarianceN[v] = nx.variance();
-	    Instances nxi =  nx.getInstances();
 	    
 	    for (int w=0,t=0; w < m_Dimension; w++,t++){		
 		if((t==m_ClassIndex) || (t==m_IdIndex))
 		    t++;		
 		
 		if(!Double.isNaN(m_MeanN[v][w])){
-		    for(int u=0;u<nxi.numInstances();u++)
-			if(!nxi.instance(u).isMissing(t))
-			    m_SumN[v][w] += nxi.instance(u).weight();
+		    m_SumN[v][w] = nx.sumOfWeights(t);
 		    numExsN[w]++; 	
 		    nSumVal[w] += m_MeanN[v][w];
 		    meanVarN[w] += m_MeanN[v][w]*m_MeanN[v][w]; 
@@ -205,28 +201,21 @@ public class TLD extends MIClassifier implements OptionHandler{
 	    varMeanN[w] /= numExsN[w];
 	}
 	
-	//Bounds and parameter values for each run
-	double[][] bounds = new double[2][4];
-	double[] pThisParam = new double[4], 
-	    nThisParam = new double[4];
-	
 	// Initial values for parameters
+	final double[][] pInit = new double[m_Dimension][4], 
+	    nInit = new double[m_Dimension][4];
 	double a, b, w, m;
-	
-	// Optimize for one dimension
 	for (int x=0; x < m_Dimension; x++){     
-	    System.err.println("\n\n!!!!!!!!!!!!!!!!!!!!!!???Dimension #"+x);
-	    
 	    // Positive examplars: first run
 	    a = (maxVarsP[x]>ZERO) ? maxVarsP[x]:1.0; 
 	    b = a/varMeanP[x]+2.0; // a/(b-2) = E(\sigma^2)
 	    w = meanVarP[x]/varMeanP[x]; // E[var(\mu)] = w*E[\sigma^2]
 	    if(w<=ZERO) w=1.0;
 	    m = pSumVal[x]; 	  
-	    pThisParam[0] = a;    // a
-	    pThisParam[1] = b;  // b
-	    pThisParam[2] = w;  // w
-	    pThisParam[3] = m;  // m
+	    pInit[x][0] = a;    // a
+	    pInit[x][1] = b;  // b
+	    pInit[x][2] = w;  // w
+	    pInit[x][3] = m;  // m
 	    
 	    // Negative examplars: first run
 	    a = (maxVarsN[x]>ZERO) ? maxVarsN[x]:1.0; 
@@ -234,162 +223,35 @@ public class TLD extends MIClassifier implements OptionHandler{
 	    w = meanVarN[x]/varMeanN[x]; // E[var(\mu)] = w*E[\sigma^2]
 	    if(w<=ZERO) w=1.0;
 	    m = nSumVal[x]; 	  
-	    nThisParam[0] = a;    // a
-	    nThisParam[1] = b;  // b
-	    nThisParam[2] = w;  // w
-	    nThisParam[3] = m;  // m
-	    
-	    // Bound constraints
-	    bounds[0][0] = ZERO; // a > 0
-	    bounds[0][1] = 2.0+ZERO;  // b > 2 
-	    bounds[0][2] = ZERO; // w > 0
-	    bounds[0][3] = Double.NaN;
-	    
-	    for(int t=0; t<4; t++){
-		bounds[1][t] = Double.NaN;
-		m_ParamsP[4*x+t] = pThisParam[t];	
-		m_ParamsN[4*x+t] = nThisParam[t];
-	    }
-	    double pminVal=Double.MAX_VALUE, nminVal=Double.MAX_VALUE;
-	    Random whichEx = new Random(m_Seed); 
-	    TLD_Optm pOp=null, nOp=null;	
-	    boolean isRunValid = true;
-	    double[] sumP=new double[pnum], meanP=new double[pnum],
-		varP=new double[pnum];
-	    double[] sumN=new double[nnum], meanN=new double[nnum],
-		varN=new double[nnum];
-	    
-	    // One dimension
-	    for(int p=0; p<pnum; p++){
-		sumP[p] = m_SumP[p][x];
-		meanP[p] = m_MeanP[p][x];
-		varP[p] = m_VarianceP[p][x];
-	    }
-	    for(int q=0; q<nnum; q++){
-		sumN[q] = m_SumN[q][x];
-		meanN[q] = m_MeanN[q][x];
-		varN[q] = m_VarianceN[q][x];
-	    }
-	    
-	    for(int y=0; y<m_Run;){
-		System.err.println("\n\n!!!!!!!!!!!!!!!!!!!!!!???Run #"+y);
-		double thisMin;
-		
-		System.err.println("\nPositive exemplars");
-		pOp = new TLD_Optm();
-		pOp.setNum(sumP);
-		pOp.setSSquare(varP);
-		pOp.setXBar(meanP);
-
-		pThisParam = pOp.findArgmin(pThisParam, bounds);
-		while(pThisParam==null){
-		    pThisParam = pOp.getVarbValues();		    
-		    System.err.println("!!! 200 iterations finished, not enough!");
-		    pThisParam = pOp.findArgmin(pThisParam, bounds);
-		}	
-		
-		thisMin = pOp.getMinFunction();
-		if(!Double.isNaN(thisMin) && (thisMin<pminVal)){
-		    pminVal = thisMin;
-		    for(int z=0; z<4; z++)
-			m_ParamsP[4*x+z] = pThisParam[z];
-		}
-		
-		if(Double.isNaN(thisMin)){
-		    pThisParam = new double[4];
-		    isRunValid =false;
-		}
-		
-		System.err.println("\nNegative exemplars");
-		nOp = new TLD_Optm();
-		nOp.setNum(sumN);
-		nOp.setSSquare(varN);
-		nOp.setXBar(meanN);
-
-		nThisParam = nOp.findArgmin(nThisParam, bounds);
-		while(nThisParam==null){
-		    nThisParam = nOp.getVarbValues();
-		    System.err.println("!!! 200 iterations finished, not enough!");
-		    nThisParam = nOp.findArgmin(nThisParam, bounds);
-		}	
-		thisMin = nOp.getMinFunction();
-		if(!Double.isNaN(thisMin) && (thisMin<nminVal)){
-		    nminVal = thisMin;
-		    for(int z=0; z<4; z++)
-			m_ParamsN[4*x+z] = nThisParam[z];     
-		}
-		
-		if(Double.isNaN(thisMin)){
-		    nThisParam = new double[4];
-		    isRunValid =false;
-		}
-		
-		if(!isRunValid){ y--; isRunValid=true; } 		
-		
-		if(++y<m_Run){
-		    // Change the initial parameters and restart	   	    
-		    int pone = whichEx.nextInt(pnum), // Randomly pick one pos. exmpl.
-			none = whichEx.nextInt(nnum);
-		    
-		    // Positive exemplars: next run 
-		    while((m_SumP[pone][x]<=1.0)||Double.isNaN(m_MeanP[pone][x]))
-			pone = whichEx.nextInt(pnum);
-		    
-		    a = m_VarianceP[pone][x]/(m_SumP[pone][x]-1.0); 		
-		    if(a<=ZERO) a=m_ParamsN[4*x]; // Change to negative params
-		    m = m_MeanP[pone][x];
-		    double sq = (m-m_ParamsP[4*x+3])*(m-m_ParamsP[4*x+3]);
-		    
-		    b = a*m_ParamsP[4*x+2]/sq+2.0; // b=a/Var+2, assuming Var=Sq/w'
-		    if((b<=ZERO) || Double.isNaN(b) || Double.isInfinite(b))
-			b=m_ParamsN[4*x+1];
-		    
-		    w = sq*(m_ParamsP[4*x+1]-2.0)/m_ParamsP[4*x];//w=Sq/Var, assuming Var=a'/(b'-2)
-		    if((w<=ZERO) || Double.isNaN(w) || Double.isInfinite(w))
-			w=m_ParamsN[4*x+2];
-		
-		    pThisParam[0] = a;    // a
-		    pThisParam[1] = b;  // b
-		    pThisParam[2] = w;  // w
-		    pThisParam[3] = m;  // m	    
-		    
-		    // Negative exemplars: next run 
-		    while((m_SumN[none][x]<=1.0)||Double.isNaN(m_MeanN[none][x]))
-			none = whichEx.nextInt(nnum);	    
-		    
-		    a = m_VarianceN[none][x]/(m_SumN[none][x]-1.0);	
-		    if(a<=ZERO) a=m_ParamsP[4*x];       
-		    m = m_MeanN[none][x];
-		    sq = (m-m_ParamsN[4*x+3])*(m-m_ParamsN[4*x+3]);
-		    
-		    b = a*m_ParamsN[4*x+2]/sq+2.0; // b=a/Var+2, assuming Var=Sq/w'
-		    if((b<=ZERO) || Double.isNaN(b) || Double.isInfinite(b))
-			b=m_ParamsP[4*x+1];
-		    
-		    w = sq*(m_ParamsN[4*x+1]-2.0)/m_ParamsN[4*x];//w=Sq/Var, assuming Var=a'/(b'-2)
-		    if((w<=ZERO) || Double.isNaN(w) || Double.isInfinite(w))
-			w=m_ParamsP[4*x+2];
-		    
-		    nThisParam[0] = a;    // a
-		    nThisParam[1] = b;  // b
-		    nThisParam[2] = w;  // w
-		    nThisParam[3] = m;  // m	    		
-		}
-	    }	    	    	    
+	    nInit[x][0] = a;    // a
+	    nInit[x][1] = b;  // b
+	    nInit[x][2] = w;  // w
+	    nInit[x][3] = m;  // m
 	}
 	
-	for (int x=0, y=0; x<m_Dimension; x++, y++){
-	    if((x==exs.classIndex()) || (x==exs.idIndex()))
-		y++;
-	    a=m_ParamsP[4*x]; b=m_ParamsP[4*x+1]; 
-	    w=m_ParamsP[4*x+2]; m=m_ParamsP[4*x+3];
-	    System.err.println("\n\n???Positive: ( "+exs.attribute(y)+
-			       "): a="+a+", b="+b+", w="+w+", m="+m);
-	    
-	    a=m_ParamsN[4*x]; b=m_ParamsN[4*x+1]; 
-	    w=m_ParamsN[4*x+2]; m=m_ParamsN[4*x+3];
-	    System.err.println("???Negative: ("+exs.attribute(y)+
-			       "): a="+a+", b="+b+", w="+w+", m="+m);
+	// Optimize the dimensions independently, in parallel blocks
+	final int numP = pnum, numN = nnum;
+	runBlocks(new RangeTask() {
+		public void run(int block, int from, int to) throws Exception {
+		    for(int x=from; x<to; x++)
+			fitDimension(x, numP, numN, pInit[x], nInit[x]);
+		}
+	    }, m_Dimension, m_NumThreads);
+	
+	if(Diagnostics.INFO){
+	    for (int x=0, y=0; x<m_Dimension; x++, y++){
+		if((x==exs.classIndex()) || (x==exs.idIndex()))
+		    y++;
+		a=m_ParamsP[4*x]; b=m_ParamsP[4*x+1]; 
+		w=m_ParamsP[4*x+2]; m=m_ParamsP[4*x+3];
+		Diagnostics.log("TLD", "Positive: ("+exs.attribute(y)+
+				"): a="+a+", b="+b+", w="+w+", m="+m);
+	    
+		a=m_ParamsN[4*x]; b=m_ParamsN[4*x+1]; 
+		w=m_ParamsN[4*x+2]; m=m_ParamsN[4*x+3];
+		Diagnostics.log("TLD", "Negative: ("+exs.attribute(y)+
+				"): a="+a+", b="+b+", w="+w+", m="+m);
+	    }
 	}
 
 	if(m_UseEmpiricalCutOff){	
@@ -409,9 +271,177 @@ public class TLD extends MIClassifier implements OptionHandler{
 	else
 	    m_Cutoff = -Math.log((double)pnum/(double)nnum);
      
-	System.err.println("???Cut-off="+m_Cutoff);
+	if(Diagnostics.INFO){
+	    Diagnostics.log("TLD", "Cut-off="+m_Cutoff);
+	    Diagnostics.log("TLD", Diagnostics.counters(counters));
+	}
     }        
     
+    /**
+     * Estimates the parameters of one dimension for both classes, 
+     * reading only the per-exemplar statistics of that dimension and
+     * writing only its entries of m_ParamsP and m_ParamsN, so that 
+     * dimensions can be estimated concurrently.
+     *
+     * @param x the dimension
+     * @param pnum the number of positive exemplars
+     * @param nnum the number of negative exemplars
+     * @param pThisParam the initial parameters of the positive class
+     * @param nThisParam the initial parameters of the negative class
+     * @exception Exception if the optimization fails
+     */
+    private void fitDimension(int x, int pnum, int nnum, 
+			      double[] pThisParam, double[] nThisParam)
+	throws Exception {
+	if(Diagnostics.DEBUG)
+	    Diagnostics.log("TLD", "Dimension #"+x);
+	
+	// Bound constraints
+	double[][] bounds = new double[2][4];
+	bounds[0][0] = ZERO; // a > 0
+	bounds[0][1] = 2.0+ZERO;  // b > 2 
+	bounds[0][2] = ZERO; // w > 0
+	bounds[0][3] = Double.NaN;
+	
+	for(int t=0; t<4; t++){
+	    bounds[1][t] = Double.NaN;
+	    m_ParamsP[4*x+t] = pThisParam[t];	
+	    m_ParamsN[4*x+t] = nThisParam[t];
+	}
+	
+	// Starting values of the restarts
+	double a, b, w, m;
+	Random whichEx = new Random(m_Seed); 
+	double pminVal=Double.MAX_VALUE, nminVal=Double.MAX_VALUE;
+	TLD_Optm pOp=null, nOp=null;	
+	boolean isRunValid = true;
+	double[] sumP=new double[pnum], meanP=new double[pnum],
+	    varP=new double[pnum];
+	double[] sumN=new double[nnum], meanN=new double[nnum],
+	    varN=new double[nnum];
+	
+	// One dimension
+	for(int p=0; p<pnum; p++){
+	    sumP[p] = m_SumP[p][x];
+	    meanP[p] = m_MeanP[p][x];
+	    varP[p] = m_VarianceP[p][x];
+	}
+	for(int q=0; q<nnum; q++){
+	    sumN[q] = m_SumN[q][x];
+	    meanN[q] = m_MeanN[q][x];
+	    varN[q] = m_VarianceN[q][x];
+	}
+	
+	for(int y=0; y<m_Run;){
+	    if(Diagnostics.DEBUG)
+		Diagnostics.log("TLD", "Dimension #"+x+", run #"+y);
+	    double thisMin;
+	    
+	    pOp = new TLD_Optm();
+	    pOp.setNum(sumP);
+	    pOp.setSSquare(varP);
+	    pOp.setXBar(meanP);
+
+	    pThisParam = pOp.findArgmin(pThisParam, bounds);
+	    while(pThisParam==null){
+		pThisParam = pOp.getVarbValues();		    
+		if(Diagnostics.DEBUG)
+		    Diagnostics.log("TLD", "Dimension #"+x+
+				    ": 200 iterations finished, not enough!");
+		pThisParam = pOp.findArgmin(pThisParam, bounds);
+	    }	
+	    
+	    thisMin = pOp.getMinFunction();
+	    if(!Double.isNaN(thisMin) && (thisMin<pminVal)){
+		pminVal = thisMin;
+		for(int z=0; z<4; z++)
+		    m_ParamsP[4*x+z] = pThisParam[z];
+	    }
+	    
+	    if(Double.isNaN(thisMin)){
+		pThisParam = new double[4];
+		isRunValid =false;
+	    }
+	    
+	    nOp = new TLD_Optm();
+	    nOp.setNum(sumN);
+	    nOp.setSSquare(varN);
+	    nOp.setXBar(meanN);
+
+	    nThisParam = nOp.findArgmin(nThisParam, bounds);
+	    while(nThisParam==null){
+		nThisParam = nOp.getVarbValues();
+		if(Diagnostics.DEBUG)
+		    Diagnostics.log("TLD", "Dimension #"+x+
+				    ": 200 iterations finished, not enough!");
+		nThisParam = nOp.findArgmin(nThisParam, bounds);
+	    }	
+	    thisMin = nOp.getMinFunction();
+	    if(!Double.isNaN(thisMin) && (thisMin<nminVal)){
+		nminVal = thisMin;
+		for(int z=0; z<4; z++)
+		    m_ParamsN[4*x+z] = nThisParam[z];     
+	    }
+	    
+	    if(Double.isNaN(thisMin)){
+		nThisParam = new double[4];
+		isRunValid =false;
+	    }
+	    
+	    if(!isRunValid){ y--; isRunValid=true; } 		
+	    
+	    if(++y<m_Run){
+		// Change the initial parameters and restart	   	    
+		int pone = whichEx.nextInt(pnum), // Randomly pick one pos. exmpl.
+		    none = whichEx.nextInt(nnum);
+		
+		// Positive exemplars: next run 
+		while((m_SumP[pone][x]<=1.0)||Double.isNaN(m_MeanP[pone][x]))
+		    pone = whichEx.nextInt(pnum);
+		
+		a = m_VarianceP[pone][x]/(m_SumP[pone][x]-1.0); 		
+		if(a<=ZERO) a=m_ParamsN[4*x]; // Change to negative params
+		m = m_MeanP[pone][x];
+		double sq = (m-m_ParamsP[4*x+3])*(m-m_ParamsP[4*x+3]);
+		
+		b = a*m_ParamsP[4*x+2]/sq+2.0; // b=a/Var+2, assuming Var=Sq/w'
+		if((b<=ZERO) || Double.isNaN(b) || Double.isInfinite(b))
+		    b=m_ParamsN[4*x+1];
+		
+		w = sq*(m_ParamsP[4*x+1]-2.0)/m_ParamsP[4*x];//w=Sq/Var, assuming Var=a'/(b'-2)
+		if((w<=ZERO) || Double.isNaN(w) || Double.isInfinite(w))
+		    w=m_ParamsN[4*x+2];
+	    
+		pThisParam[0] = a;    // a
+		pThisParam[1] = b;  // b
+		pThisParam[2] = w;  // w
+		pThisParam[3] = m;  // m	    
+		
+		// Negative exemplars: next run 
+		while((m_SumN[none][x]<=1.0)||Double.isNaN(m_MeanN[none][x]))
+		    none = whichEx.nextInt(nnum);	    
+		
+		a = m_VarianceN[none][x]/(m_SumN[none][x]-1.0);	
+		if(a<=ZERO) a=m_ParamsP[4*x];       
+		m = m_MeanN[none][x];
+		sq = (m-m_ParamsN[4*x+3])*(m-m_ParamsN[4*x+3]);
+		
+		b = a*m_ParamsN[4*x+2]/sq+2.0; // b=a/Var+2, assuming Var=Sq/w'
+		if((b<=ZERO) || Double.isNaN(b) || Double.isInfinite(b))
+		    b=m_ParamsP[4*x+1];
+		
+		w = sq*(m_ParamsN[4*x+1]-2.0)/m_ParamsN[4*x];//w=Sq/Var, assuming Var=a'/(b'-2)
+		if((w<=ZERO) || Double.isNaN(w) || Double.isInfinite(w))
+		    w=m_ParamsP[4*x+2];
+		
+		nThisParam[0] = a;    // a
+		nThisParam[1] = b;  // b
+		nThisParam[2] = w;  // w
+		nThisParam[3] = m;  // m	    		
+	    }
+	}
+    }
+
     /**
      *
      * @param ex the given test exemplar
@@ -420,25 +450,56 @@ public class TLD extends MIClassifier implements OptionHandler{
      * successfully
      */
     public double classifyExemplar(Exemplar e)throws Exception{
-	Exemplar ex = new Exemplar(e);
-	Instances exi = ex.getInstances();
+	double logOdds = logOdds(e);
+	return (logOdds > m_Cutoff) ? 0 : 1 ;
+    }
+
+    /**
+     * Classifies the given exemplars, returning for each exemplar a
+     * distribution with 1 for the predicted class.
+     *
+     * @param data the exemplars to be classified
+     * @param numThreads the number of threads
+     * @return the distribution of each exemplar
+     * @exception Exception if the exemplars could not be classified
+     * successfully
+     */
+    public double[][] distributionsForExemplars(final Exemplars data, 
+						int numThreads)
+	throws Exception {
+	
+	final int numClasses = data.numClasses();
+	return scoreBlocks(new BlockScorer() {
+		public void score(int block, int from, int to, double[][] dists){
+		    for(int i=from; i<to; i++){
+			dists[i] = new double[numClasses];
+			dists[i][(logOdds(data.exemplar(i)) > m_Cutoff) ? 0 : 1] = 1.0;
+		    }
+		}
+	    }, data.numExemplars(), numThreads);
+    }
+
+    /**
+     * Computes the log-likelihood ratio of the given exemplar.
+     *
+     * @param ex the exemplar, which is not changed
+     * @return the log-likelihood ratio of the positive to the negative class
+     */
+    private double logOdds(Exemplar ex){
 	double[] n = new double[m_Dimension], xBar = ex.meanOrMode(), 
 	    sSq = ex.variance();
 	
 	for (int w=0, t=0; w < m_Dimension; w++, t++){
 	    if((t==m_ClassIndex) || (t==m_IdIndex))
 		t++;	
-	    for(int u=0;u<exi.numInstances();u++)
-		if(!exi.instance(u).isMissing(t))
-		    n[w] += exi.instance(u).weight();
+	    n[w] = ex.sumOfWeights(t);
 	    
 	    sSq[w] = sSq[w]*(n[w]-1.0);
 	    if(sSq[w] <= 0.0)
 		sSq[w] = 0.0;
 	}
 	
-	double logOdds = likelihoodRatio(n, xBar, sSq);
-	return (logOdds > m_Cutoff) ? 0 : 1 ;
+	return likelihoodRatio(n, xBar, sSq);
     }
     
     private double likelihoodRatio(double[] n, double[] xBar, double[] sSq){	
@@ -447,7 +508,6 @@ public class TLD extends MIClassifier implements OptionHandler{
 	for (int x=0; x<m_Dimension; x++){
 	    if(Double.isNaN(xBar[x])) continue; // All missing values
 	    
-	    int halfN = ((int)n[x])/2;	
 	    //Log-likelihood for positive 
 	    double a=m_ParamsP[4*x], b=m_ParamsP[4*x+1], 
 		w=m_ParamsP[4*x+2], m=m_ParamsP[4*x+3];
@@ -455,11 +515,7 @@ public class TLD extends MIClassifier implements OptionHandler{
 		- 0.5*(b+n[x])*Math.log((1.0+n[x]*w)*(a+sSq[x])+
 					n[x]*(xBar[x]-m)*(xBar[x]-m))
 		- 0.5*n[x]*Math.log(Math.PI);
-	    for(int y=1; y<=halfN; y++)
-		LLP += Math.log(b/2.0+n[x]/2.0-(double)y);
-	    
-	    if(n[x]/2.0 > halfN) // n is odd
-		LLP += TLD_Optm.diffLnGamma(b/2.0);
+	    LLP += TLD_Optm.lnGammaSum(b/2.0, n[x]);
 	    
 	    //Log-likelihood for negative 
 	    a=m_ParamsN[4*x];
@@ -470,11 +526,7 @@ public class TLD extends MIClassifier implements OptionHandler{
 		- 0.5*(b+n[x])*Math.log((1.0+n[x]*w)*(a+sSq[x])+
 					n[x]*(xBar[x]-m)*(xBar[x]-m))
 		- 0.5*n[x]*Math.log(Math.PI);
-	    for(int y=1; y<=halfN; y++)
-		LLN += Math.log(b/2.0+n[x]/2.0-(double)y);	
-	    
-	    if(n[x]/2.0 > halfN) // n is odd
-		LLN += TLD_Optm.diffLnGamma(b/2.0);   
+	    LLN += TLD_Optm.lnGammaSum(b/2.0, n[x]);
 	}
 	
 	return LLP - LLN;
@@ -602,6 +654,9 @@ public class TLD extends MIClassifier implements OptionHandler{
      * -R <numOfRuns> Set the number of multiple runs needed for searching the MLE.
      * (default: 1)
      *
+     * -num-threads <num> Set the number of threads used to estimate the
+     * parameters of the dimensions. (default: 1)
+     *
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
@@ -612,6 +667,9 @@ public class TLD extends MIClassifier implements OptionHandler{
 	newVector.addElement(new Option("\tSet the number of multiple runs \n"+
 					"\tneeded for searching the MLE.\n",
 					"R", 1, "-R <numOfRuns>"));
+	newVector.addElement(new Option("\tSet the number of threads used to\n"+
+					"\testimate the parameters of the dimensions.\n",
+					"num-threads", 1, "-num-threads <num>"));
 	return newVector.elements();
     }
     
@@ -629,6 +687,32 @@ public class TLD extends MIClassifier implements OptionHandler{
 	    m_Run = Integer.parseInt(runString);
 	else 
 	    m_Run = 1;	
+
+	String threadsString = Utils.getOption("num-threads", options);
+	if (threadsString.length() != 0) 
+	    setNumThreads(Integer.parseInt(threadsString));
+	else 
+	    setNumThreads(1);
+    }
+
+    /**
+     * Sets the number of threads used to estimate the parameters of
+     * the dimensions, which are independent of each other.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to estimate the parameters of
+     * the dimensions.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
     }
     
     /**
@@ -638,11 +722,13 @@ public class TLD extends MIClassifier implements OptionHandler{
      */
     public String [] getOptions() {
 	
-	String [] options = new String [3];
+	String [] options = new String [5];
 	int current = 0;
 	options[current++] = "-C";
 	options[current++] = "-R";
 	options[current++] = ""+m_Run;
+	options[current++] = "-num-threads";
+	options[current++] = ""+m_NumThreads;
 	while (current < options.length) 
 	    options[current++] = "";
 	return options;
@@ -668,8 +754,29 @@ class TLD_Optm extends Optimization{
     private double[] num;
     private double[] sSq;
     private double[] xBar;
+
+    /** The distinct values of num, in ascending order */
+    private double[] m_Sizes;
+
+    /** The index in m_Sizes of the value of num of each exemplar */
+    private int[] m_SizeIndex;
     
-    public void setNum(double[] n) {num = n;}
+    public void setNum(double[] n) {
+	num = n;
+	
+	// Exemplars of the same size share the log-gamma terms
+	double[] sorted = (double[])n.clone();
+	Arrays.sort(sorted);
+	int numSizes = 0;
+	for(int j=0; j < sorted.length; j++)
+	    if((j == 0) || (sorted[j] != sorted[j-1]))
+		sorted[numSizes++] = sorted[j];
+	m_Sizes = new double[numSizes];
+	System.arraycopy(sorted, 0, m_Sizes, 0, numSizes);
+	m_SizeIndex = new int[n.length];
+	for(int j=0; j < n.length; j++)
+	    m_SizeIndex[j] = Arrays.binarySearch(m_Sizes, n[j]);
+    }
     public void setSSquare(double[] s){sSq = s;}
     public void setXBar(double[] x){xBar = x;}
     
@@ -695,6 +802,87 @@ class TLD_Optm extends Optimization{
 	return rt;
     }
     
+    /**
+     * Compute Ln[Gamma(x)] for x > 0, using the recurrence
+     * Gamma(x+1) = x*Gamma(x) to shift x above 10 and then the 
+     * asymptotic (Stirling) series.
+     *
+     * @param x the value in the above formula
+     * @return the result
+     */    
+    public static double lnGamma(double x){
+	double shift = 1.0;
+	for(; x < 10.0; x++)
+	    shift *= x;
+	double x2 = x*x;
+	return (x-0.5)*Math.log(x) - x + 0.5*Math.log(2.0*Math.PI)
+	    + (1.0/12.0 - (1.0/360.0 - (1.0/1260.0 - 1.0/(1680.0*x2))/x2)/x2)/x
+	    - Math.log(shift);
+    }
+    
+    /**
+     * Compute the digamma function dLn[Gamma(x)]/dx for x > 0.
+     *
+     * @param x the value in the above formula
+     * @return the result
+     */    
+    public static double digamma(double x){
+	double rt = 0;
+	for(; x < 10.0; x++)
+	    rt -= 1.0/x;
+	double x2 = 1.0/(x*x);
+	return rt + Math.log(x) - 0.5/x 
+	    - x2*(1.0/12.0 - x2*(1.0/120.0 - x2*(1.0/252.0 - x2/240.0)));
+    }
+    
+    /**
+     * Compute the trigamma function {Ln[Gamma(x)]}'' for x > 0.
+     *
+     * @param x the value in the above formula
+     * @return the result
+     */    
+    public static double trigamma(double x){
+	double rt = 0;
+	for(; x < 10.0; x++)
+	    rt += 1.0/(x*x);
+	double x2 = 1.0/(x*x);
+	return rt + 1.0/x + 0.5*x2 
+	    + x2/x*(1.0/6.0 - x2*(1.0/30.0 - x2*(1.0/42.0 - x2/30.0)));
+    }
+    
+    /**
+     * Compute Sum_{z=1..[n]/2} Ln[b+n/2-z], plus diffLnGamma(b) if 
+     * n/2 > [n]/2 (i.e. n is odd), where [n] is the integer part of n.
+     * The sum telescopes to Ln[Gamma(b+n/2)] - Ln[Gamma(b+n/2-[n]/2)], 
+     * so it takes constant time whatever n is.
+     *
+     * @param b the value in the above formula
+     * @param n the size of the exemplar
+     * @return the result
+     */    
+    public static double lnGammaSum(double b, double n){
+	int halfNum = ((int)n)/2;
+	double rest = 0.5*n - halfNum;
+	double rt = (halfNum == 0) ? 0 : lnGamma(b+0.5*n) - lnGamma(b+rest);
+	if(rest > 0) 
+	    rt += diffLnGamma(b);
+	return rt;
+    }
+    
+    /**
+     * Compute lnGammaSum(b, n) for every distinct size n of the 
+     * exemplars.
+     *
+     * @param b the value in the above formula
+     * @return the result for each value of m_Sizes
+     */    
+    private double[] lnGammaSums(double b){
+	double[] rt = new double[m_Sizes.length];
+	for(int s=0; s < rt.length; s++)
+	    rt[s] = lnGammaSum(b, m_Sizes[s]);
+	return rt;
+    }
+    
     /**
      * Compute dLn[Gamma(x+0.5)]/dx - dLn[Gamma(x)]/dx
      *
@@ -730,11 +918,13 @@ class TLD_Optm extends Optimization{
      * Implement this procedure to evaluate objective
      * function to be minimized
      */
-    protected double objectiveFunction(double[] x){
+    protected double objectiveFunction(double[] x) throws Exception{
+	Diagnostics.OBJECTIVE_EVALUATIONS.increment();
 	int numExs = num.length;
 	double NLL = 0; // Negative Log-Likelihood
 	
 	double a=x[0], b=x[1], w=x[2], m=x[3];
+	double[] lnGammaSums = lnGammaSums(0.5*b);
 	for(int j=0; j < numExs; j++){
 	    
 	    if(Double.isNaN(xBar[j])) continue; // All missing values
@@ -743,50 +933,24 @@ class TLD_Optm extends Optimization{
 		Math.log((1.0+num[j]*w)*(a+sSq[j]) + 
 			 num[j]*(xBar[j]-m)*(xBar[j]-m));	    
 	    
-	    if(Double.isNaN(NLL)){
-		System.err.println("???????????1: "+a+" "+b+" "+w+" "+m
-				   +"|x-: "+xBar[j] + 
-				   "|n: "+num[j] + "|S^2: "+sSq[j]);
-		System.exit(1);
-	    }
-	    
 	    // Doesn't affect optimization
 	    //NLL += 0.5*num[j]*Math.log(Math.PI);		
 	    
 	    NLL -= 0.5*(b+num[j]-1.0)*Math.log(1.0+num[j]*w);
 	    
-	    
-	    if(Double.isNaN(NLL)){
-		System.err.println("???????????2: "+a+" "+b+" "+w+" "+m
-				   +"|x-: "+xBar[j] + 
-				   "|n: "+num[j] + "|S^2: "+sSq[j]);
-		System.exit(1);
-	    }
-	    
-	    int halfNum = ((int)num[j])/2;
-	    for(int z=1; z<=halfNum; z++)
-		NLL -= Math.log(0.5*b+0.5*num[j]-(double)z);
-	    
-	    if(0.5*num[j] > halfNum) // num[j] is odd
-		NLL -= diffLnGamma(0.5*b);
-	    
-	    if(Double.isNaN(NLL)){
-		System.err.println("???????????3: "+a+" "+b+" "+w+" "+m
-				   +"|x-: "+xBar[j] + 
-				   "|n: "+num[j] + "|S^2: "+sSq[j]);
-		System.exit(1);
-	    }				
+	    NLL -= lnGammaSums[m_SizeIndex[j]];
 	    
 	    NLL -= 0.5*Math.log(a)*b;
-	    if(Double.isNaN(NLL)){
-		System.err.println("???????????4:"+a+" "+b+" "+w+" "+m);
-		System.exit(1);
-	    }	    
+	    
+	    if(Double.isNaN(NLL))
+		throw new Exception("Objective function value is NaN at a="+a+
+				    ", b="+b+", w="+w+", m="+m+" (exemplar "+j+
+				    ": x-="+xBar[j]+", n="+num[j]+
+				    ", S^2="+sSq[j]+")");
 	}
 	
-	System.err.println("?????????????5: "+NLL);
-	if(Double.isNaN(NLL))	   
-	    System.exit(1);
+	if(Diagnostics.TRACE)
+	    Diagnostics.log("TLD", "NLL="+NLL);
 	
 	return NLL;
     }
@@ -796,12 +960,15 @@ class TLD_Optm extends Optimization{
      * of the objective function
      */
     protected double[] evaluateGradient(double[] x){
+	Diagnostics.GRADIENT_EVALUATIONS.increment();
 	double[] g = new double[x.length];
 	int numExs = num.length;
 	
 	double a=x[0],b=x[1],w=x[2],m=x[3];
 	
 	double da=0.0, db=0.0, dw=0.0, dm=0.0; 
+	double c = 0.5*b, digammaC = digamma(c), 
+	    oddTerm = 0.5*diffFstDervLnGamma(c);
 	for(int j=0; j < numExs; j++){
 	    
 	    if(Double.isNaN(xBar[j])) continue; // All missing values
@@ -815,11 +982,14 @@ class TLD_Optm extends Optimization{
 		- 0.5*Math.log(1.0+num[j]*w)
 		- 0.5*Math.log(a);
 	    
+	    // Sum_{z} 1/(b+n-2z) = 0.5*(Psi(c+n/2)-Psi(c+n/2-[n]/2))
 	    int halfNum = ((int)num[j])/2;
-	    for(int z=1; z<=halfNum; z++)
-		db -= 1.0/(b+num[j]-2.0*(double)z);		
-	    if(num[j]/2.0 > halfNum) // num[j] is odd
-		db -= 0.5*diffFstDervLnGamma(0.5*b);		
+	    double rest = 0.5*num[j] - halfNum;
+	    if(halfNum > 0)
+		db -= 0.5*(digamma(c+0.5*num[j]) - 
+			   ((rest == 0) ? digammaC : digamma(c+rest)));
+	    if(rest > 0) // num[j] is odd
+		db -= oddTerm;		
 	    
 	    dw += 0.5*(b+num[j])*(a+sSq[j])*num[j]/denorm -
 		0.5*(b+num[j]-1.0)*num[j]/(1.0+num[j]*w);
@@ -879,11 +1049,13 @@ class TLD_Optm extends Optimization{
 		
 		h[0] += 0.5*(1.0+num[j]*w)/denorm - 0.5/a;
 		
+		// Sum_{z} 1/(b+n-2z)^2 = 0.25*(Psi'(c+n/2-[n]/2)-Psi'(c+n/2))
 		int halfNum = ((int)num[j])/2;
-		for(int z=1; z<=halfNum; z++)
-		    h[1] += 
-			1.0/((b+num[j]-2.0*(double)z)*(b+num[j]-2.0*(double)z));
-		if(num[j]/2.0 > halfNum) // num[j] is odd
+		double rest = 0.5*num[j] - halfNum;
+		if(halfNum > 0)
+		    h[1] += 0.25*(trigamma(0.5*b+rest) - 
+				  trigamma(0.5*b+0.5*num[j]));
+		if(rest > 0) // num[j] is odd
 		    h[1] -= 0.25*diffSndDervLnGamma(0.5*b); 
 		
 		h[2] += 0.5*(a+sSq[j])*num[j]/denorm -
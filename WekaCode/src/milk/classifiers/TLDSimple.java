@@ -86,6 +86,9 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 
     protected boolean m_UseEmpiricalCutOff = false;    
 
+    /** The number of threads used to estimate the dimensions */
+    protected int m_NumThreads = 1;
+
     private double[] m_LkRatio;
 
     private Instances m_Attribute = null;
@@ -96,6 +99,7 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
      * @exception if the model cannot be built properly
      */    
     public void buildClassifier(Exemplars exs)throws Exception{
+	long[] counters = Diagnostics.snapshot();
 	m_ClassIndex = exs.classIndex();
 	m_IdIndex = exs.idIndex();
 	int numegs = exs.numExemplars();
@@ -146,7 +150,6 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 	    Exemplar px = pos.exemplar(v);
 	    m_MeanP[v] = px.meanOrMode();
 	    varP[v] = px.variance();
-	    Instances pxi =  px.getInstances();
 	    
 	    for (int w=0,t=0; w < m_Dimension; w++,t++){		
 		if((t==m_ClassIndex) || (t==m_IdIndex))
@@ -154,10 +157,7 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 		if(varP[v][w] <= 0.0)
 		    varP[v][w] = 0.0;
 		if(!Double.isNaN(m_MeanP[v][w])){
-
-		    for(int u=0;u<pxi.numInstances();u++)
-			if(!pxi.instance(u).isMissing(t))			    
-			    m_SumP[v][w] += pxi.instance(u).weight();
+		    m_SumP[v][w] = px.sumOfWeights(t);
 		    
 		    pMM[w] += m_MeanP[v][w];
 		    pVM[w] += m_MeanP[v][w]*m_MeanP[v][w];		    
@@ -178,7 +178,6 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 	    Exemplar nx = neg.exemplar(v);
 	    m_MeanN[v] = nx.meanOrMode();
 	    varN[v] = nx.variance();
-	    Instances nxi =  nx.getInstances();
 	    
 	    for (int w=0,t=0; w < m_Dimension; w++,t++){
 		
@@ -187,9 +186,7 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 		if(varN[v][w] <= 0.0)
 		    varN[v][w] = 0.0;
 		if(!Double.isNaN(m_MeanN[v][w])){
-		    for(int u=0;u<nxi.numInstances();u++)
-			if(!nxi.instance(u).isMissing(t))
-			    m_SumN[v][w] += nxi.instance(u).weight();	
+		    m_SumN[v][w] = nx.sumOfWeights(t);
 		    
 		    nMM[w] += m_MeanN[v][w]; 
 		    nVM[w] += m_MeanN[v][w]*m_MeanN[v][w];
@@ -221,136 +218,31 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 	    nVM[u] = nVM[u]/(effNumExN[u]-1.0) - nMM[u]*nMM[u]*effNumExN[u]/(effNumExN[u]-1.0);
 	}
 	
-	//Bounds and parameter values for each run
-	double[][] bounds = new double[2][2];
-	double[] pThisParam = new double[2], 
-	    nThisParam = new double[2];
-	
 	// Initial values for parameters
-	double w, m;
-	Random whichEx = new Random(m_Seed);
-	
-	// Optimize for one dimension
+	final double[][] pInit = new double[m_Dimension][2], 
+	    nInit = new double[m_Dimension][2];
 	for (int x=0; x < m_Dimension; x++){     
-	    // System.out.println("\n\n!!!!!!!!!!!!!!!!!!!!!!???Dimension #"+x);
-	    
 	    // Positive examplars: first run 
-	    pThisParam[0] = pVM[x];  // w
-	    if( pThisParam[0] <= ZERO)
-		pThisParam[0] = 1.0;
-	    pThisParam[1] = pMM[x];  // m
+	    pInit[x][0] = pVM[x];  // w
+	    if( pInit[x][0] <= ZERO)
+		pInit[x][0] = 1.0;
+	    pInit[x][1] = pMM[x];  // m
 	    
 	    // Negative examplars: first run
-	    nThisParam[0] = nVM[x];  // w
-	    if(nThisParam[0] <= ZERO)
-		nThisParam[0] = 1.0;
-	    nThisParam[1] = nMM[x];  // m
-	    
-	    // Bound constraints
-	    bounds[0][0] = ZERO; // w > 0
-	    bounds[0][1] = Double.NaN;
-	    bounds[1][0] = Double.NaN; 
-	    bounds[1][1] = Double.NaN;
-
-	    double pminVal=Double.MAX_VALUE, nminVal=Double.MAX_VALUE; 
-	    TLDSimple_Optm pOp=null, nOp=null;	
-	    boolean isRunValid = true;
-	    double[] sumP=new double[pnum], meanP=new double[pnum];
-	    double[] sumN=new double[nnum], meanN=new double[nnum];
-	    
-	    // One dimension
-	    for(int p=0; p<pnum; p++){
-		sumP[p] = m_SumP[p][x];
-		meanP[p] = m_MeanP[p][x];
-	    }
-	    for(int q=0; q<nnum; q++){
-		sumN[q] = m_SumN[q][x];
-		meanN[q] = m_MeanN[q][x];
-	    }
-	    
-	    for(int y=0; y<m_Run; y++){
-		//System.out.println("\n\n!!!!!!!!!Positive exemplars: Run #"+y);
-		double thisMin;
-		pOp = new TLDSimple_Optm();
-		pOp.setNum(sumP);
-		pOp.setSgmSq(m_SgmSqP[x]);
-		pOp.setXBar(meanP);
-		//pOp.setDebug(true);
-		pThisParam = pOp.findArgmin(pThisParam, bounds);
-		while(pThisParam==null){
-		    pThisParam = pOp.getVarbValues();		    
-		    System.out.println("!!! 200 iterations finished, not enough!");
-		    pThisParam = pOp.findArgmin(pThisParam, bounds);
-		}	
-		
-		thisMin = pOp.getMinFunction();
-		if(!Double.isNaN(thisMin) && (thisMin<pminVal)){
-		    pminVal = thisMin;
-		    for(int z=0; z<2; z++)
-			m_ParamsP[2*x+z] = pThisParam[z];
-		}
-		
-		if(Double.isNaN(thisMin)){
-		    pThisParam = new double[2];
-		    isRunValid =false;
-		}
-		if(!isRunValid){ y--; isRunValid=true; } 
-		
-		// Change the initial parameters and restart
-		int pone = whichEx.nextInt(pnum);
-		
-		// Positive exemplars: next run 
-		while(Double.isNaN(m_MeanP[pone][x]))
-		    pone = whichEx.nextInt(pnum);
-		
-		m = m_MeanP[pone][x];
-		w = (m-pThisParam[1])*(m-pThisParam[1]);
-		pThisParam[0] = w;  // w
-		pThisParam[1] = m;  // m	    
-	    }
-	    
-	    for(int y=0; y<m_Run; y++){
-		//System.out.println("\n\n!!!!!!!!!Negative exemplars: Run #"+y);
-		double thisMin;
-		nOp = new TLDSimple_Optm();
-		nOp.setNum(sumN);
-		nOp.setSgmSq(m_SgmSqN[x]);
-		nOp.setXBar(meanN);
-		//nOp.setDebug(true);
-		nThisParam = nOp.findArgmin(nThisParam, bounds);
-		while(nThisParam==null){
-		    nThisParam = nOp.getVarbValues();
-		    System.out.println("!!! 200 iterations finished, not enough!");
-		    nThisParam = nOp.findArgmin(nThisParam, bounds);
-		}			
-		
-		thisMin = nOp.getMinFunction();
-		if(!Double.isNaN(thisMin) && (thisMin<nminVal)){
-		    nminVal = thisMin;
-		    for(int z=0; z<2; z++)
-			m_ParamsN[2*x+z] = nThisParam[z];     
-		}
-		
-		if(Double.isNaN(thisMin)){
-		    nThisParam = new double[2];
-		    isRunValid =false;
-		}
-		
-		if(!isRunValid){ y--; isRunValid=true; } 		
-		
-		// Change the initial parameters and restart	   	    
-		int none = whichEx.nextInt(nnum);// Randomly pick one pos. exmpl.
-		
-		// Negative exemplars: next run 
-		while(Double.isNaN(m_MeanN[none][x]))
-		    none = whichEx.nextInt(nnum);
-		
-		m = m_MeanN[none][x];
-		w = (m-nThisParam[1])*(m-nThisParam[1]);
-		nThisParam[0] = w;  // w
-		nThisParam[1] = m;  // m	 		
-	    }	    	    	    
+	    nInit[x][0] = nVM[x];  // w
+	    if(nInit[x][0] <= ZERO)
+		nInit[x][0] = 1.0;
+	    nInit[x][1] = nMM[x];  // m
 	}
+	
+	// Optimize the dimensions independently, in parallel blocks
+	final int numP = pnum, numN = nnum;
+	runBlocks(new RangeTask() {
+		public void run(int block, int from, int to) throws Exception {
+		    for(int x=from; x<to; x++)
+			fitDimension(x, numP, numN, pInit[x], nInit[x]);
+		}
+	    }, m_Dimension, m_NumThreads);
 			
 	m_LkRatio = new double[m_Dimension];
 	
@@ -387,9 +279,142 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 			       +(m_LkRatio[x]/(pnum+nnum)));
 	}	
 	*/
-	System.err.println("\n\n???Cut-off="+m_Cutoff);
+	if(Diagnostics.INFO){
+	    Diagnostics.log("TLDSimple", "Cut-off="+m_Cutoff);
+	    Diagnostics.log("TLDSimple", Diagnostics.counters(counters));
+	}
     }        
     
+    /**
+     * Estimates the parameters of one dimension for both classes, 
+     * reading only the per-exemplar statistics of that dimension and
+     * writing only its entries of m_ParamsP and m_ParamsN, so that 
+     * dimensions can be estimated concurrently.
+     *
+     * @param x the dimension
+     * @param pnum the number of positive exemplars
+     * @param nnum the number of negative exemplars
+     * @param pThisParam the initial parameters of the positive class
+     * @param nThisParam the initial parameters of the negative class
+     * @exception Exception if the optimization fails
+     */
+    private void fitDimension(int x, int pnum, int nnum, 
+			      double[] pThisParam, double[] nThisParam)
+	throws Exception {
+	// Bound constraints
+	double[][] bounds = new double[2][2];
+	bounds[0][0] = ZERO; // w > 0
+	bounds[0][1] = Double.NaN;
+	bounds[1][0] = Double.NaN; 
+	bounds[1][1] = Double.NaN;
+	
+	// Starting values of the restarts
+	double w, m;
+	Random whichEx = new Random(m_Seed);
+	double pminVal=Double.MAX_VALUE, nminVal=Double.MAX_VALUE; 
+	TLDSimple_Optm pOp=null, nOp=null;	
+	boolean isRunValid = true;
+	double[] sumP=new double[pnum], meanP=new double[pnum];
+	double[] sumN=new double[nnum], meanN=new double[nnum];
+	
+	// One dimension
+	for(int p=0; p<pnum; p++){
+	    sumP[p] = m_SumP[p][x];
+	    meanP[p] = m_MeanP[p][x];
+	}
+	for(int q=0; q<nnum; q++){
+	    sumN[q] = m_SumN[q][x];
+	    meanN[q] = m_MeanN[q][x];
+	}
+	
+	for(int y=0; y<m_Run; y++){
+	    //System.out.println("\n\n!!!!!!!!!Positive exemplars: Run #"+y);
+	    double thisMin;
+	    pOp = new TLDSimple_Optm();
+	    pOp.setNum(sumP);
+	    pOp.setSgmSq(m_SgmSqP[x]);
+	    pOp.setXBar(meanP);
+	    //pOp.setDebug(true);
+	    pThisParam = pOp.findArgmin(pThisParam, bounds);
+	    while(pThisParam==null){
+		pThisParam = pOp.getVarbValues();		    
+		if(Diagnostics.DEBUG)
+		    Diagnostics.log("TLDSimple", "Dimension #"+x+
+				    ": 200 iterations finished, not enough!");
+		pThisParam = pOp.findArgmin(pThisParam, bounds);
+	    }	
+	    
+	    thisMin = pOp.getMinFunction();
+	    if(!Double.isNaN(thisMin) && (thisMin<pminVal)){
+		pminVal = thisMin;
+		for(int z=0; z<2; z++)
+		    m_ParamsP[2*x+z] = pThisParam[z];
+	    }
+	    
+	    if(Double.isNaN(thisMin)){
+		pThisParam = new double[2];
+		isRunValid =false;
+	    }
+	    if(!isRunValid){ y--; isRunValid=true; } 
+	    
+	    // Change the initial parameters and restart
+	    int pone = whichEx.nextInt(pnum);
+	    
+	    // Positive exemplars: next run 
+	    while(Double.isNaN(m_MeanP[pone][x]))
+		pone = whichEx.nextInt(pnum);
+	    
+	    m = m_MeanP[pone][x];
+	    w = (m-pThisParam[1])*(m-pThisParam[1]);
+	    pThisParam[0] = w;  // w
+	    pThisParam[1] = m;  // m	    
+	}
+	
+	for(int y=0; y<m_Run; y++){
+	    //System.out.println("\n\n!!!!!!!!!Negative exemplars: Run #"+y);
+	    double thisMin;
+	    nOp = new TLDSimple_Optm();
+	    nOp.setNum(sumN);
+	    nOp.setSgmSq(m_SgmSqN[x]);
+	    nOp.setXBar(meanN);
+	    //nOp.setDebug(true);
+	    nThisParam = nOp.findArgmin(nThisParam, bounds);
+	    while(nThisParam==null){
+		nThisParam = nOp.getVarbValues();
+		if(Diagnostics.DEBUG)
+		    Diagnostics.log("TLDSimple", "Dimension #"+x+
+				    ": 200 iterations finished, not enough!");
+		nThisParam = nOp.findArgmin(nThisParam, bounds);
+	    }			
+	    
+	    thisMin = nOp.getMinFunction();
+	    if(!Double.isNaN(thisMin) && (thisMin<nminVal)){
+		nminVal = thisMin;
+		for(int z=0; z<2; z++)
+		    m_ParamsN[2*x+z] = nThisParam[z];     
+	    }
+	    
+	    if(Double.isNaN(thisMin)){
+		nThisParam = new double[2];
+		isRunValid =false;
+	    }
+	    
+	    if(!isRunValid){ y--; isRunValid=true; } 		
+	    
+	    // Change the initial parameters and restart	   	    
+	    int none = whichEx.nextInt(nnum);// Randomly pick one pos. exmpl.
+	    
+	    // Negative exemplars: next run 
+	    while(Double.isNaN(m_MeanN[none][x]))
+		none = whichEx.nextInt(nnum);
+	    
+	    m = m_MeanN[none][x];
+	    w = (m-nThisParam[1])*(m-nThisParam[1]);
+	    nThisParam[0] = w;  // w
+	    nThisParam[1] = m;  // m	 		
+	}
+    }
+
     /**
      *
      * @param ex the given test exemplar
@@ -398,25 +423,67 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
      * successfully
      */
     public double classifyExemplar(Exemplar e)throws Exception{
-	Exemplar ex = new Exemplar(e);
-	Instances exi = ex.getInstances();
+	double logOdds = logOdds(e, m_LkRatio);
+	return (logOdds > m_Cutoff) ? 0 : 1 ;
+    }
+
+    /**
+     * Classifies the given exemplars, returning for each exemplar a
+     * distribution with 1 for the predicted class.  The exemplars are
+     * not added to the log-likelihood ratios kept for debugging.
+     *
+     * @param data the exemplars to be classified
+     * @param numThreads the number of threads
+     * @return the distribution of each exemplar
+     * @exception Exception if the exemplars could not be classified
+     * successfully
+     */
+    public double[][] distributionsForExemplars(final Exemplars data, 
+						int numThreads)
+	throws Exception {
+	
+	final int numClasses = data.numClasses();
+	return scoreBlocks(new BlockScorer() {
+		public void score(int block, int from, int to, double[][] dists){
+		    for(int i=from; i<to; i++){
+			dists[i] = new double[numClasses];
+			dists[i][(logOdds(data.exemplar(i), null) > m_Cutoff) ? 0 : 1] = 1.0;
+		    }
+		}
+	    }, data.numExemplars(), numThreads);
+    }
+
+    /**
+     * Computes the log-likelihood ratio of the given exemplar.
+     *
+     * @param ex the exemplar, which is not changed
+     * @param lkRatio the log-likelihood ratio of each dimension is
+     * added to this, if not null
+     * @return the log-likelihood ratio of the positive to the negative class
+     */
+    private double logOdds(Exemplar ex, double[] lkRatio){
 	double[] n = new double[m_Dimension], xBar = ex.meanOrMode();
 	
 	for (int w=0, t=0; w < m_Dimension; w++, t++){
 	    if((t==m_ClassIndex) || (t==m_IdIndex))
 		t++;	
-	    for(int u=0;u<exi.numInstances();u++)
-		if(!exi.instance(u).isMissing(t))
-		    n[w] += exi.instance(u).weight();
+	    n[w] = ex.sumOfWeights(t);
 	}
 	
-	double logOdds = likelihoodRatio(n, xBar);
-	return (logOdds > m_Cutoff) ? 0 : 1 ;
+	return likelihoodRatio(n, xBar, lkRatio);
     }
     /**
      * Compute the log-likelihood ratio
      */
-    private double likelihoodRatio(double[] n, double[] xBar){	
+    private double likelihoodRatio(double[] n, double[] xBar){
+	return likelihoodRatio(n, xBar, m_LkRatio);
+    }
+
+    /**
+     * Compute the log-likelihood ratio, adding the ratio of each 
+     * dimension to lkRatio if it is not null
+     */
+    private double likelihoodRatio(double[] n, double[] xBar, double[] lkRatio){	
 	double LLP = 0.0, LLN = 0.0;
 	
 	for (int x=0; x<m_Dimension; x++){
@@ -437,7 +504,8 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 		+ n[x]*(m-xBar[x])*(m-xBar[x])/(w*n[x]+m_SgmSqN[x]);
 	    LLN -= lln;
 
-	    m_LkRatio[x] += llp - lln;
+	    if(lkRatio != null)
+		lkRatio[x] += llp - lln;
 	}
 	
 	return LLP - LLN;
@@ -519,6 +587,9 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
      * -R <numOfRuns> Set the number of multiple runs needed for searching the MLE.
      * (default: 1)
      *
+     * -num-threads <num> Set the number of threads used to estimate the
+     * parameters of the dimensions. (default: 1)
+     *
      * @return an enumeration of all the available options
      */
     public Enumeration listOptions() {
@@ -529,6 +600,9 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 	newVector.addElement(new Option("\tSet the number of multiple runs \n"+
 					"\tneeded for searching the MLE.\n",
 					"R", 1, "-R <numOfRuns>"));
+	newVector.addElement(new Option("\tSet the number of threads used to\n"+
+					"\testimate the parameters of the dimensions.\n",
+					"num-threads", 1, "-num-threads <num>"));
 	return newVector.elements();
     }
     
@@ -546,6 +620,32 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
 	    m_Run = Integer.parseInt(runString);
 	else 
 	    m_Run = 1;	
+
+	String threadsString = Utils.getOption("num-threads", options);
+	if (threadsString.length() != 0) 
+	    setNumThreads(Integer.parseInt(threadsString));
+	else 
+	    setNumThreads(1);
+    }
+
+    /**
+     * Sets the number of threads used to estimate the parameters of
+     * the dimensions, which are independent of each other.
+     *
+     * @param numThreads the number of threads, 1 for no parallelism
+     */
+    public void setNumThreads(int numThreads) {
+	m_NumThreads = numThreads;
+    }
+
+    /**
+     * Gets the number of threads used to estimate the parameters of
+     * the dimensions.
+     *
+     * @return the number of threads
+     */
+    public int getNumThreads() {
+	return m_NumThreads;
     }
     
     /**
@@ -555,11 +655,13 @@ public class TLDSimple extends MIClassifier implements OptionHandler{
      */
     public String [] getOptions() {
 	
-	String [] options = new String [3];
+	String [] options = new String [5];
 	int current = 0;
 	options[current++] = "-C";
 	options[current++] = "-R";
 	options[current++] = ""+m_Run;
+	options[current++] = "-num-threads";
+	options[current++] = ""+m_NumThreads;
 	while (current < options.length) 
 	    options[current++] = "";
 	return options;
@@ -621,6 +723,7 @@ class TLDSimple_Optm extends Optimization{
      * function to be minimized
      */
     protected double objectiveFunction(double[] x){
+	Diagnostics.OBJECTIVE_EVALUATIONS.increment();
 	int numExs = num.length;
 	double NLL=0; // Negative Log-Likelihood
 	
@@ -630,20 +733,13 @@ class TLDSimple_Optm extends Optimization{
 	    if(Double.isNaN(xBar[j])) continue; // All missing values
 	    double bag=0;
 	    bag += Math.log(w*num[j]+sSq);
-	    if(Double.isNaN(bag)){
-		System.out.println("???????????1: "+w+" "+m
-				   +"|x-: "+xBar[j] + 
-				   "|n: "+num[j] + "|S^2: "+sSq);
-		//System.exit(1);
-	    }
-	    
 	    bag += num[j]*(m-xBar[j])*(m-xBar[j])/(w*num[j]+sSq);	    	    
-	    if(Double.isNaN(bag)){
-		System.out.println("???????????2: "+w+" "+m
-				   +"|x-: "+xBar[j] + 
-				   "|n: "+num[j] + "|S^2: "+sSq);
-		//System.exit(1);
-	    }	    	       
+	    
+	    // A NaN makes the run invalid, see fitDimension()
+	    if(Diagnostics.DEBUG && Double.isNaN(bag))
+		Diagnostics.log("TLDSimple", "NLL is NaN at w="+w+", m="+m+
+				" (exemplar "+j+": x-="+xBar[j]+", n="+num[j]+
+				", S^2="+sSq+")");
 	    
 	    //if(bag<0) bag=0;
 	    NLL += bag;
@@ -658,6 +754,7 @@ class TLDSimple_Optm extends Optimization{
      * of the objective function
      */
     protected double[] evaluateGradient(double[] x){
+	Diagnostics.GRADIENT_EVALUATIONS.increment();
 	double[] g = new double[x.length];
 	int numExs = num.length;
 	
@@ -0,0 +1,593 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BinaryExemplars.java
+ *
+ */
+package milk.core;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import weka.core.*;
+
+/**
+ * Reads and writes multi-instance data in a compact binary format, so
+ * that the data need not be parsed from ARFF and grouped into exemplars
+ * every time they are used. <p>
+ *
+ * A file starts with the ARFF header of the data and the indices of the
+ * class and ID attributes.  Then comes one block per exemplar, holding
+ * the values of the exemplar's instances attribute by attribute (missing
+ * values as NaN) followed by the instances' weights.  An index at the end
+ * of the file gives the position and size of each block as well as the
+ * ID value, class value and weight of each exemplar.  Since the index is
+ * written last, a file can be written one exemplar at a time. <p>
+ *
+ * The reader maps the file into memory and only reads the header and
+ * the index when it is opened, so the values of any exemplar can be 
+ * accessed without reading the rest of the file.  Exemplar objects are
+ * only created when asked for. <p>
+ *
+ * Typical usage for converting an ARFF file: <p>
+ *
+ * <code>
+ * java milk.core.BinaryExemplars -i data.arff -o data.mib
+ * </code>
+ *
+ * @version $Revision: 1.0 $
+ */
+public class BinaryExemplars {
+
+    /** The extension of the files */
+    public static final String FILE_EXTENSION = ".mib";
+
+    /** The number identifying the files ("MILK") */
+    private static final int MAGIC = 0x4D494C4B;
+
+    /** The version of the format */
+    private static final int VERSION = 1;
+
+    /** The size of the trailer holding the position of the index */
+    private static final int TRAILER_SIZE = 12;
+
+    /** The size of one entry of the index */
+    private static final int ENTRY_SIZE = 36;
+
+    /** The maximum size of one mapped region of the file */
+    private static final long MAX_REGION = 1L << 30;
+
+    /** The file */
+    private RandomAccessFile m_File;
+
+    /** The header of the data */
+    private Instances m_Structure;
+
+    /** The index of the ID attribute */
+    private int m_IdIndex;
+
+    /** The position of each exemplar's block in the file */
+    private long[] m_Offsets;
+
+    /** The number of instances in each exemplar */
+    private int[] m_Sizes;
+
+    /** The ID value of each exemplar */
+    private double[] m_IdValues;
+
+    /** The class value of each exemplar */
+    private double[] m_ClassValues;
+
+    /** The weight of each exemplar */
+    private double[] m_Weights;
+
+    /** The mapped regions of the file, each holding whole blocks */
+    private MappedByteBuffer[] m_Regions;
+
+    /** The position in the file of the start of each region */
+    private long[] m_RegionStarts;
+
+    /** The region holding each exemplar's block */
+    private int[] m_RegionOf;
+
+    /**
+     * Opens a file and reads its header and index.
+     *
+     * @param file the file
+     * @exception Exception if the file cannot be read or is not in
+     * the binary format
+     */
+    public BinaryExemplars(File file) throws Exception {
+	m_File = new RandomAccessFile(file, "r");
+	try {
+	    readHeader();
+	    readIndex();
+	    mapRegions();
+	} catch (Exception e) {
+	    m_File.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Reads the header at the start of the file.
+     *
+     * @exception Exception if the header is wrong
+     */
+    private void readHeader() throws Exception {
+	m_File.seek(0);
+	if ((m_File.length() < 8 + TRAILER_SIZE) || 
+	    (m_File.readInt() != MAGIC))
+	    throw new Exception("Not a binary multi-instance file!");
+	int version = m_File.readInt();
+	if (version != VERSION)
+	    throw new Exception("Unsupported version " + version + 
+				" of the binary format!");
+	
+	byte[] text = new byte[m_File.readInt()];
+	m_File.readFully(text);
+	m_Structure = new Instances(new StringReader(new String(text, "UTF-8")));
+	m_Structure.setClassIndex(m_File.readInt());
+	m_IdIndex = m_File.readInt();
+    }
+
+    /**
+     * Reads the index at the end of the file.
+     *
+     * @exception Exception if the index is wrong
+     */
+    private void readIndex() throws Exception {
+	m_File.seek(m_File.length() - TRAILER_SIZE);
+	long indexStart = m_File.readLong();
+	if (m_File.readInt() != MAGIC)
+	    throw new Exception("Truncated binary multi-instance file!");
+	
+	m_File.seek(indexStart);
+	int numExemplars = m_File.readInt();
+	ByteBuffer index = m_File.getChannel().map
+	    (FileChannel.MapMode.READ_ONLY, indexStart + 4, 
+	     (long)numExemplars * ENTRY_SIZE);
+	m_Offsets = new long[numExemplars];
+	m_Sizes = new int[numExemplars];
+	m_IdValues = new double[numExemplars];
+	m_ClassValues = new double[numExemplars];
+	m_Weights = new double[numExemplars];
+	for (int i = 0; i < numExemplars; i++) {
+	    m_Offsets[i] = index.getLong();
+	    m_Sizes[i] = index.getInt();
+	    m_IdValues[i] = index.getDouble();
+	    m_ClassValues[i] = index.getDouble();
+	    m_Weights[i] = index.getDouble();
+	}
+    }
+
+    /**
+     * Maps the blocks into memory, in as few regions as possible.
+     *
+     * @exception Exception if a block is too large or the file cannot
+     * be mapped
+     */
+    private void mapRegions() throws Exception {
+	int numExemplars = m_Offsets.length;
+	m_RegionOf = new int[numExemplars];
+	long[] starts = new long[numExemplars + 1], ends = new long[numExemplars + 1];
+	int numRegions = 0;
+	for (int i = 0; i < numExemplars; i++) {
+	    long end = m_Offsets[i] + blockSize(i);
+	    if (blockSize(i) > Integer.MAX_VALUE)
+		throw new Exception("Exemplar " + i + " is too large!");
+	    if ((numRegions == 0) || 
+		(end - starts[numRegions - 1] > MAX_REGION)) {
+		starts[numRegions] = m_Offsets[i];
+		numRegions++;
+	    }
+	    ends[numRegions - 1] = end;
+	    m_RegionOf[i] = numRegions - 1;
+	}
+	
+	FileChannel channel = m_File.getChannel();
+	m_Regions = new MappedByteBuffer[numRegions];
+	m_RegionStarts = new long[numRegions];
+	for (int r = 0; r < numRegions; r++) {
+	    m_RegionStarts[r] = starts[r];
+	    m_Regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, starts[r],
+				       ends[r] - starts[r]);
+	}
+    }
+
+    /**
+     * Returns the size in bytes of the given exemplar's block.
+     *
+     * @param index the exemplar's index
+     * @return the size of the block
+     */
+    private long blockSize(int index) {
+	return 8L * (m_Structure.numAttributes() + 1) * m_Sizes[index];
+    }
+
+    /**
+     * Returns part of the given exemplar's block.
+     *
+     * @param index the exemplar's index
+     * @param first the position of the first value in the block
+     * @param num the number of values
+     * @return a read-only view of the values
+     */
+    private DoubleBuffer values(int index, int first, int num) {
+	int region = m_RegionOf[index];
+	ByteBuffer buffer = m_Regions[region].duplicate();
+	int start = (int)(m_Offsets[index] - m_RegionStarts[region]) + 8 * first;
+	buffer.limit(start + 8 * num);
+	buffer.position(start);
+	return buffer.slice().asDoubleBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns an empty set of exemplars with the structure of the data.
+     *
+     * @return the empty set
+     * @exception Exception if the set cannot be created
+     */
+    public Exemplars getHeader() throws Exception {
+	return new Exemplars(new Instances(m_Structure, 0), m_IdIndex);
+    }
+
+    /**
+     * Returns the number of exemplars in the file.
+     *
+     * @return the number of exemplars
+     */
+    public int numExemplars() {
+	return m_Offsets.length;
+    }
+
+    /**
+     * Returns the number of instances in the given exemplar.
+     *
+     * @param index the exemplar's index
+     * @return the number of instances
+     */
+    public int numInstances(int index) {
+	return m_Sizes[index];
+    }
+
+    /**
+     * Returns the ID value of the given exemplar.
+     *
+     * @param index the exemplar's index
+     * @return the ID value
+     */
+    public double idValue(int index) {
+	return m_IdValues[index];
+    }
+
+    /**
+     * Returns the class value of the given exemplar.
+     *
+     * @param index the exemplar's index
+     * @return the class value
+     */
+    public double classValue(int index) {
+	return m_ClassValues[index];
+    }
+
+    /**
+     * Returns the weight of the given exemplar.
+     *
+     * @param index the exemplar's index
+     * @return the weight
+     */
+    public double weight(int index) {
+	return m_Weights[index];
+    }
+
+    /**
+     * Returns the values of one attribute for the instances of the
+     * given exemplar, read straight from the mapped file.
+     *
+     * @param index the exemplar's index
+     * @param attIndex the attribute's index
+     * @return a read-only view of the values, one per instance
+     */
+    public DoubleBuffer attributeValues(int index, int attIndex) {
+	return values(index, attIndex * m_Sizes[index], m_Sizes[index]);
+    }
+
+    /**
+     * Returns the weights of the instances of the given exemplar, read
+     * straight from the mapped file.
+     *
+     * @param index the exemplar's index
+     * @return a read-only view of the weights, one per instance
+     */
+    public DoubleBuffer instanceWeights(int index) {
+	int n = m_Sizes[index];
+	return values(index, m_Structure.numAttributes() * n, n);
+    }
+
+    /**
+     * Creates the given exemplar from the file.
+     *
+     * @param index the exemplar's index
+     * @return the exemplar
+     * @exception Exception if the exemplar cannot be created
+     */
+    public Exemplar exemplar(int index) throws Exception {
+	int numAtts = m_Structure.numAttributes(), n = m_Sizes[index];
+	DoubleBuffer block = values(index, 0, (numAtts + 1) * n);
+	Instances insts = new Instances(m_Structure, n);
+	for (int j = 0; j < n; j++) {
+	    double[] vals = new double[numAtts];
+	    for (int k = 0; k < numAtts; k++)
+		vals[k] = block.get(k * n + j);
+	    insts.add(new Instance(block.get(numAtts * n + j), vals));
+	}
+	
+	Exemplar ex = new Exemplar(insts, m_IdIndex);
+	ex.setClassValue(m_ClassValues[index]);
+	ex.setWeight(m_Weights[index]);
+	return ex;
+    }
+
+    /**
+     * Creates all exemplars in the file.
+     *
+     * @return the exemplars
+     * @exception Exception if the exemplars cannot be created
+     */
+    public Exemplars readExemplars() throws Exception {
+	Exemplars all = getHeader();
+	for (int i = 0; i < numExemplars(); i++)
+	    all.add(exemplar(i));
+	return all;
+    }
+
+    /**
+     * Closes the file.  The views returned before stay valid until 
+     * they are garbage-collected.
+     *
+     * @exception IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+	m_File.close();
+    }
+
+    /**
+     * Reads all exemplars from a file.
+     *
+     * @param file the file
+     * @return the exemplars
+     * @exception Exception if the file cannot be read
+     */
+    public static Exemplars read(File file) throws Exception {
+	BinaryExemplars in = new BinaryExemplars(file);
+	try {
+	    return in.readExemplars();
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Returns whether the given file name has the extension of the
+     * binary format.
+     *
+     * @param fileName the file name
+     * @return true if the file is taken to be in the binary format
+     */
+    public static boolean isBinaryFile(String fileName) {
+	return fileName.endsWith(FILE_EXTENSION);
+    }
+
+    /**
+     * Writes a set of exemplars to a file.
+     *
+     * @param data the exemplars
+     * @param file the file
+     * @exception Exception if the file cannot be written
+     */
+    public static void write(Exemplars data, File file) throws Exception {
+	BlockWriter out = new BlockWriter(file, data);
+	try {
+	    for (int i = 0; i < data.numExemplars(); i++)
+		out.write(data.exemplar(i));
+	    out.finish();
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Writes the exemplars read from an ARFF file to a file, one 
+     * exemplar at a time.
+     *
+     * @param in the source of the exemplars
+     * @param file the file
+     * @exception Exception if the data cannot be read or the file
+     * cannot be written
+     */
+    public static void convert(ExemplarReader in, File file) throws Exception {
+	BlockWriter out = new BlockWriter(file, in.getHeader());
+	try {
+	    Exemplar ex;
+	    while ((ex = in.readExemplar()) != null)
+		out.write(ex);
+	    out.finish();
+	} finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Writes the header, the blocks and the index of a file.
+     */
+    private static class BlockWriter {
+
+	/** The file */
+	private DataOutputStream m_Out;
+
+	/** The number of bytes written so far */
+	private long m_Position = 0;
+
+	/** The number of attributes */
+	private int m_NumAttributes;
+
+	/** The index entries of the exemplars written so far */
+	private ByteArrayOutputStream m_Index = new ByteArrayOutputStream();
+
+	/** The stream writing the index entries */
+	private DataOutputStream m_IndexOut = new DataOutputStream(m_Index);
+
+	/** The number of exemplars written so far */
+	private int m_NumExemplars = 0;
+
+	/**
+	 * Creates the file and writes its header.
+	 *
+	 * @param file the file
+	 * @param header the structure of the data
+	 * @exception Exception if the data has string attributes or the 
+	 * file cannot be written
+	 */
+	BlockWriter(File file, Exemplars header) throws Exception {
+	    if (header.checkForStringAttributes())
+		throw new Exception("Can't handle string attributes!");
+	    
+	    m_NumAttributes = header.numAttributes();
+	    FastVector atts = new FastVector(m_NumAttributes);
+	    for (int k = 0; k < m_NumAttributes; k++)
+		atts.addElement(header.attribute(k));
+	    Instances structure = new Instances(header.relationName(), atts, 0);
+	    byte[] text = structure.toString().getBytes("UTF-8");
+	    
+	    m_Out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+	    m_Out.writeInt(MAGIC);
+	    m_Out.writeInt(VERSION);
+	    m_Out.writeInt(text.length);
+	    m_Out.write(text);
+	    m_Out.writeInt(header.classIndex());
+	    m_Out.writeInt(header.idIndex());
+	    m_Position = 20 + text.length;
+	}
+
+	/**
+	 * Writes the block of one exemplar.
+	 *
+	 * @param ex the exemplar
+	 * @exception Exception if the exemplar is empty or the file cannot
+	 * be written
+	 */
+	void write(Exemplar ex) throws Exception {
+	    Instances insts = ex.getInstances();
+	    int n = insts.numInstances();
+	    if (n == 0)
+		throw new Exception("Can't write an empty exemplar!");
+	    
+	    m_IndexOut.writeLong(m_Position);
+	    m_IndexOut.writeInt(n);
+	    m_IndexOut.writeDouble(ex.idValue());
+	    m_IndexOut.writeDouble(ex.classValue());
+	    m_IndexOut.writeDouble(ex.weight());
+	    m_NumExemplars++;
+	    
+	    for (int k = 0; k < m_NumAttributes; k++)
+		for (int j = 0; j < n; j++)
+		    m_Out.writeDouble(insts.instance(j).value(k));
+	    for (int j = 0; j < n; j++)
+		m_Out.writeDouble(insts.instance(j).weight());
+	    m_Position += 8L * (m_NumAttributes + 1) * n;
+	}
+
+	/**
+	 * Writes the index and the trailer.
+	 *
+	 * @exception IOException if the file cannot be written
+	 */
+	void finish() throws IOException {
+	    long indexStart = m_Position;
+	    m_IndexOut.flush();
+	    m_Out.writeInt(m_NumExemplars);
+	    m_Index.writeTo(m_Out);
+	    m_Out.writeLong(indexStart);
+	    m_Out.writeInt(MAGIC);
+	    m_Out.flush();
+	}
+
+	/**
+	 * Closes the file.
+	 *
+	 * @exception IOException if the file cannot be closed
+	 */
+	void close() throws IOException {
+	    m_Out.close();
+	}
+    }
+
+    /**
+     * Converts an ARFF file into the binary format. <p>
+     *
+     * Valid options are: <p>
+     *
+     * -i filename <br>
+     * The ARFF file to convert. <p>
+     *
+     * -o filename <br>
+     * The binary file to write. <p>
+     *
+     * -c index <br>
+     * The index of the class attribute (1, 2, ...; default last). <p>
+     *
+     * -I index <br>
+     * The index of the ID attribute (0, 1, 2, ...; default first), 
+     * as for MIEvaluation. <p>
+     *
+     * -sorted <br>
+     * The instances of each exemplar are contiguous in the ARFF file,
+     * so it is converted one exemplar at a time. <p>
+     *
+     * @param args the options
+     */
+    public static void main(String [] args) {
+	try {
+	    String input = Utils.getOption('i', args);
+	    String output = Utils.getOption('o', args);
+	    if ((input.length() == 0) || (output.length() == 0))
+		throw new Exception("Usage: BinaryExemplars -i <ARFF file> "+
+				    "-o <binary file> [-c <class index>] "+
+				    "[-I <ID index>] [-sorted]");
+	    String classString = Utils.getOption('c', args);
+	    int classIndex = (classString.length() != 0) ? 
+		Integer.parseInt(classString) - 1 : -1;
+	    String idString = Utils.getOption('I', args);
+	    int idIndex = (idString.length() != 0) ? 
+		Integer.parseInt(idString) : 0;
+	    boolean sorted = Utils.getFlag("sorted", args);
+	    
+	    ExemplarReader in = new ExemplarReader
+		(new BufferedReader(new FileReader(input)), 
+		 classIndex, idIndex, sorted);
+	    try {
+		convert(in, new File(output));
+	    } finally {
+		in.close();
+	    }
+	} catch (Exception ex) {
+	    System.err.println(ex.getMessage());
+	}
+    }
+}
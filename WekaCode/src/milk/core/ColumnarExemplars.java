@@ -0,0 +1,281 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ColumnarExemplars.java
+ *
+ */
+package milk.core;
+
+import java.io.*;
+import weka.core.*;
+
+/**
+ * A packed, read-only columnar copy of the values in a set of exemplars. <p>
+ *
+ * The values of each attribute other than the ID and the class are
+ * stored in one contiguous array, with the instances of all bags laid
+ * out one bag after another.  The instances of the ith bag occupy the
+ * positions <code>bagStart(i)</code> to <code>bagEnd(i)-1</code> of every
+ * column.  Missing values are stored as NaN. <p>
+ *
+ * Column j holds the jth attribute when the ID and class attributes are
+ * skipped, which is the order the MI classifiers use for their
+ * parameters. <p>
+ *
+ * The arrays returned by the accessors are not copied and must not
+ * be modified.
+ *
+ * @version $Revision: 1.0 $
+ */
+public class ColumnarExemplars implements Serializable {
+
+    /** The values, one array per attribute excluding ID and class */
+    private double[][] m_Columns;
+
+    /** The position of the first instance of each bag, plus the total
+     *  number of instances as the last element */
+    private int[] m_Offsets;
+
+    /** The index in the original data of the attribute in each column */
+    private int[] m_AttIndices;
+
+    /** The class value of each bag */
+    private double[] m_ClassValues;
+
+    /** The ID value of each bag */
+    private double[] m_IdValues;
+
+    /** The weight of each bag */
+    private double[] m_BagWeights;
+
+    /** The weight of each instance */
+    private double[] m_InstanceWeights;
+
+    /**
+     * Packs the given exemplars into columns.
+     *
+     * @param data the exemplars to be packed
+     */
+    public ColumnarExemplars(Exemplars data) {
+	int nC = data.numExemplars();
+	int idIndex = data.idIndex(), classIndex = data.classIndex();
+
+	m_Offsets = new int[nC+1];
+	m_ClassValues = new double[nC];
+	m_IdValues = new double[nC];
+	m_BagWeights = new double[nC];
+	for(int i=0; i < nC; i++){
+	    Exemplar ex = data.exemplar(i);
+	    m_Offsets[i+1] = m_Offsets[i] + ex.getInstances().numInstances();
+	    m_ClassValues[i] = ex.classValue();
+	    m_IdValues[i] = ex.idValue();
+	    m_BagWeights[i] = ex.weight();
+	}
+
+	int nR = 0;
+	for(int k=0; k < data.numAttributes(); k++)
+	    if((k != idIndex) && (k != classIndex))
+		nR++;
+	m_AttIndices = new int[nR];
+	for(int k=0, idx=0; k < data.numAttributes(); k++)
+	    if((k != idIndex) && (k != classIndex))
+		m_AttIndices[idx++] = k;
+
+	int total = m_Offsets[nC];
+	m_Columns = new double[nR][total];
+	m_InstanceWeights = new double[total];
+	for(int i=0; i < nC; i++){
+	    Instances insts = data.exemplar(i).getInstances();
+	    int start = m_Offsets[i];
+	    for(int j=0; j < insts.numInstances(); j++){
+		Instance ins = insts.instance(j);
+		m_InstanceWeights[start+j] = ins.weight();
+		for(int k=0; k < nR; k++)
+		    m_Columns[k][start+j] = ins.value(m_AttIndices[k]);
+	    }
+	}
+    }
+
+    /**
+     * Creates a copy of the given columns with each value v of column k
+     * replaced by (v-shift[k])/scale[k].  Columns whose scale is 0 are
+     * left unscaled.  The bag structure is shared with the source.
+     *
+     * @param source the columns to be transformed
+     * @param shift the value subtracted from each column
+     * @param scale the value each column is divided by after shifting
+     * @param replaceMissing whether missing values are replaced by the
+     * shift value of their column before transforming, otherwise they
+     * stay missing
+     */
+    public ColumnarExemplars(ColumnarExemplars source, double[] shift,
+			     double[] scale, boolean replaceMissing) {
+	m_Offsets = source.m_Offsets;
+	m_AttIndices = source.m_AttIndices;
+	m_ClassValues = source.m_ClassValues;
+	m_IdValues = source.m_IdValues;
+	m_BagWeights = source.m_BagWeights;
+	m_InstanceWeights = source.m_InstanceWeights;
+
+	m_Columns = new double[source.m_Columns.length][];
+	for(int k=0; k < m_Columns.length; k++){
+	    double[] src = source.m_Columns[k];
+	    double[] col = new double[src.length];
+	    for(int p=0; p < col.length; p++){
+		double v = src[p];
+		if(Double.isNaN(v) && replaceMissing)
+		    v = shift[k];
+		if(scale[k] != 0)
+		    v = (v - shift[k]) / scale[k];
+		col[p] = v;
+	    }
+	    m_Columns[k] = col;
+	}
+    }
+
+    /**
+     * Returns the number of bags.
+     *
+     * @return the number of bags
+     */
+    public final int numBags() {
+	return m_ClassValues.length;
+    }
+
+    /**
+     * Returns the number of columns, i.e. the number of attributes
+     * excluding the ID and the class.
+     *
+     * @return the number of columns
+     */
+    public final int numColumns() {
+	return m_Columns.length;
+    }
+
+    /**
+     * Returns the total number of instances in all bags.
+     *
+     * @return the number of instances
+     */
+    public final int numInstances() {
+	return m_Offsets[m_Offsets.length-1];
+    }
+
+    /**
+     * Returns the position of the first instance of the given bag.
+     *
+     * @param bag the bag's index
+     * @return the position of the bag's first instance in each column
+     */
+    public final int bagStart(int bag) {
+	return m_Offsets[bag];
+    }
+
+    /**
+     * Returns the position after the last instance of the given bag.
+     *
+     * @param bag the bag's index
+     * @return the position after the bag's last instance in each column
+     */
+    public final int bagEnd(int bag) {
+	return m_Offsets[bag+1];
+    }
+
+    /**
+     * Returns the number of instances in the given bag.
+     *
+     * @param bag the bag's index
+     * @return the bag's size
+     */
+    public final int bagSize(int bag) {
+	return m_Offsets[bag+1] - m_Offsets[bag];
+    }
+
+    /**
+     * Returns the values of one attribute for all instances.  The array
+     * is not copied and must not be modified.
+     *
+     * @param col the column's index
+     * @return the values of the column
+     */
+    public final double[] column(int col) {
+	return m_Columns[col];
+    }
+
+    /**
+     * Returns one value.
+     *
+     * @param col the column's index
+     * @param bag the bag's index
+     * @param ins the instance's index inside the bag
+     * @return the value
+     */
+    public final double value(int col, int bag, int ins) {
+	return m_Columns[col][m_Offsets[bag]+ins];
+    }
+
+    /**
+     * Returns the index in the original data of the attribute
+     * stored in the given column.
+     *
+     * @param col the column's index
+     * @return the attribute's index
+     */
+    public final int attributeIndex(int col) {
+	return m_AttIndices[col];
+    }
+
+    /**
+     * Returns the class value of the given bag.
+     *
+     * @param bag the bag's index
+     * @return the class value
+     */
+    public final double classValue(int bag) {
+	return m_ClassValues[bag];
+    }
+
+    /**
+     * Returns the ID value of the given bag.
+     *
+     * @param bag the bag's index
+     * @return the ID value
+     */
+    public final double idValue(int bag) {
+	return m_IdValues[bag];
+    }
+
+    /**
+     * Returns the weight of the given bag.
+     *
+     * @param bag the bag's index
+     * @return the bag's weight
+     */
+    public final double bagWeight(int bag) {
+	return m_BagWeights[bag];
+    }
+
+    /**
+     * Returns the weight of the instance at the given position.
+     *
+     * @param pos the instance's position in the columns
+     * @return the instance's weight
+     */
+    public final double instanceWeight(int pos) {
+	return m_InstanceWeights[pos];
+    }
+}
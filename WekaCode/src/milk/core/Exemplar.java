@@ -104,6 +104,103 @@ public class Exemplar implements Serializable {
     /** The weight of this exemplar */
     private double m_Weight = 1;
 
+    /** The summary statistics of the instances, null until needed */
+    private transient volatile Statistics m_Stats = null;
+
+    /**
+     * The per-attribute sums the summaries of an exemplar are computed
+     * from.  The sums are accumulated in the order of the instances,
+     * exactly as the corresponding methods of Instances do, so that the
+     * summaries do not depend on whether they were cached.
+     */
+    private static final class Statistics {
+	
+	/** The number of instances the statistics were computed from */
+	int numInstances;
+
+	/** The sum of the weights of all instances */
+	double totalWeight;
+
+	/** The number of non-missing values of each attribute */
+	int[] count;
+
+	/** The sum of the weights of the non-missing values of each attribute */
+	double[] sumOfWeights;
+
+	/** The weighted sum of the values of each attribute */
+	double[] sum;
+
+	/** The weighted sum of the squared values of each attribute */
+	double[] sumSquared;
+
+	/** The minimum and maximum values of each attribute, NaN if none */
+	double[] min, max;
+
+	/**
+	 * Computes the statistics of the given instances in one pass.
+	 *
+	 * @param insts the instances
+	 */
+	Statistics(Instances insts) {
+	    int numAtts = insts.numAttributes();
+	    count = new int[numAtts];
+	    sumOfWeights = new double[numAtts];
+	    sum = new double[numAtts];
+	    sumSquared = new double[numAtts];
+	    min = new double[numAtts];
+	    max = new double[numAtts];
+	    for(int k=0; k < numAtts; k++)
+		min[k] = max[k] = Double.NaN;
+	    for(int i=0; i < insts.numInstances(); i++)
+		update(insts.instance(i));
+	}
+
+	/**
+	 * Constructor copying the given statistics.
+	 *
+	 * @param stats the statistics to be copied
+	 */
+	Statistics(Statistics stats) {
+	    numInstances = stats.numInstances;
+	    totalWeight = stats.totalWeight;
+	    count = (int[])stats.count.clone();
+	    sumOfWeights = (double[])stats.sumOfWeights.clone();
+	    sum = (double[])stats.sum.clone();
+	    sumSquared = (double[])stats.sumSquared.clone();
+	    min = (double[])stats.min.clone();
+	    max = (double[])stats.max.clone();
+	}
+
+	/**
+	 * Adds one instance to the statistics.
+	 *
+	 * @param ins the instance
+	 */
+	void update(Instance ins) {
+	    double w = ins.weight();
+	    numInstances++;
+	    totalWeight += w;
+	    for(int k=0; k < count.length; k++){
+		if(ins.isMissing(k))
+		    continue;
+		double v = ins.value(k);
+		count[k]++;
+		sumOfWeights[k] += w;
+		sum[k] += w * v;
+		sumSquared[k] += w * v * v;
+		if(Double.isNaN(min[k])){
+		    min[k] = max[k] = v;
+		}
+		else{
+		    if(v < min[k])
+			min[k] = v;
+		    if(v > max[k])
+			max[k] = v;
+		}
+	    }
+	}
+    }
+
     /**
      * Constructor using one instance to form an exemplar
      * 
@@ -146,6 +243,10 @@ public class Exemplar implements Serializable {
 	m_ClassValue = exemplar.m_ClassValue;
 	m_Instances = new Instances(exemplar.m_Instances);
 	m_Weight = exemplar.m_Weight;
+	Statistics stats = exemplar.m_Stats;
+	if((stats != null) && 
+	   (stats.numInstances == m_Instances.numInstances()))
+	    m_Stats = new Statistics(stats);
     }
 
     /**
@@ -206,8 +307,14 @@ public class Exemplar implements Serializable {
 	if(!checkInstance(instance))
 	    throw new IllegalArgumentException("The Id value and/or class value " +
 					       "is not compatible: add failed.");
-	else
+	else{
 	    m_Instances.add(inst);
+	    if((m_Stats != null) && 
+	       (m_Stats.numInstances == m_Instances.numInstances()-1))
+		m_Stats.update(inst);
+	    else
+		m_Stats = null;
+	}
     }
 
     /**
@@ -299,6 +406,7 @@ public class Exemplar implements Serializable {
 	    m_IdIndex--;
 	
 	m_Instances.deleteAttributeAt(position);
+	m_Stats = null;
     }
     
 
@@ -317,7 +425,9 @@ public class Exemplar implements Serializable {
     }    
 
     /**
-     * Returns the dataset in this exemplar
+     * Returns the dataset in this exemplar.  If the values or weights of
+     * the instances are changed through it, invalidateStatistics() must
+     * be called afterwards.
      *
      * @return all the instances in the exemplar
      */
@@ -369,6 +479,7 @@ public class Exemplar implements Serializable {
 	if (m_IdIndex >= position) 
 	    m_IdIndex++;
 	m_Instances.insertAttributeAt(att, position);
+	m_Stats = null;
     }
 
     /**
@@ -386,9 +497,9 @@ public class Exemplar implements Serializable {
 
 	for(int i=0; i < (numAttr+2); i++){	    
 	    if((i != m_IdIndex) && (i != m_ClassIndex)){
-		if(Utils.gr(m_Instances.sumOfWeights(),0.0) && 
+		if(Utils.gr(sumOfWeights(),0.0) && 
 		   !isAllMissing(i))
-		    mean[j] = m_Instances.meanOrMode(i);
+		    mean[j] = meanOrMode(i);
 		else
 		    mean[j] = Double.NaN;
 		j++;
@@ -411,7 +522,7 @@ public class Exemplar implements Serializable {
 	for(int i=0; i < (numAttr+2); i++){
 	    if((i != m_IdIndex) && (i != m_ClassIndex)){
 		if(m_Instances.attribute(i).isNumeric())
-		    var[j] = m_Instances.variance(i);
+		    var[j] = variance(i);
 		else
 		    var[j] = -1;
 		
@@ -421,6 +532,108 @@ public class Exemplar implements Serializable {
 	
 	return var;
     }
+
+    /**
+     * Returns the mean (mode) of the given attribute, as 
+     * Instances.meanOrMode(int) does.  Returns 0 if the attribute is
+     * neither nominal nor numeric, or if all its values are missing.
+     *
+     * @param attIndex the attribute's index
+     * @return the mean or the mode of the attribute
+     */
+    public final double meanOrMode(int attIndex) {
+	if(!m_Instances.attribute(attIndex).isNumeric())
+	    return m_Instances.meanOrMode(attIndex);
+
+	Statistics stats = statistics();
+	if(Utils.eq(stats.sumOfWeights[attIndex], 0))
+	    return 0;
+	return stats.sum[attIndex] / stats.sumOfWeights[attIndex];
+    }
+
+    /**
+     * Returns the variance of the given numeric attribute, as 
+     * Instances.variance(int) does.
+     *
+     * @param attIndex the attribute's index
+     * @return the variance of the attribute
+     * @exception IllegalArgumentException if the attribute is not numeric
+     */
+    public final double variance(int attIndex) {
+	if(!m_Instances.attribute(attIndex).isNumeric())
+	    throw new IllegalArgumentException("Can't compute variance because "+
+					       "attribute is not numeric!");
+
+	Statistics stats = statistics();
+	double sumOfWeights = stats.sumOfWeights[attIndex];
+	if(sumOfWeights <= 1)
+	    return 0;
+	double sum = stats.sum[attIndex];
+	double result = (stats.sumSquared[attIndex] - (sum * sum / sumOfWeights))
+	    / (sumOfWeights - 1);
+	if(result < 0)
+	    return 0;
+	return result;
+    }
+
+    /**
+     * Returns the minimum and maximum values of the given attribute,
+     * ignoring missing values.
+     *
+     * @param attIndex the attribute's index
+     * @return the minimum in entry 0 and the maximum in entry 1, both NaN
+     * if all values are missing
+     */
+    public final double[] minimax(int attIndex) {
+	Statistics stats = statistics();
+	return new double[] {stats.min[attIndex], stats.max[attIndex]};
+    }
+
+    /**
+     * Returns the sum of the weights of the instances whose value of the
+     * given attribute is not missing.
+     *
+     * @param attIndex the attribute's index
+     * @return the sum of the weights
+     */
+    public final double sumOfWeights(int attIndex) {
+	return statistics().sumOfWeights[attIndex];
+    }
+
+    /**
+     * Returns the sum of the weights of all instances.
+     *
+     * @return the sum of the weights
+     */
+    public final double sumOfWeights() {
+	return statistics().totalWeight;
+    }
+
+    /**
+     * Discards the cached summary statistics.  Must be called after the
+     * values or weights of the instances have been changed directly via
+     * getInstances().
+     */
+    public final void invalidateStatistics() {
+	m_Stats = null;
+    }
+
+    /**
+     * Returns the summary statistics of the instances, computing them
+     * if they are not cached or if instances have been added or removed
+     * directly via getInstances().
+     *
+     * @return the statistics
+     */
+    private Statistics statistics() {
+	Statistics stats = m_Stats;
+	if((stats == null) || 
+	   (stats.numInstances != m_Instances.numInstances())){
+	    stats = new Statistics(m_Instances);
+	    m_Stats = stats;
+	}
+	return stats;
+    }
     
     /**
      * Returns the number of ID labels.
@@ -491,10 +704,7 @@ public class Exemplar implements Serializable {
      * @return whether values are all missing
      */ 
     public final boolean isAllMissing(int attIndex){
-	for(int i=0; i<m_Instances.numInstances(); i++)
-	    if(!m_Instances.instance(i).isMissing(attIndex))
-		return false;
-	return true;
+	return statistics().count[attIndex] == 0;
     }
     
   /**
@@ -0,0 +1,177 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ExemplarReader.java
+ *
+ */
+package milk.core;
+
+import java.io.*;
+import weka.core.*;
+
+/**
+ * Reads multi-instance data in ARFF format one exemplar at a time,
+ * without first reading the whole file into a set of Instances. <p>
+ *
+ * In sorted mode the instances of each exemplar must be contiguous in
+ * the file (e.g. sorted by ID).  Only one exemplar is held in memory at
+ * a time, and an exception is thrown if an ID turns up again after its
+ * exemplar has been returned.  Otherwise all exemplars are collected
+ * (once, as Exemplars) the first time one is asked for, and are then
+ * returned in the order of their first instance. <p>
+ *
+ * Typical usage: <p>
+ *
+ * <code>
+ * ExemplarReader in = new ExemplarReader(reader, -1, 0, true);<br>
+ * Exemplar ex;<br>
+ * while ((ex = in.readExemplar()) != null) {<br>
+ * &nbsp;&nbsp; ...<br>
+ * }<br>
+ * in.close();<br>
+ * </code>
+ *
+ * @version $Revision: 1.0 $
+ */
+public class ExemplarReader extends ExemplarStream {
+
+    /** The source of the data */
+    private Reader m_Reader;
+
+    /** The header of the data, holding at most one instance at a time */
+    private Instances m_Structure;
+
+    /** Whether the exemplars are contiguous in the data */
+    private boolean m_Sorted;
+
+    /** All exemplars in unsorted mode, null until read */
+    private Exemplars m_All = null;
+
+    /** The position of the next exemplar in m_All */
+    private int m_Position = 0;
+
+    /**
+     * Reads the header of the data.
+     *
+     * @param reader the source of the data
+     * @param classIndex the index of the class attribute (0, 1, ...), 
+     * or -1 for the last attribute
+     * @param idIndex the index of the ID attribute (0, 1, ...)
+     * @param sorted whether the instances of each exemplar are contiguous
+     * @exception Exception if the header cannot be read or the indices
+     * are wrong
+     */
+    public ExemplarReader(Reader reader, int classIndex, int idIndex, 
+			  boolean sorted) throws Exception {
+	super(idIndex);
+	m_Reader = reader;
+	m_Sorted = sorted;
+	m_Structure = new Instances(reader, 1);
+	if (classIndex >= m_Structure.numAttributes()) 
+	    throw new Exception("Index of class attribute too large.");
+	if (classIndex < 0)
+	    classIndex = m_Structure.numAttributes() - 1;
+	m_Structure.setClassIndex(classIndex);
+	
+	if((idIndex < 0) || (idIndex >= m_Structure.numAttributes()) 
+	   || (!m_Structure.attribute(idIndex).isNominal()))
+	    throw new Exception ("ID index is wrong!");
+    }
+
+    /**
+     * Returns the structure of the data.
+     *
+     * @return the structure
+     */
+    protected Instances getStructure() {
+	return m_Structure;
+    }
+
+    /**
+     * Reads the next exemplar, from all exemplars in unsorted mode.
+     *
+     * @return the next exemplar, or null if there are no more
+     * @exception Exception if the data cannot be read, or an exemplar
+     * is not contiguous in sorted mode
+     */
+    protected Exemplar nextExemplar() throws Exception {
+	if (m_Sorted)
+	    return super.nextExemplar();
+	
+	if (m_All == null)
+	    m_All = readAll();
+	if (m_Position >= m_All.numExemplars()) 
+	    return null;
+	return m_All.exemplar(m_Position++);
+    }
+
+    /**
+     * Reads all remaining exemplars into one set.
+     *
+     * @return the exemplars
+     * @exception Exception if the data cannot be read
+     */
+    public Exemplars readExemplars() throws Exception {
+	if (!m_Sorted && (m_All == null) && !hasReadAhead()) {
+	    Exemplars all = readAll();
+	    m_All = getHeader();
+	    return all;
+	}
+	return super.readExemplars();
+    }
+
+    /**
+     * Reads all remaining instances into one set of exemplars.
+     *
+     * @return the exemplars
+     * @exception Exception if the data cannot be read or an ID value
+     * is missing
+     */
+    private Exemplars readAll() throws Exception {
+	Exemplars all = getHeader();
+	Instance ins;
+	while ((ins = readInstance()) != null) {
+	    if (ins.isMissing(idIndex()))
+		throw new Exception("Missing ID value in the data!");
+	    all.add(ins);
+	}
+	return all;
+    }
+
+    /**
+     * Reads the next instance.
+     *
+     * @return the instance, or null at the end of the data
+     * @exception IOException if the instance cannot be read
+     */
+    protected Instance readInstance() throws IOException {
+	if (!m_Structure.readInstance(m_Reader))
+	    return null;
+	Instance ins = m_Structure.instance(0);
+	m_Structure.delete(0);
+	return ins;
+    }
+
+    /**
+     * Closes the source of the data.
+     *
+     * @exception IOException if the source cannot be closed
+     */
+    public void close() throws IOException {
+	m_Reader.close();
+    }
+}
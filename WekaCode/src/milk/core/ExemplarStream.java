@@ -0,0 +1,213 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ExemplarStream.java
+ *
+ */
+package milk.core;
+
+import java.util.*;
+import weka.core.*;
+
+/**
+ * Groups a stream of instances into exemplars on the fly.  Subclasses
+ * provide the instances with readInstance(); the instances of each
+ * exemplar must be contiguous in the stream (e.g. sorted by ID).  Only
+ * one exemplar is held in memory at a time, and an exception is thrown
+ * if an ID turns up again after its exemplar has been returned. <p>
+ *
+ * The exemplars can be read with readExemplar(), which returns null
+ * after the last one, or through the Iterator interface.
+ *
+ * @version $Revision: 1.0 $
+ */
+public abstract class ExemplarStream implements Iterator {
+
+    /** The index of the ID attribute */
+    private int m_IdIndex;
+
+    /** The first instance of the next exemplar */
+    private Instance m_Pending = null;
+
+    /** The IDs of the exemplars returned so far */
+    private BitSet m_SeenIds = new BitSet();
+
+    /** The exemplar read ahead by hasNext(), if any */
+    private Exemplar m_Next = null;
+
+    /**
+     * Constructor
+     *
+     * @param idIndex the index of the ID attribute (0, 1, ...)
+     */
+    protected ExemplarStream(int idIndex) {
+	m_IdIndex = idIndex;
+    }
+
+    /**
+     * Reads the next instance of the stream.
+     *
+     * @return the instance, or null at the end of the stream
+     * @exception Exception if the instance cannot be read
+     */
+    protected abstract Instance readInstance() throws Exception;
+
+    /**
+     * Returns the structure of the instances.
+     *
+     * @return the structure, which may hold instances
+     */
+    protected abstract Instances getStructure();
+
+    /**
+     * Closes the source of the instances.
+     *
+     * @exception Exception if the source cannot be closed
+     */
+    public abstract void close() throws Exception;
+
+    /**
+     * Returns the index of the ID attribute.
+     *
+     * @return the index of the ID attribute
+     */
+    public int idIndex() {
+	return m_IdIndex;
+    }
+
+    /**
+     * Returns an empty set of exemplars with the structure of the data.
+     *
+     * @return the empty set
+     * @exception Exception if the set cannot be created
+     */
+    public Exemplars getHeader() throws Exception {
+	return new Exemplars(new Instances(getStructure(), 0), m_IdIndex);
+    }
+
+    /**
+     * Reads the next exemplar.
+     *
+     * @return the next exemplar, or null if there are no more
+     * @exception Exception if the data cannot be read, or an exemplar
+     * is not contiguous
+     */
+    public Exemplar readExemplar() throws Exception {
+	if (m_Next != null) {
+	    Exemplar ex = m_Next;
+	    m_Next = null;
+	    return ex;
+	}
+	return nextExemplar();
+    }
+
+    /**
+     * Reads the next exemplar from the stream, grouping contiguous
+     * instances with the same ID.
+     *
+     * @return the next exemplar, or null if there are no more
+     * @exception Exception if the data cannot be read, an ID value is
+     * missing, or an exemplar is not contiguous
+     */
+    protected Exemplar nextExemplar() throws Exception {
+	Instance first = (m_Pending != null) ? m_Pending : readInstance();
+	if (first == null)
+	    return null;
+	if (first.isMissing(m_IdIndex))
+	    throw new Exception("Missing ID value in the data!");
+	int idv = (int)first.value(m_IdIndex);
+	if (m_SeenIds.get(idv))
+	    throw new Exception("The instances of exemplar " + 
+				first.stringValue(m_IdIndex) + 
+				" are not contiguous in the data!");
+	m_SeenIds.set(idv);
+	
+	Exemplar ex = new Exemplar(first, m_IdIndex);
+	while ((m_Pending = readInstance()) != null) {
+	    if (m_Pending.isMissing(m_IdIndex))
+		throw new Exception("Missing ID value in the data!");
+	    if ((int)m_Pending.value(m_IdIndex) != idv)
+		break;
+	    ex.add(m_Pending);
+	}
+	return ex;
+    }
+
+    /**
+     * Reads all remaining exemplars into one set.
+     *
+     * @return the exemplars
+     * @exception Exception if the data cannot be read
+     */
+    public Exemplars readExemplars() throws Exception {
+	Exemplars all = getHeader();
+	Exemplar ex;
+	while ((ex = readExemplar()) != null)
+	    all.add(ex);
+	return all;
+    }
+
+    /**
+     * Returns whether there are more exemplars.
+     *
+     * @return true if there are more exemplars
+     * @exception RuntimeException if the data cannot be read
+     */
+    public boolean hasNext() {
+	if (m_Next == null) {
+	    try {
+		m_Next = readExemplar();
+	    } catch (Exception e) {
+		throw new RuntimeException(e.getMessage());
+	    }
+	}
+	return (m_Next != null);
+    }
+
+    /**
+     * Returns the next exemplar.
+     *
+     * @return the next exemplar
+     * @exception NoSuchElementException if there are no more exemplars
+     * @exception RuntimeException if the data cannot be read
+     */
+    public Object next() {
+	if (!hasNext())
+	    throw new NoSuchElementException("No more exemplars");
+	Exemplar ex = m_Next;
+	m_Next = null;
+	return ex;
+    }
+
+    /**
+     * Not supported.
+     *
+     * @exception UnsupportedOperationException always
+     */
+    public void remove() {
+	throw new UnsupportedOperationException("Exemplars are read-only");
+    }
+
+    /**
+     * Returns whether an exemplar has been read ahead by hasNext().
+     *
+     * @return true if an exemplar has been read ahead
+     */
+    protected boolean hasReadAhead() {
+	return (m_Next != null);
+    }
+}
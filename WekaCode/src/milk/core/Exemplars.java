@@ -26,7 +26,14 @@ import java.util.*;
 import weka.core.*;
 
 /**
- * The class of a set of exemplars
+ * The class of a set of exemplars. <p>
+ *
+ * The sets returned by view(), trainCV() and testCV() share their
+ * exemplars with the set they were created from instead of copying
+ * them, so several folds can be built from one dataset (also from 
+ * several threads) without duplicating it.  Their order can be 
+ * changed, but their exemplars must not be modified; the copy 
+ * constructor gives a modifiable set.
  *
  * @author Eibe Frank (eibe@cs.waikato.ac.nz)
  * @author Xin XU (xx5@cs.waikato.ac.nz)
@@ -49,6 +56,12 @@ public class Exemplars implements Serializable {
     /** The class index of this exemplar */
     private int m_ClassIndex;   
     
+    /** 
+     * The position in m_Exemplars of the (first) exemplar with each ID
+     * value, indexed by the ID value; -1 if there is no such exemplar.
+     * Rebuilt lazily if null.
+     */
+    private int[] m_IdPositions;
     
     /** 
      * Constructor to form an Exemplars by deep copying from 
@@ -70,6 +83,24 @@ public class Exemplars implements Serializable {
 	m_Exemplars = new Vector(exLen);
 	for(int i=0; i < exLen; i++)
 	    m_Exemplars.addElement(new Exemplar(exemplars.exemplar(i)));
+	reindex();
+    }
+
+    /** 
+     * Constructor creating a set holding the given exemplars with the
+     * header information of the given Exemplars.  The exemplars are
+     * not copied.
+     *
+     * @param exemplars the Exemplars whose header is used
+     * @param members the exemplars of the new set
+     */
+    private Exemplars(Exemplars exemplars, Vector members){
+	m_IdIndex = exemplars.m_IdIndex;
+	m_ClassIndex = exemplars.m_ClassIndex;
+	m_RelationName = exemplars.m_RelationName;
+	m_Attributes = (Attribute[])exemplars.m_Attributes.clone();
+	m_Exemplars = members;
+	reindex();
     }
 
     /** 
@@ -91,6 +122,7 @@ public class Exemplars implements Serializable {
 	    m_Attributes[i] = (Attribute)exemplars.m_Attributes[i].copy();
 	
 	m_Exemplars = new Vector(size);
+	reindex();
     }
 
     /**
@@ -156,6 +188,7 @@ public class Exemplars implements Serializable {
 	
 	
 	m_Exemplars = new Vector(id.numValues());
+	reindex();
 	
 	for(int j=0; j < dataset.numInstances(); j++){
 	    Instance ins = dataset.instance(j);
@@ -173,23 +206,18 @@ public class Exemplars implements Serializable {
 	Instance ins = (Instance)instance.copy();
 	
 	int idv = (int)ins.value(m_IdIndex);
-	int x=0;
-	for(; x < m_Exemplars.size(); x++){
+	int x = positionOf(idv);
+	if(x != -1){
 	    Exemplar ex = (Exemplar)m_Exemplars.elementAt(x);
-	    if(ex != null){
-		if((int)(ex.idValue()) == idv){
-		    if(!ex.checkInstance(instance))
-			throw new IllegalArgumentException("Instance not compatible " +
-							   "with the data");
-		    ex.add(ins);
-		    break;
-		}
-	    }
+	    if(!ex.checkInstance(instance))
+		throw new IllegalArgumentException("Instance not compatible " +
+						   "with the data");
+	    ex.add(ins);
 	}
-	if(x == m_Exemplars.size()){
+	else{
 	    Exemplar ex = new Exemplar(ins, m_IdIndex);
 	    ex.setWeight(1.0);
-	    m_Exemplars.addElement(ex);
+	    append(ex);
 	}
     }
 
@@ -202,13 +230,80 @@ public class Exemplars implements Serializable {
      */
     public final void add(Exemplar exemplar) {
 	int idv = (int)exemplar.idValue();	
-	for(int x=0; x < m_Exemplars.size(); x++){
+	if(positionOf(idv) != -1)
+	    throw new 
+		IllegalArgumentException("Exemplar already exists in the Exemplars");
+	append(new Exemplar(exemplar));
+    }
+
+    /**
+     * Appends an exemplar to the end of the set, recording its position
+     * in the ID index unless an exemplar with the same ID is already 
+     * present (as may happen in a resampled set).
+     *
+     * @param exemplar the exemplar to be appended
+     */
+    private void append(Exemplar exemplar) {
+	if(m_IdPositions == null)
+	    reindex();
+	int idv = (int)exemplar.idValue();
+	m_Exemplars.addElement(exemplar);
+	if((idv >= 0) && (positionOf(idv) == -1)){
+	    ensureIndexCapacity(idv);
+	    m_IdPositions[idv] = m_Exemplars.size()-1;
+	}
+    }
+
+    /**
+     * Returns the position of the (first) exemplar with the given ID value.
+     *
+     * @param idv the ID value
+     * @return the exemplar's position, -1 if there is no such exemplar
+     */
+    private int positionOf(int idv) {
+	if(m_IdPositions == null)
+	    reindex();
+	if((idv < 0) || (idv >= m_IdPositions.length))
+	    return -1;
+	return m_IdPositions[idv];
+    }
+
+    /**
+     * Rebuilds the ID index from the current order of the exemplars.
+     * Must be called whenever exemplars are removed or re-ordered.
+     */
+    private void reindex() {
+	int len = m_Exemplars.size();
+	Attribute id = m_Attributes[m_IdIndex];
+	if((id != null) && id.isNominal())
+	    len = Math.max(len, id.numValues());
+	m_IdPositions = new int[len];
+	for(int i=0; i < len; i++)
+	    m_IdPositions[i] = -1;
+	
+	for(int x=m_Exemplars.size()-1; x >= 0; x--){
 	    Exemplar ex = (Exemplar)m_Exemplars.elementAt(x);
-	    if((int)(ex.idValue()) == idv)
-		throw new 
-		  IllegalArgumentException("Exemplar already exists in the Exemplars");
-	}	
-	m_Exemplars.addElement(new Exemplar(exemplar));
+	    int idv = (int)ex.idValue();
+	    if(idv < 0)
+		continue;
+	    ensureIndexCapacity(idv);
+	    m_IdPositions[idv] = x; // last write wins: the first occurrence
+	}
+    }
+
+    /**
+     * Grows the ID index if necessary so that it can hold the given ID value.
+     *
+     * @param idv the ID value
+     */
+    private void ensureIndexCapacity(int idv) {
+	if(idv < m_IdPositions.length)
+	    return;
+	int[] newPos = new int[Math.max(idv+1, 2*m_IdPositions.length)];
+	System.arraycopy(m_IdPositions, 0, newPos, 0, m_IdPositions.length);
+	for(int i=m_IdPositions.length; i < newPos.length; i++)
+	    newPos[i] = -1;
+	m_IdPositions = newPos;
     }
 	
     /**
@@ -315,6 +410,7 @@ public class Exemplars implements Serializable {
      */
     public final void delete() {
 	m_Exemplars.removeAllElements();
+	reindex();
     }
     
     /**
@@ -324,7 +420,7 @@ public class Exemplars implements Serializable {
      */
     public final void delete(int index) {
 	m_Exemplars.removeElementAt(index);
-	
+	reindex();
     }
     
     /**
@@ -376,8 +472,11 @@ public class Exemplars implements Serializable {
      */
     public final void deleteWithMissing(int attIndex) {
 	
-	for(int i=0; i < m_Exemplars.size(); i++)
-	    ((Exemplar)m_Exemplars.elementAt(i)).getInstances().deleteWithMissing(attIndex);
+	for(int i=0; i < m_Exemplars.size(); i++){
+	    Exemplar ex = (Exemplar)m_Exemplars.elementAt(i);
+	    ex.getInstances().deleteWithMissing(attIndex);
+	    ex.invalidateStatistics();
+	}
     }
     
     /**
@@ -402,7 +501,9 @@ public class Exemplars implements Serializable {
     }   
     
     /**
-     * Returns a vector of exemplars in this Exemplars.
+     * Returns a vector of exemplars in this Exemplars.  The vector should
+     * not be structurally modified, since the ID index of this set 
+     * would not be updated.
      *
      * @return a vector of all exemplars
      */
@@ -547,6 +648,7 @@ public class Exemplars implements Serializable {
 	
 	for (int j = numExemplars() - 1; j > 0; j--)
 	    swap(j, random.nextInt(j+1));
+	reindex();
     }
     
     /**
@@ -622,7 +724,7 @@ public class Exemplars implements Serializable {
 	Exemplars newData = new Exemplars(this, numExemplars());
 	while(newData.m_Exemplars.size() < numExemplars()){
 	    int j = (int) (random.nextDouble() * (double) numExemplars());
-	    newData.m_Exemplars.addElement(new Exemplar(exemplar(j)));
+	    newData.append(new Exemplar(exemplar(j)));
 	}
 	return newData;
     }
@@ -697,7 +799,7 @@ public class Exemplars implements Serializable {
 	    sumProbs += weights[l];
 	    while ((k < len) &&
 		   (probabilities[k] <= sumProbs)) { 
-		newData.m_Exemplars.addElement(new Exemplar(exemplar(l)));
+		newData.append(new Exemplar(exemplar(l)));
 		newData.exemplar(k).setWeight(1.0);
 		k++;
 	    }
@@ -732,6 +834,7 @@ public class Exemplars implements Serializable {
 	i = 0;
 	
 	quickSort(0, j);
+	reindex();
     }
     
     /**
@@ -800,8 +903,8 @@ public class Exemplars implements Serializable {
      * @param j the second instance's index
      */
     private void swap(int i, int j){
-	Exemplar tmp = new Exemplar((Exemplar)(m_Exemplars.elementAt(i)));
-	m_Exemplars.setElementAt(new Exemplar((Exemplar)(m_Exemplars.elementAt(j))), i);
+	Object tmp = m_Exemplars.elementAt(i);
+	m_Exemplars.setElementAt(m_Exemplars.elementAt(j), i);
 	m_Exemplars.setElementAt(tmp, j);
     }
     
@@ -854,13 +957,14 @@ public class Exemplars implements Serializable {
 	while(newExm.size() < numExemplars()){
 	    j = start;
 	    while (j < numExemplars()) {
-		newExm.addElement(new Exemplar(exemplar(j)));
+		newExm.addElement(exemplar(j));
 		j = j + numFolds;
 	    }
 	    start++;
 	}
 	
 	m_Exemplars = newExm;
+	reindex();
     }    
     
     /**
@@ -873,14 +977,42 @@ public class Exemplars implements Serializable {
 	double[] sum = new double[numExemplars()];
 	
 	for (int i = 0; i < numExemplars(); i++) {
-	    sum[i] = exemplar(i).getInstances().sumOfWeights();
+	    sum[i] = exemplar(i).sumOfWeights();
 	}
 	return sum;
     }
     
+    /**
+     * Creates a view of all the exemplars in this set.  The view has
+     * its own order, so it can be randomized or stratified without
+     * affecting this set, but the exemplars themselves are shared with
+     * this set and must not be modified through it.
+     *
+     * @return the view
+     */
+    public Exemplars view() {
+	return new Exemplars(this, (Vector)m_Exemplars.clone());
+    }
+
+    /**
+     * Creates a view of the given range of exemplars in this set.
+     * The exemplars are shared with this set, as in view().
+     *
+     * @param first the index of the first exemplar
+     * @param num the number of exemplars
+     * @return the view
+     */
+    private Exemplars view(int first, int num) {
+	Vector members = new Vector(num);
+	for(int i = 0; i < num; i++)
+	    members.addElement(m_Exemplars.elementAt(first+i));
+	return new Exemplars(this, members);
+    }
+
     /**
      * Creates the test set for one fold of a cross-validation on 
-     * the dataset.
+     * the dataset.  The test set is a view sharing the exemplars with
+     * this set (see view()), so they must not be modified.
      *
      * @param numFolds the number of folds in the cross-validation. Must
      * be greater than 1.
@@ -893,7 +1025,6 @@ public class Exemplars implements Serializable {
     public Exemplars testCV(int numFolds, int numFold) throws Exception {
 	
 	int numExamForFold, first, offset;
-	Exemplars test;
 	
 	if (numFolds < 2) {
 	    throw new IllegalArgumentException("Number of folds must be at least 2!");
@@ -910,11 +1041,7 @@ public class Exemplars implements Serializable {
 	
 	first = numFold * (numExemplars() / numFolds) + offset;
 
-	test = new Exemplars(this, numExamForFold);
-	for(int i = 0; i < numExamForFold; i++)
-	    test.m_Exemplars.addElement(new Exemplar((Exemplar)m_Exemplars.elementAt(first+i)));
-	
-	return test;
+	return view(first, numExamForFold);
     }
     
     /**
@@ -959,7 +1086,8 @@ public class Exemplars implements Serializable {
 
     /**
      * Creates the training set skipping for one fold of a cross-validation 
-     * on the exemplar set.
+     * on the exemplar set.  The training set is a view sharing the 
+     * exemplars with this set (see view()), so they must not be modified.
      *
      * @param numFolds the number of folds in the cross-validation. Must
      * be greater than 1.
@@ -973,7 +1101,6 @@ public class Exemplars implements Serializable {
     public Exemplars trainCV(int numFolds, int numFold) throws Exception{
 	
 	int numExamForFold, first, offset;
-	Exemplars train;
 	
 	if (numFolds < 2)
 	    throw new IllegalArgumentException
@@ -991,15 +1118,15 @@ public class Exemplars implements Serializable {
 	    offset = numExemplars() % numFolds;
 	
 	first = numFold * (numExemplars() / numFolds) + offset;
-	train = new Exemplars(this, numExemplars() - numExamForFold);
+	Vector members = new Vector(numExemplars() - numExamForFold);
 	
 	for(int i = 0; i < first; i++)
-	    train.m_Exemplars.addElement(new Exemplar((Exemplar)m_Exemplars.elementAt(i)));
+	    members.addElement(m_Exemplars.elementAt(i));
 	
 	for(int i = first; i < numExemplars()-numExamForFold; i++)
-	    train.m_Exemplars.addElement(new Exemplar((Exemplar)m_Exemplars.elementAt(numExamForFold+i)));
+	    members.addElement(m_Exemplars.elementAt(numExamForFold+i));
 	
-	return train;
+	return new Exemplars(this, members);
     }    
     
 
@@ -21,8 +21,13 @@
 package milk.data;
 
 import weka.core.Utils;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
 import java.lang.*;
 import java.io.*;
+import java.util.Random;
 
 /**
  * Generate n-dimensional 2-class MI data using instance-based approach
@@ -51,6 +56,7 @@ public class MIDataPopulation{
 	    for(int i=0; i<numAtts; i++)
 		beta[i] = Double.parseDouble(args[index++]);
 	    
+	    Random ran = new Random();
 	    double prob[]=new double[numEx], x[][]=new double[numEx][numAtts];
 	    int cla[]=new int[numEx];
 	    double wrong0=0, wrong1=0, wrong=0;
@@ -58,11 +64,11 @@ public class MIDataPopulation{
 	    for(int y=0; y < numEx; y++){
 		for(int z=0; z<numAtts; z++){
 		    // one centroid
-		    x[y][z]=Math.random()*8-4; // A bag in [-4, 4) with range [x0-1, x0+1)
+		    x[y][z]=ran.nextDouble()*8-4; // A bag in [-4, 4) with range [x0-1, x0+1)
 		}
 		
 		prob[y] = exemplarPosterior(x[y], beta);
-		cla[y] = (Math.random() > prob[y])? 0:1;
+		cla[y] = (ran.nextDouble() > prob[y])? 0:1;
 		
 		if(prob[y]>=0.5){
 		    wrong += (1-prob[y]);
@@ -112,11 +118,11 @@ public class MIDataPopulation{
 	    pw.println("\n@data");
 	    
 	    for(int y=0; y < numEx; y++){               
-		int size = (int)(Math.random()*5)+1;
+		int size = (int)(ran.nextDouble()*5)+1;
 		for(int a=0; a<size; a++){
 		    pw.print(bagID[y].toString()+", ");
 		    for(int b=0; b<numAtts; b++)
-			pw.print(nextPoint(x[y][b])+", ");
+			pw.print(nextPoint(x[y][b], ran)+", ");
 		    pw.println(cla[y]);
 		}
 		
@@ -134,23 +140,72 @@ public class MIDataPopulation{
 	}
     }
     
+    /**
+     * Generates the same kind of data as generateData() in memory, with
+     * a fixed number of instances in every bag.  The first attribute is
+     * the bag ID and the last one the class.
+     *
+     * @param name the relation name
+     * @param numEx the number of bags
+     * @param bagSize the number of instances in each bag
+     * @param beta the coefficient of each attribute in the log-odds
+     * @param ran the random number generator
+     * @return the generated instances
+     * @exception Exception if the data cannot be generated
+     */
+    public Instances generateBags(String name, int numEx, int bagSize,
+				  double[] beta, Random ran) throws Exception{
+	int numAtts = beta.length;
+	FastVector ids = new FastVector(numEx);
+	for(int j=0; j<numEx; j++)
+	    ids.addElement(""+j);
+	FastVector classes = new FastVector(2);
+	classes.addElement("0");
+	classes.addElement("1");
+	
+	FastVector atts = new FastVector(numAtts+2);
+	atts.addElement(new Attribute("examplar", ids));
+	for(int i=0; i<numAtts; i++)
+	    atts.addElement(new Attribute("t"+i));
+	atts.addElement(new Attribute("class", classes));
+	Instances data = new Instances(name, atts, numEx*bagSize);
+	data.setClassIndex(numAtts+1);
+	
+	double[] x = new double[numAtts];
+	for(int y=0; y < numEx; y++){
+	    for(int z=0; z<numAtts; z++)
+		x[z]=ran.nextDouble()*8-4; // A bag in [-4, 4) with range [x0-1, x0+1)
+	    int cla = (ran.nextDouble() > exemplarPosterior(x, beta))? 0:1;
+	    
+	    for(int a=0; a<bagSize; a++){
+		double[] vals = new double[numAtts+2];
+		vals[0] = y;
+		for(int b=0; b<numAtts; b++)
+		    vals[b+1] = nextPoint(x[b], ran);
+		vals[numAtts+1] = cla;
+		data.add(new Instance(1.0, vals));
+	    }
+	}
+	return data;
+    }
+    
     // Generate random variates in a range of [x0-1, x0+1), with normalized
     // triangle distribution in [-5, 5): 0.2+0.04x if x<=0; 0.2-0.04x if x>0.
-    protected double nextPoint(double x0) throws Exception{
+    protected double nextPoint(double x0, Random ran) throws Exception{
 	if(x0 >= 1){
-	    double point = Math.random()*2.0+(x0-1);
+	    double point = ran.nextDouble()*2.0+(x0-1);
 	    if(point <= x0) // Keep it
 		return point;
-	    else if(Math.random()*(0.2-0.04*x0) > 0.2-0.04*point)
+	    else if(ran.nextDouble()*(0.2-0.04*x0) > 0.2-0.04*point)
 		return 2.0*x0-point;
 	    else
 		return point;       
 	}
 	else if(x0 <= -1){
-	    double point = Math.random()*2.0+(x0-1);
+	    double point = ran.nextDouble()*2.0+(x0-1);
 	    if(point >= x0) // Keep it
 		return point;
-	    else if(Math.random()*(0.2+0.04*x0) > 0.2+0.04*point)
+	    else if(ran.nextDouble()*(0.2+0.04*x0) > 0.2+0.04*point)
 		return 2.0*x0-point;
 	    else
 		return point;    
@@ -159,20 +214,20 @@ public class MIDataPopulation{
 	    double total=-0.08*x0*x0+0.72, 
 		left = -0.04*x0*x0-0.32*x0+0.36;
 	    
-	    if(Math.random()*total <= left){ // Left side
-		double point = Math.random()*(1-x0)+x0-1;
+	    if(ran.nextDouble()*total <= left){ // Left side
+		double point = ran.nextDouble()*(1-x0)+x0-1;
 		if(point >= (x0-1)/2.0) // Keep it
 		    return point;
-		else if(Math.random()*(0.2+0.02*(x0-1)) > 0.2+0.04*point)
+		else if(ran.nextDouble()*(0.2+0.02*(x0-1)) > 0.2+0.04*point)
 		    return x0-1-point;
 		else
 		    return point;       
 	    }
 	    else{ // Right side
-		double point = Math.random()*(1+x0);
+		double point = ran.nextDouble()*(1+x0);
 		if(point <= (x0+1)/2.0) // Keep it
 		    return point;
-		else if(Math.random()*(0.2-0.02*(x0+1)) > 0.2-0.04*point)
+		else if(ran.nextDouble()*(0.2-0.02*(x0+1)) > 0.2-0.04*point)
 		    return x0+1-point;
 		else
 		    return point;           
@@ -24,6 +24,10 @@ import weka.core.RandomVariates;
 import java.lang.*;
 import java.io.*;
 import weka.core.Utils;
+import weka.core.Attribute;
+import weka.core.FastVector;
+import weka.core.Instance;
+import weka.core.Instances;
 
 /**
  * Generate n-dimensional 2-class MI data using two level distributions
@@ -145,6 +149,69 @@ public class TLDData{
 	}
     }
     
+    /**
+     * Generates the same kind of data as main() in memory, with a fixed
+     * number of instances in every bag.  The arrays of parameters are
+     * indexed by class and attribute as in main().  The first attribute
+     * is the bag ID and the last one the class.
+     *
+     * @param name the relation name
+     * @param numEx the number of bags of each class
+     * @param bagSize the number of instances in each bag
+     * @param a the parameter a of each class and attribute
+     * @param b the parameter b of each class and attribute
+     * @param w the parameter w of each class and attribute
+     * @param m the parameter m of each class and attribute
+     * @param ran the random number generator
+     * @return the generated instances
+     * @exception Exception if the data cannot be generated
+     */
+    public static Instances generateBags(String name, int numEx, int bagSize,
+					 double[][] a, double[][] b, 
+					 double[][] w, double[][] m,
+					 RandomVariates ran) throws Exception{
+	int numAtts = a[0].length;
+	FastVector ids = new FastVector(2*numEx);
+	for(int j=0; j<2*numEx; j++)
+	    ids.addElement(""+j);
+	FastVector classes = new FastVector(2);
+	classes.addElement("0");
+	classes.addElement("1");
+	
+	FastVector atts = new FastVector(numAtts+2);
+	atts.addElement(new Attribute("examplar", ids));
+	for(int j=1; j<=numAtts; j++)
+	    atts.addElement(new Attribute("X"+j));
+	atts.addElement(new Attribute("class", classes));
+	Instances data = new Instances(name, atts, 2*numEx*bagSize);
+	data.setClassIndex(numAtts+1);
+	
+	double[][] param = new double[numAtts][2]; // mu and sigma for each dimension
+	for(int x=0; x<2*numEx; x++){
+	    int c = (x < numEx) ? 0 : 1;
+	    for(int y=0; y < numAtts; y++){			
+		double variance = ran.nextGamma(b[c][y]/2.0);
+		while(variance<=10e-9)
+		    variance = ran.nextGamma(b[c][y]/2.0);
+		double sigma = Math.sqrt(0.5*a[c][y]/variance),
+		    mu = ran.nextGaussian()*Math.sqrt(w[c][y])*sigma+m[c][y]; 
+		param[y][0] = mu;
+		param[y][1] = sigma;
+	    }
+	    
+	    double[][] ex = createEx(bagSize, param, ran);
+	    for(int p=0; p<bagSize; p++){
+		double[] vals = new double[numAtts+2];
+		vals[0] = x;
+		for(int q=0; q<numAtts; q++)
+		    vals[q+1] = ex[p][q];
+		vals[numAtts+1] = c;
+		data.add(new Instance(1.0, vals));
+	    }
+	}
+	return data;
+    }
+    
     public static double[][] createEx(int num, double[][] param, RandomVariates ran){
 	double[][] result = new double[num][param.length];
 	
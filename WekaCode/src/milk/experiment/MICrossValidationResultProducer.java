@@ -283,8 +283,8 @@ public class MICrossValidationResultProducer
     if (m_Instances == null) {
       throw new Exception("No Instances set");
     }
-    // Randomize on a copy of the original dataset
-    Exemplars runInstances = new Exemplars(m_Instances);
+    // Randomize on a view of the original dataset
+    Exemplars runInstances = m_Instances.view();
     Random random = new Random(run);
     runInstances.randomize(random);
     if (runInstances.classAttribute().isNominal()) {
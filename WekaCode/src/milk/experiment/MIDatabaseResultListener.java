@@ -32,7 +32,11 @@ import weka.core.FastVector;
 
 /**
  * DatabaseResultListener takes the results from a ResultProducer
- * and submits them to a central database.
+ * and submits them to a central database. <p>
+ *
+ * Unless a cache key name is set, the keys of all results already in
+ * the results table are read into memory by preProcess(), so that
+ * isResultRequired() does not have to query the database.
  *
  * @author Len Trigg (trigg@cs.waikato.ac.nz)
  * @version $Revision: 1.7 $
@@ -61,6 +65,12 @@ public class MIDatabaseResultListener extends MIDatabaseUtils
   /** Stores the cached values */
   protected FastVector m_Cache = new FastVector();
 
+  /** The keys of the results in the results table, null if not loaded */
+  protected HashSet m_KeySet;
+
+  /** The name of the table whose keys are in m_KeySet */
+  protected String m_KeySetTableName;
+
   /**
    * Returns a string describing this result listener
    * @return a description of the result listener suitable for
@@ -93,6 +103,9 @@ public class MIDatabaseResultListener extends MIDatabaseUtils
     // Connect to the database and find out what table corresponds to this
     //   ResultProducer
     updateResultsTableName(m_ResultProducer);
+    if (m_CacheKeyName.equals("")) {
+      loadKeySet(rp);
+    }
   }
   
   /**
@@ -108,6 +121,8 @@ public class MIDatabaseResultListener extends MIDatabaseUtils
     if (m_ResultProducer != rp) {
       throw new Error("Unrecognized ResultProducer calling postProcess!!");
     }
+    m_KeySet = null;
+    m_KeySetTableName = null;
     disconnectFromDatabase();
   }
   
@@ -176,6 +191,9 @@ public class MIDatabaseResultListener extends MIDatabaseUtils
     // null result could occur from a chain of doRunKeys calls
     if (result != null) {
       putResultInTable(m_ResultsTableName, rp, key, result);      
+      if (isKeySetValid(key)) {
+	m_KeySet.add(keySetEntry(key));
+      }
     }
   }
 
@@ -209,6 +227,8 @@ public class MIDatabaseResultListener extends MIDatabaseUtils
 	loadCache(rp, key);
       }
       retval = !isKeyInCache(rp, key);
+    } else if (isKeySetValid(key)) {
+      retval = !m_KeySet.contains(keySetEntry(key));
     } else {
       // Ask whether the results are needed
       retval = !isKeyInTable(m_ResultsTableName,
@@ -323,6 +343,97 @@ public class MIDatabaseResultListener extends MIDatabaseUtils
     return false;
   }
   
+  /**
+   * Checks whether the key set can be used to look up the given key,
+   * i.e. whether it holds the keys of the current results table and
+   * the key has no missing fields.
+   *
+   * @param key the results key
+   * @return true if the key can be looked up in the key set
+   */
+  protected boolean isKeySetValid(Object [] key) {
+
+    if ((m_KeySet == null) || !m_KeySetTableName.equals(m_ResultsTableName)) {
+      return false;
+    }
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] == null) {
+	return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the entry of the key set for the given key.
+   *
+   * @param key the results key, with no missing fields
+   * @return the entry
+   */
+  protected List keySetEntry(Object [] key) {
+
+    String [] entry = new String [key.length];
+    for (int i = 0; i < key.length; i++) {
+      entry[i] = key[i].toString();
+    }
+    return Arrays.asList(entry);
+  }
+  
+  /**
+   * Executes a database query to read the keys of all results in the
+   * results table into the key set.
+   *
+   * @param rp the ResultProducer the keys belong to
+   * @exception Exception if an error occurs
+   */
+  protected void loadKeySet(MIResultProducer rp) throws Exception {
+
+    m_KeySet = null;
+    m_KeySetTableName = null;
+    String [] keyNames = rp.getKeyNames();
+    Object [] keyTypes = rp.getKeyTypes();
+    if (keyNames.length != keyTypes.length) {
+      throw new Exception("key names types differ in length");
+    }
+    String query = "SELECT ";
+    for (int i = 0; i < keyNames.length; i++) {
+      if (i != 0) {
+	query += ", ";
+      }
+      query += "Key_" + keyNames[i];
+    }
+    query += " FROM " + m_ResultsTableName;
+
+    HashSet keys = new HashSet();
+    if (execute(query)) {
+      ResultSet rs = getResultSet();
+      Object [] key = new Object [keyNames.length];
+      while (rs.next()) {
+	boolean complete = true;
+	for (int i = 0; i < key.length; i++) {
+	  if (keyTypes[i] instanceof Double) {
+	    key[i] = new Double(rs.getDouble(i + 1));
+	  } else {
+	    key[i] = rs.getString(i + 1);
+	  }
+	  if (rs.wasNull()) {
+	    complete = false;
+	  }
+	}
+	if (complete) {
+	  keys.add(keySetEntry(key));
+	}
+      }
+      rs.close();
+    }
+    if (m_Debug) {
+      System.err.println("Read " + keys.size() + " keys from "
+			 + m_ResultsTableName);
+    }
+    m_KeySet = keys;
+    m_KeySetTableName = m_ResultsTableName;
+  }
+
   /**
    * Executes a database query to fill the key cache
    *
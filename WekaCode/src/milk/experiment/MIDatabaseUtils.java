@@ -32,6 +32,7 @@ import java.io.FileInputStream;
 import java.sql.SQLException;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.Types;
 import java.sql.DriverManager;
 import java.sql.Connection;
@@ -49,8 +50,14 @@ import java.sql.ResultSetMetaData;
  * <code><pre>
  * jdbcDriver=jdbc.idbDriver
  * jdbcURL=jdbc:idb=experiments.prp
+ * jdbcBatchSize=1
  * </pre></code><p>
  *
+ * With a batch size greater than one, results are inserted in JDBC
+ * batches of that size, each committed as one transaction.  Pending
+ * results are written before the database is queried and when the
+ * connection is closed. <p>
+ *
  * @author Len Trigg (trigg@cs.waikato.ac.nz)
  * @version $Revision: 1.16 $
  */
@@ -126,6 +133,20 @@ public class MIDatabaseUtils implements Serializable {
   /** True if debugging output should be printed */
   protected boolean m_Debug = true;
 
+  /** The number of results inserted in one batch */
+  protected int m_BatchSize = 1;
+
+  /** The statement used for inserting results, null if not prepared */
+  protected PreparedStatement m_InsertStatement;
+
+  /** The name of the table m_InsertStatement inserts into */
+  protected String m_InsertTableName;
+
+  /** The number of columns m_InsertStatement fills */
+  protected int m_InsertColumns;
+
+  /** The number of results added to the current batch */
+  protected int m_NumPending = 0;
   
   /**
    * Sets up the database drivers
@@ -136,6 +157,8 @@ public class MIDatabaseUtils implements Serializable {
 
     m_DatabaseURL = PROPERTIES.getProperty("jdbcURL",
 					   "jdbc:idb=experiments.prp");
+    m_BatchSize = Integer.parseInt(PROPERTIES.getProperty("jdbcBatchSize",
+							  "1"));
   }
 
   /**
@@ -247,6 +270,37 @@ public class MIDatabaseUtils implements Serializable {
     m_DatabaseURL = newDatabaseURL;
   }
 
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String batchSizeTipText() {
+    return "Set the number of results inserted into the database "
+      + "in one batch.";
+  }
+
+  /**
+   * Get the number of results inserted in one batch.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    
+    return m_BatchSize;
+  }
+  
+  /**
+   * Set the number of results inserted in one batch.  With 1, each
+   * result is inserted as soon as it is received.
+   *
+   * @param newBatchSize the batch size
+   */
+  public void setBatchSize(int newBatchSize) {
+    
+    m_BatchSize = newBatchSize;
+  }
+
   /**
    * Opens a connection to the database
    *
@@ -274,6 +328,8 @@ public class MIDatabaseUtils implements Serializable {
       System.err.println("Disconnecting from " + m_DatabaseURL);
     }
     if (m_Connection != null) {
+      flushResults();
+      closeInsertStatement();
       m_Connection.close();
       m_Connection = null;
       m_Statement = null;
@@ -299,6 +355,7 @@ public class MIDatabaseUtils implements Serializable {
    */
   public boolean execute(String query) throws SQLException {
 
+    flushResults();
     return m_Statement.execute(query);
   }
 
@@ -381,6 +438,7 @@ public class MIDatabaseUtils implements Serializable {
       }
     }
     boolean retval = false;
+    flushResults();
     if (m_Statement.execute(query)) {
       ResultSet rs = m_Statement.getResultSet();
       int numAttributes = rs.getMetaData().getColumnCount();
@@ -441,6 +499,7 @@ public class MIDatabaseUtils implements Serializable {
 	}
       }
     }
+    flushResults();
     if (!m_Statement.execute(query)) {
       throw new Exception("Couldn't execute query: " + query);
     }
@@ -487,8 +546,8 @@ public class MIDatabaseUtils implements Serializable {
   }
 
   /**
-   * Executes a database query to insert a result for the supplied key
-   * into the database.           
+   * Inserts a result for the supplied key into the database, or adds
+   * it to the current batch if the batch size is greater than one.
    *
    * @param tableName the name of the table where the result is stored
    * @param rp the ResultProducer who will generate the result if required
@@ -503,68 +562,131 @@ public class MIDatabaseUtils implements Serializable {
 			       Object [] result)
     throws Exception {
     
-    String query = "INSERT INTO " + tableName
-      + " VALUES ( ";
-    // Add the results to the table
+    PreparedStatement insert = 
+      prepareInsert(tableName, key.length + result.length);
+    Object [] keyTypes = rp.getKeyTypes();
+    Object [] resultTypes = rp.getResultTypes();
     for (int i = 0; i < key.length; i++) {
-      if (i != 0) {
-	query += ',';
-      }
-      if (key[i] != null) {
-	if (key[i] instanceof String) {
-	  query += '\'' + key[i].toString() + '\'';
-	} else if (key[i] instanceof Double) {
-	  query += safeDoubleToString((Double)key[i]);
-	} else {
-	  query += key[i].toString();
-	}
-      } else {
-	query += "NULL";
-      }
+      setParameter(insert, i + 1, key[i], keyTypes[i]);
     }
     for (int i = 0; i < result.length; i++) {
-      query +=  ',';
-      if (result[i] != null) {
-	if (result[i] instanceof String) {
-	  query += '"' + result[i].toString() + '"';
-	} else  if (result[i] instanceof Double) {
-	  query += safeDoubleToString((Double)result[i]);
-	} else {
-	  query += result[i].toString();
-	}
-      } else {
-	query += "NULL";
-      }
+      setParameter(insert, key.length + i + 1, result[i], resultTypes[i]);
     }
-    query += ')';
     if (m_Debug) {
-      System.err.println("Submitting result: " + query);
+      System.err.println("Submitting result:" + arrayToString(key)
+			 + arrayToString(result));
     }
-    if (m_Statement.execute(query)) {
-      if (m_Debug) {
-	System.err.println("...acceptResult returned resultset");
-      }
+
+    if (m_BatchSize <= 1) {
+      insert.executeUpdate();
+      return;
+    }
+    if ((m_NumPending == 0) && m_Connection.getAutoCommit()) {
+      m_Connection.setAutoCommit(false);
+    }
+    insert.addBatch();
+    m_NumPending++;
+    if (m_NumPending >= m_BatchSize) {
+      flushResults();
     }
   }
-  
+
   /**
-   * Inserts a + if the double is in scientific notation.
-   * MySQL doesn't understand the number otherwise.
+   * Inserts the results of the current batch into the database and
+   * commits them.
+   *
+   * @exception SQLException if an error occurs
    */
-  private String safeDoubleToString(Double number) {
+  public void flushResults() throws SQLException {
 
-    String orig = number.toString();
+    if (m_NumPending == 0) {
+      return;
+    }
+    if (m_Debug) {
+      System.err.println("Inserting " + m_NumPending + " results");
+    }
+    m_NumPending = 0;
+    try {
+      m_InsertStatement.executeBatch();
+      m_Connection.commit();
+    } catch (SQLException ex) {
+      m_Connection.rollback();
+      throw ex;
+    } finally {
+      m_Connection.setAutoCommit(true);
+    }
+  }
 
-    int pos = orig.indexOf('E');
-    if ((pos == -1) || (orig.charAt(pos + 1) == '-')) {
-      return orig;
-    } else {
-      StringBuffer buff = new StringBuffer(orig);
-      buff.insert(pos + 1, '+');
-      return new String(buff);
+  /**
+   * Returns the statement inserting results into the given table,
+   * preparing it if necessary.
+   *
+   * @param tableName the name of the table
+   * @param numColumns the number of columns of the table
+   * @return the statement
+   * @exception SQLException if an error occurs
+   */
+  protected PreparedStatement prepareInsert(String tableName, int numColumns)
+    throws SQLException {
+
+    if ((m_InsertStatement != null) && tableName.equals(m_InsertTableName)
+	&& (numColumns == m_InsertColumns)) {
+      return m_InsertStatement;
+    }
+    flushResults();
+    closeInsertStatement();
+    
+    StringBuffer query = new StringBuffer("INSERT INTO " + tableName
+					  + " VALUES ( ");
+    for (int i = 0; i < numColumns; i++) {
+      query.append((i == 0) ? "?" : ",?");
+    }
+    query.append(')');
+    m_InsertStatement = m_Connection.prepareStatement(query.toString());
+    m_InsertTableName = tableName;
+    m_InsertColumns = numColumns;
+    return m_InsertStatement;
+  }
+
+  /**
+   * Closes the statement inserting results, if any.
+   *
+   * @exception SQLException if an error occurs
+   */
+  protected void closeInsertStatement() throws SQLException {
+
+    if (m_InsertStatement != null) {
+      m_InsertStatement.close();
+      m_InsertStatement = null;
+      m_InsertTableName = null;
     }
   }
 
+  /**
+   * Sets one parameter of a statement inserting results.
+   *
+   * @param insert the statement
+   * @param index the index of the parameter (1, 2, ...)
+   * @param value the value, null for an SQL NULL
+   * @param type an object of the type of the column, as given by
+   * the ResultProducer
+   * @exception SQLException if an error occurs
+   */
+  private void setParameter(PreparedStatement insert, int index,
+			    Object value, Object type) throws SQLException {
+
+    if (value == null) {
+      insert.setNull(index, (type instanceof Double) 
+		     ? Types.DOUBLE : Types.VARCHAR);
+    } else if (value instanceof String) {
+      insert.setString(index, (String)value);
+    } else if (value instanceof Double) {
+      insert.setDouble(index, ((Double)value).doubleValue());
+    } else {
+      insert.setObject(index, value);
+    }
+  }
+  
   /**
    * Returns true if the experiment index exists.
    *
@@ -437,15 +437,17 @@ public class MIExperiment implements Serializable, OptionHandler {
     
     if (m_CurrentInstances == null) {
       File currentFile = (File) getDatasets().elementAt(m_DatasetNumber);
-      Reader reader = new FileReader(currentFile);
-      Instances dataInsts = new Instances(new BufferedReader(reader));
-      if (m_ClassFirst) {
-	dataInsts.setClassIndex(0);
+      if (BinaryExemplars.isBinaryFile(currentFile.getName())) {
+	// The class index is stored in the file
+	m_CurrentInstances = BinaryExemplars.read(currentFile);
       } else {
-	dataInsts.setClassIndex(dataInsts.numAttributes() - 1);
+	Reader reader = new FileReader(currentFile);
+	ExemplarReader exemplars = 
+	  new ExemplarReader(new BufferedReader(reader), 
+			     m_ClassFirst ? 0 : -1, 0, false);
+	m_CurrentInstances = exemplars.readExemplars();
+	exemplars.close();
       }
-      Exemplars data = new Exemplars(dataInsts, 0);
-      m_CurrentInstances = data;
       m_ResultProducer.setInstances(m_CurrentInstances);
     }
     
@@ -31,6 +31,7 @@ import java.sql.*;
 import java.util.*;
 import java.util.Date;
 import weka.core.*;
+import milk.core.*;
 
 /**
  * Convert the results of a database query into instances. The jdbc
@@ -44,7 +45,14 @@ import weka.core.*;
  * jdbcURL=jdbc:idb=experiments.prp
  * </pre></code><p>
  *
- * Command line use just outputs the instances to System.out.
+ * Command line use just outputs the instances to System.out. <p>
+ *
+ * Large results can be streamed as exemplars with retrieveExemplars(),
+ * which holds only one exemplar in memory at a time.  The rows of each
+ * exemplar must then be contiguous, e.g. by ordering the query by the
+ * ID column, and the query is run twice: once to find the values of
+ * the nominal attributes, which are needed for the header, and once
+ * to read the exemplars.
  *
  * @author Len Trigg (trigg@cs.waikato.ac.nz)
  * @version $Revision: 1.14 $
@@ -57,6 +65,10 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
   /** Query to execute */
   String m_Query = "SELECT * from ?";
 
+  /** The number of rows fetched at a time when streaming, 0 for the
+   *  driver's default */
+  int m_FetchSize = 0;
+
   /**
    * Sets up the database drivers
    *
@@ -72,13 +84,17 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
    *
    */
    public Enumeration listOptions () {
-     Vector newVector = new Vector(2);
+     Vector newVector = new Vector(3);
 
      newVector.addElement(new Option("\tSQL query to execute.",
 				     "Q",1,"-Q <query>"));
      newVector.addElement(new Option("\tReturn sparse rather than normal "
 				    +"instances." 
 				    , "S", 0, "-S"));
+     newVector.addElement(new Option("\tNumber of rows fetched at a time "
+				     +"when streaming exemplars.\n"
+				     +"\t(default: the driver's default)",
+				     "F",1,"-F <fetch size>"));
      return  newVector.elements();
    }
 
@@ -90,6 +106,9 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
    * -S <br>
    * Return a set of sparse instances rather than normal instances.<p>
    *
+   * -F fetch size <br>
+   * The number of rows fetched at a time when streaming exemplars.<p>
+   *
    * @param options the list of options as an array of strings
    * @exception Exception if an option is not supported
    */
@@ -103,6 +122,13 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
     if (optionString.length() != 0) {
       setQuery(optionString);
     } 
+
+    optionString = Utils.getOption('F',options);
+    if (optionString.length() != 0) {
+      setFetchSize(Integer.parseInt(optionString));
+    } else {
+      setFetchSize(0);
+    }
   }
 
   /**
@@ -155,6 +181,33 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
     return m_CreateSparseData;
   }
 
+  /**
+   * Returns the tip text for this property
+   * @return tip text for this property suitable for
+   * displaying in the explorer/experimenter gui
+   */
+  public String fetchSizeTipText() {
+    return "The number of rows fetched from the database at a time when "
+      + "streaming exemplars (0 for the driver's default). Some drivers "
+      + "only honour it when auto-commit is off.";
+  }
+
+  /**
+   * Sets the number of rows fetched at a time when streaming
+   * @param size the number of rows, 0 for the driver's default
+   */
+  public void setFetchSize(int size) {
+    m_FetchSize = size;
+  }
+
+  /**
+   * Gets the number of rows fetched at a time when streaming
+   * @return the number of rows, 0 for the driver's default
+   */
+  public int getFetchSize() {
+    return m_FetchSize;
+  }
+
   /**
    * Gets the current settings of InstanceQuery
    *
@@ -162,7 +215,7 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
    */
   public String[] getOptions () {
 
-    String[] options = new String[3];
+    String[] options = new String[5];
     int current = 0;
 
     options[current] = "-Q"; options[current++] = getQuery();
@@ -171,6 +224,10 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
       options[current++] = "-S";
     }
 
+    if (getFetchSize() > 0) {
+      options[current++] = "-F"; options[current++] = "" + getFetchSize();
+    }
+
     while (current < options.length) {
       options[current++] = "";
     }
@@ -205,82 +262,7 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
     }
     ResultSet rs = getResultSet();
     System.err.println("Getting metadata...");
-    ResultSetMetaData md = rs.getMetaData();
-
-    // Determine structure of the instances
-    int numAttributes = md.getColumnCount();
-    int [] attributeTypes = new int [numAttributes];
-    Hashtable [] nominalIndexes = new Hashtable [numAttributes];
-    FastVector [] nominalStrings = new FastVector [numAttributes];
-    for (int i = 1; i <= numAttributes; i++) {
-      switch (md.getColumnType(i)) {
-      case Types.CHAR:
-      case Types.VARCHAR:
-      case Types.LONGVARCHAR:
-      case Types.BINARY:
-      case Types.VARBINARY:
-      case Types.LONGVARBINARY:
-	//System.err.println("String --> nominal");
-	attributeTypes[i - 1] = Attribute.NOMINAL;
-	nominalIndexes[i - 1] = new Hashtable();
-	nominalStrings[i - 1] = new FastVector();
-	break;
-      case Types.BIT:
-	////System.err.println("boolean --> nominal");
-	attributeTypes[i - 1] = Attribute.NOMINAL;
-	nominalIndexes[i - 1] = new Hashtable();
-	nominalIndexes[i - 1].put("false", new Double(0));
-	nominalIndexes[i - 1].put("true", new Double(1));
-	nominalStrings[i - 1] = new FastVector();
-	nominalStrings[i - 1].addElement("false");
-	nominalStrings[i - 1].addElement("true");
-	break;
-      case Types.NUMERIC:
-      case Types.DECIMAL:
-	//System.err.println("BigDecimal --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-      case Types.TINYINT:
-	//System.err.println("byte --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-      case Types.SMALLINT:
-	//System.err.println("short --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-      case Types.INTEGER:
-	//System.err.println("int --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-      case Types.BIGINT:
-	//System.err.println("long --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-      case Types.REAL:
-	//System.err.println("float --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-      case Types.FLOAT:
-      case Types.DOUBLE:
-	//System.err.println("double --> numeric");
-	attributeTypes[i - 1] = Attribute.NUMERIC;
-	break;
-	/*case Types.BINARY:
-      case Types.VARBINARY:
-      case Types.LONGVARBINARY:
-	//System.err.println("byte[] --> unsupported");
-	attributeTypes[i - 1] = Attribute.STRING;
-	break; */
-      case Types.DATE:
-      case Types.TIME:
-      case Types.TIMESTAMP:
-	attributeTypes[i - 1] = Attribute.DATE;
-	break;
-      default:
-	//System.err.println("Unknown column type");
-	attributeTypes[i - 1] = Attribute.STRING;
-      }
-    }
+    QueryStructure structure = new QueryStructure(rs.getMetaData());
 
     // Step through the tuples
     System.err.println("Creating instances...");
@@ -291,9 +273,353 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
 	System.err.print("read " + rowCount + " instances \r");
 	System.err.flush();
       }
-      double[] vals = new double[numAttributes];
-      for(int i = 1; i <= numAttributes; i++) {
-	switch (md.getColumnType(i)) {
+      instances.addElement(structure.readInstance(rs));
+      rowCount++;
+    }
+    //disconnectFromDatabase();  (perhaps other queries might be made)
+    
+    // Create the header and add the instances to the dataset
+    System.err.println("Creating header...");
+    Instances result = structure.header(instances.size());
+    for (int i = 0; i < instances.size(); i++) {
+      result.add((Instance)instances.elementAt(i));
+    }
+    rs.close();
+    return result;
+  }
+
+  /**
+   * Streams the exemplars in the result of the query set through the
+   * -Q option.
+   *
+   * @param classIndex the index of the class column (0, 1, ...),
+   * or -1 for the last column
+   * @param idIndex the index of the ID column (0, 1, ...)
+   * @return the exemplars
+   * @exception Exception if an error occurs
+   * @see #retrieveExemplars(String, int, int)
+   */
+  public ExemplarIterator retrieveExemplars(int classIndex, int idIndex)
+    throws Exception {
+    return retrieveExemplars(m_Query, classIndex, idIndex);
+  }
+
+  /**
+   * Makes a database query and streams the exemplars in its result.
+   * The rows of each exemplar must be contiguous in the result, e.g.
+   * by ordering the query by the ID column, and the ID column must hold
+   * strings.  The query is executed twice: the first pass only collects
+   * the values of the nominal attributes for the header, the second
+   * returns the exemplars one at a time.  The iterator should be closed
+   * once it is no longer needed.
+   *
+   * @param query the query, whose result must not change between the
+   * two passes
+   * @param classIndex the index of the class column (0, 1, ...),
+   * or -1 for the last column
+   * @param idIndex the index of the ID column (0, 1, ...)
+   * @return the exemplars
+   * @exception Exception if an error occurs
+   */
+  public ExemplarIterator retrieveExemplars(String query, int classIndex,
+					    int idIndex) throws Exception {
+
+    System.err.println("Executing query: " + query);
+    connectToDatabase();
+    boolean autoCommit = m_Connection.getAutoCommit();
+    ResultSet rs = executeStreaming(query, autoCommit);
+    QueryStructure structure;
+    try {
+      structure = new QueryStructure(rs.getMetaData());
+      System.err.println("Reading nominal values...");
+      while(rs.next()) {
+	structure.readInstance(rs);
+      }
+    } finally {
+      closeStreaming(rs, autoCommit);
+    }
+    structure.fix();
+    
+    Instances header = structure.header(1);
+    if (classIndex >= header.numAttributes()) {
+      throw new Exception("Index of class attribute too large.");
+    }
+    if (classIndex < 0) {
+      classIndex = header.numAttributes() - 1;
+    }
+    header.setClassIndex(classIndex);
+    if ((idIndex < 0) || (idIndex >= header.numAttributes())
+	|| (!header.attribute(idIndex).isNominal())) {
+      throw new Exception("ID index is wrong!");
+    }
+
+    System.err.println("Streaming exemplars...");
+    return new ExemplarIterator(executeStreaming(query, autoCommit), 
+				structure, header, idIndex, autoCommit);
+  }
+
+  /**
+   * Executes a query with a forward-only, read-only statement of its
+   * own, fetching the rows m_FetchSize at a time.  Auto-commit is
+   * turned off, since some drivers only stream a result without it.
+   *
+   * @param query the query
+   * @param autoCommit the auto-commit mode to restore if the query fails
+   * @return the result, to be closed with closeStreaming()
+   * @exception Exception if an error occurs
+   */
+  private ResultSet executeStreaming(String query, boolean autoCommit) 
+    throws Exception {
+
+    connectToDatabase();
+    flushResults();
+    m_Connection.setAutoCommit(false);
+    Statement stmt = null;
+    try {
+      stmt = m_Connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+					  ResultSet.CONCUR_READ_ONLY);
+      if (m_FetchSize > 0) {
+	stmt.setFetchSize(m_FetchSize);
+      }
+      return stmt.executeQuery(query);
+    } catch (SQLException ex) {
+      try {
+	if (stmt != null) {
+	  stmt.close();
+	}
+      } finally {
+	m_Connection.setAutoCommit(autoCommit);
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Closes a result of executeStreaming() with its statement, and
+   * restores the auto-commit mode of the connection.
+   *
+   * @param rs the result
+   * @param autoCommit the auto-commit mode to restore
+   * @exception SQLException if the statement cannot be closed
+   */
+  private void closeStreaming(ResultSet rs, boolean autoCommit) 
+    throws SQLException {
+
+    try {
+      rs.getStatement().close();
+    } finally {
+      if ((m_Connection != null) && autoCommit) {
+	m_Connection.setAutoCommit(true);
+      }
+    }
+  }
+
+  /**
+   * Groups the rows of a result into exemplars on the fly (see
+   * ExemplarStream).
+   */
+  public class ExemplarIterator extends ExemplarStream {
+
+    /** The rows, null once closed */
+    private ResultSet m_Result;
+
+    /** The structure of the rows */
+    private QueryStructure m_Structure;
+
+    /** The header of the exemplars */
+    private Instances m_Header;
+
+    /** The auto-commit mode of the connection to restore when closed */
+    private boolean m_AutoCommit;
+
+    /**
+     * Constructor
+     *
+     * @param rs the rows
+     * @param structure the structure of the rows
+     * @param header the header of the exemplars
+     * @param idIndex the index of the ID attribute
+     * @param autoCommit the auto-commit mode to restore when closed
+     */
+    ExemplarIterator(ResultSet rs, QueryStructure structure, 
+		     Instances header, int idIndex, boolean autoCommit) {
+
+      super(idIndex);
+      m_Result = rs;
+      m_Structure = structure;
+      m_Header = header;
+      m_AutoCommit = autoCommit;
+    }
+
+    /**
+     * Returns the header of the exemplars.
+     *
+     * @return the header
+     */
+    protected Instances getStructure() {
+      return m_Header;
+    }
+
+    /**
+     * Reads the next row.
+     *
+     * @return the instance, or null after the last row
+     * @exception Exception if the row cannot be read
+     */
+    protected Instance readInstance() throws Exception {
+
+      if ((m_Result == null) || !m_Result.next()) {
+	return null;
+      }
+      Instance ins = m_Structure.readInstance(m_Result);
+      ins.setDataset(m_Header);
+      return ins;
+    }
+
+    /**
+     * Closes the result and its statement, and restores the auto-commit
+     * mode of the connection.
+     *
+     * @exception SQLException if they cannot be closed
+     */
+    public void close() throws SQLException {
+
+      if (m_Result != null) {
+	try {
+	  closeStreaming(m_Result, m_AutoCommit);
+	} finally {
+	  m_Result = null;
+	}
+      }
+    }
+  }
+
+  /**
+   * The structure of the result of a query: the type of each column,
+   * and the values of the nominal attributes seen so far.
+   */
+  private class QueryStructure {
+
+    /** The names of the columns */
+    private String [] m_ColumnNames;
+
+    /** The SQL type of each column */
+    private int [] m_ColumnTypes;
+
+    /** The attribute type of each column */
+    private int [] m_AttributeTypes;
+
+    /** The index of each value of the nominal attributes */
+    private Hashtable [] m_NominalIndexes;
+
+    /** The values of the nominal attributes */
+    private FastVector [] m_NominalStrings;
+
+    /** Whether new values of the nominal attributes are an error */
+    private boolean m_Fixed = false;
+
+    /**
+     * Determines the structure of the instances.
+     *
+     * @param md the meta data of the result of the query
+     * @exception Exception if an error occurs
+     */
+    QueryStructure(ResultSetMetaData md) throws Exception {
+
+      int numAttributes = md.getColumnCount();
+      m_ColumnNames = new String [numAttributes];
+      m_ColumnTypes = new int [numAttributes];
+      m_AttributeTypes = new int [numAttributes];
+      m_NominalIndexes = new Hashtable [numAttributes];
+      m_NominalStrings = new FastVector [numAttributes];
+      for (int i = 1; i <= numAttributes; i++) {
+	m_ColumnNames[i - 1] = md.getColumnName(i);
+	m_ColumnTypes[i - 1] = md.getColumnType(i);
+      }
+      for (int i = 1; i <= m_ColumnTypes.length; i++) {
+	switch (m_ColumnTypes[i - 1]) {
+	case Types.CHAR:
+	case Types.VARCHAR:
+	case Types.LONGVARCHAR:
+	case Types.BINARY:
+	case Types.VARBINARY:
+	case Types.LONGVARBINARY:
+	  //System.err.println("String --> nominal");
+	  m_AttributeTypes[i - 1] = Attribute.NOMINAL;
+	  m_NominalIndexes[i - 1] = new Hashtable();
+	  m_NominalStrings[i - 1] = new FastVector();
+	  break;
+	case Types.BIT:
+	  ////System.err.println("boolean --> nominal");
+	  m_AttributeTypes[i - 1] = Attribute.NOMINAL;
+	  m_NominalIndexes[i - 1] = new Hashtable();
+	  m_NominalIndexes[i - 1].put("false", new Double(0));
+	  m_NominalIndexes[i - 1].put("true", new Double(1));
+	  m_NominalStrings[i - 1] = new FastVector();
+	  m_NominalStrings[i - 1].addElement("false");
+	  m_NominalStrings[i - 1].addElement("true");
+	  break;
+	case Types.NUMERIC:
+	case Types.DECIMAL:
+	  //System.err.println("BigDecimal --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	case Types.TINYINT:
+	  //System.err.println("byte --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	case Types.SMALLINT:
+	  //System.err.println("short --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	case Types.INTEGER:
+	  //System.err.println("int --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	case Types.BIGINT:
+	  //System.err.println("long --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	case Types.REAL:
+	  //System.err.println("float --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	case Types.FLOAT:
+	case Types.DOUBLE:
+	  //System.err.println("double --> numeric");
+	  m_AttributeTypes[i - 1] = Attribute.NUMERIC;
+	  break;
+	  /*case Types.BINARY:
+	case Types.VARBINARY:
+	case Types.LONGVARBINARY:
+	  //System.err.println("byte[] --> unsupported");
+	  m_AttributeTypes[i - 1] = Attribute.STRING;
+	  break; */
+	case Types.DATE:
+	case Types.TIME:
+	case Types.TIMESTAMP:
+	  m_AttributeTypes[i - 1] = Attribute.DATE;
+	  break;
+	default:
+	  //System.err.println("Unknown column type");
+	  m_AttributeTypes[i - 1] = Attribute.STRING;
+	}
+      }
+    }
+
+    /**
+     * Reads the current row of a result into an instance.  The values
+     * of nominal attributes not seen before are added to the structure.
+     *
+     * @param rs the result, positioned on the row
+     * @return the instance
+     * @exception Exception if an error occurs
+     */
+    Instance readInstance(ResultSet rs) throws Exception {
+
+      double[] vals = new double[m_ColumnTypes.length];
+      for(int i = 1; i <= m_ColumnTypes.length; i++) {
+	switch (m_ColumnTypes[i - 1]) {
 	case Types.CHAR:
 	case Types.VARCHAR:
 	case Types.LONGVARCHAR:
@@ -305,11 +631,16 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
 	  if (rs.wasNull()) {
 	    vals[i - 1] = Instance.missingValue();
 	  } else {
-	    Double index = (Double)nominalIndexes[i - 1].get(str);
+	    Double index = (Double)m_NominalIndexes[i - 1].get(str);
 	    if (index == null) {
-	      index = new Double(nominalStrings[i - 1].size());
-	      nominalIndexes[i - 1].put(str, index);
-	      nominalStrings[i - 1].addElement(str);
+	      if (m_Fixed) {
+		throw new Exception("New value \"" + str + "\" of column "
+				    + m_ColumnNames[i - 1] + ": the query "
+				    + "result has changed!");
+	      }
+	      index = new Double(m_NominalStrings[i - 1].size());
+	      m_NominalIndexes[i - 1].put(str, index);
+	      m_NominalStrings[i - 1].addElement(str);
 	    }
 	    vals[i - 1] = index.doubleValue();
 	  }
@@ -389,58 +720,63 @@ public class MIInstanceQuery extends MIDatabaseUtils implements OptionHandler {
 	case Types.DATE:
 	case Types.TIME:
 	case Types.TIMESTAMP:
-          Date date = rs.getDate(i);
-          if (rs.wasNull()) {
+	  Date date = rs.getDate(i);
+	  if (rs.wasNull()) {
 	    vals[i - 1] = Instance.missingValue();
 	  } else {
-            // TODO: Do a value check here.
-            vals[i - 1] = (double)date.getTime();
-          }
-          break;
+	    // TODO: Do a value check here.
+	    vals[i - 1] = (double)date.getTime();
+	  }
+	  break;
 	default:
 	  vals[i - 1] = Instance.missingValue();
 	}
       }
-      Instance newInst;
       if (m_CreateSparseData) {
-	newInst = new SparseInstance(1.0, vals);
-      } else {
-	newInst = new Instance(1.0, vals);
+	return new SparseInstance(1.0, vals);
       }
-      instances.addElement(newInst);
-      rowCount++;
+      return new Instance(1.0, vals);
     }
-    //disconnectFromDatabase();  (perhaps other queries might be made)
-    
-    // Create the header and add the instances to the dataset
-    System.err.println("Creating header...");
-    FastVector attribInfo = new FastVector();
-    for (int i = 0; i < numAttributes; i++) {
-      String attribName = md.getColumnName(i + 1);
-      switch (attributeTypes[i]) {
-      case Attribute.NOMINAL:
-	attribInfo.addElement(new Attribute(attribName, nominalStrings[i]));
-	break;
-      case Attribute.NUMERIC:
-	attribInfo.addElement(new Attribute(attribName));
-	break;
-      case Attribute.STRING:
-	attribInfo.addElement(new Attribute(attribName, (FastVector)null));
-	break;
-      case Attribute.DATE:
-	attribInfo.addElement(new Attribute(attribName, (String)null));
-	break;
-      default:
-	throw new Exception("Unknown attribute type");
-      }
+
+    /**
+     * Makes new values of the nominal attributes an error, once the
+     * header has been created from them.
+     */
+    void fix() {
+      m_Fixed = true;
     }
-    Instances result = new Instances("QueryResult", attribInfo, 
-				     instances.size());
-    for (int i = 0; i < instances.size(); i++) {
-      result.add((Instance)instances.elementAt(i));
+
+    /**
+     * Creates an empty set of instances with the structure.
+     *
+     * @param capacity the capacity of the set
+     * @return the set of instances
+     * @exception Exception if an error occurs
+     */
+    Instances header(int capacity) throws Exception {
+
+      FastVector attribInfo = new FastVector();
+      for (int i = 0; i < m_ColumnTypes.length; i++) {
+	String attribName = m_ColumnNames[i];
+	switch (m_AttributeTypes[i]) {
+	case Attribute.NOMINAL:
+	  attribInfo.addElement(new Attribute(attribName, m_NominalStrings[i]));
+	  break;
+	case Attribute.NUMERIC:
+	  attribInfo.addElement(new Attribute(attribName));
+	  break;
+	case Attribute.STRING:
+	  attribInfo.addElement(new Attribute(attribName, (FastVector)null));
+	  break;
+	case Attribute.DATE:
+	  attribInfo.addElement(new Attribute(attribName, (String)null));
+	  break;
+	default:
+	  throw new Exception("Unknown attribute type");
+	}
+      }
+      return new Instances("QueryResult", attribInfo, capacity);
     }
-    rs.close();
-    return result;
   }
 
   /**
@@ -0,0 +1,479 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    MIParallelExperiment.java
+ *
+ */
+
+
+package milk.experiment;
+
+import weka.core.SerializedObject;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+import weka.core.Option;
+import weka.core.FastVector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.io.BufferedInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Enumeration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the iterations of an experiment on a pool of threads in the
+ * local JVM.  Every iteration (run, dataset and custom property value)
+ * is carried out by its own copy of the experiment, whose results are
+ * buffered and passed on to the result listener in the same order as
+ * a serial MIExperiment would produce them. <p>
+ *
+ * The result listener only sees one preProcess/postProcess pair, and
+ * its isResultRequired and determineColumnConstraints methods are
+ * called by one thread at a time.  Result producers writing raw output
+ * to a single file are not supported, since every copy would write to
+ * the same file. <p>
+ *
+ * The experiment can be driven either with runExperiment() or with the
+ * usual hasMoreIterations()/nextIteration() loop, in which case
+ * nextIteration() waits for the next iteration in order and delivers
+ * its results.
+ *
+ * @version $Revision: 1.0 $
+ */
+public class MIParallelExperiment extends MIExperiment {
+
+  /** The number of threads */
+  protected int m_NumThreads = Runtime.getRuntime().availableProcessors();
+
+  /** The thread pool, null when not running */
+  protected transient ExecutorService m_Pool = null;
+
+  /** The results of all iterations, in the order of a serial experiment */
+  protected transient Future [] m_Iterations;
+
+  /** The index of the next iteration whose results are delivered */
+  protected transient int m_NextIteration;
+
+  /**
+   * Creates an empty parallel experiment.
+   */
+  public MIParallelExperiment() {
+  }
+
+  /**
+   * Creates a parallel experiment with the settings of the given
+   * experiment.
+   *
+   * @param base the experiment to copy the settings from
+   * @exception Exception if the base experiment is null
+   */
+  public MIParallelExperiment(MIExperiment base) throws Exception {
+
+    if (base == null) {
+      throw new Exception("Base experiment is null!");
+    }
+    copySettings(base, this);
+  }
+
+  /**
+   * Copies the settings of one experiment to another one.
+   *
+   * @param from the experiment whose settings are copied
+   * @param to the experiment receiving the settings
+   */
+  protected static void copySettings(MIExperiment from, MIExperiment to) {
+
+    to.setRunLower(from.getRunLower());
+    to.setRunUpper(from.getRunUpper());
+    to.setResultListener(from.getResultListener());
+    to.setResultProducer(from.getResultProducer());
+    to.setDatasets(from.getDatasets());
+    to.setUsePropertyIterator(from.getUsePropertyIterator());
+    to.setPropertyPath(from.getPropertyPath());
+    to.setPropertyArray(from.getPropertyArray());
+    to.setNotes(from.getNotes());
+    to.m_ClassFirst = from.m_ClassFirst;
+    to.m_AdvanceDataSetFirst = from.m_AdvanceDataSetFirst;
+  }
+
+  /**
+   * Gets the number of threads used to run the iterations.
+   *
+   * @return the number of threads
+   */
+  public int getNumThreads() {
+
+    return m_NumThreads;
+  }
+
+  /**
+   * Sets the number of threads used to run the iterations.
+   *
+   * @param numThreads the number of threads
+   */
+  public void setNumThreads(int numThreads) {
+
+    m_NumThreads = numThreads;
+  }
+
+  /**
+   * Prepares the experiment for running and starts running all
+   * iterations in the background.
+   *
+   * @exception Exception if an error occurs
+   */
+  public void initialize() throws Exception {
+
+    shutdown();
+
+    // Take the template before the result listener is initialised
+    MIExperiment template = new MIExperiment();
+    copySettings(this, template);
+    final SerializedObject so = new SerializedObject(template);
+
+    super.initialize();
+
+    // Enumerate the iterations in the order of a serial experiment
+    FastVector counters = new FastVector();
+    while (hasMoreIterations()) {
+      counters.addElement(new int [] {m_RunNumber, m_DatasetNumber, 
+				      m_PropertyNumber});
+      super.advanceCounters();
+    }
+    m_RunNumber = getRunLower();
+    m_DatasetNumber = 0;
+    m_PropertyNumber = 0;
+    m_Finished = (counters.size() == 0);
+
+    m_Pool = Executors.newFixedThreadPool(Math.max(1, m_NumThreads));
+    m_Iterations = new Future [counters.size()];
+    m_NextIteration = 0;
+    for (int i = 0; i < counters.size(); i++) {
+      final int [] current = (int [])counters.elementAt(i);
+      m_Iterations[i] = m_Pool.submit(new Callable() {
+	  public Object call() throws Exception {
+	    return runIteration((MIExperiment)so.getObject(), current);
+	  }
+	});
+    }
+  }
+
+  /**
+   * Runs a single iteration on a copy of the experiment.
+   *
+   * @param exp the copy of the experiment
+   * @param current the run, dataset and property number of the iteration
+   * @return the results of the iteration
+   */
+  protected ResultBuffer runIteration(MIExperiment exp, int [] current) {
+
+    ResultBuffer buffer = new ResultBuffer(getResultListener(), 
+					   getResultProducer());
+    try {
+      exp.setResultListener(buffer);
+      exp.initialize();
+      exp.m_RunNumber = current[0];
+      exp.m_DatasetNumber = current[1];
+      exp.m_PropertyNumber = current[2];
+      exp.nextIteration();
+      exp.postProcess();
+    } catch (Exception ex) {
+      buffer.m_Failure = ex;
+    }
+    return buffer;
+  }
+
+  /**
+   * Waits for the next iteration and passes its results on to the
+   * result listener.
+   *
+   * @exception Exception if the iteration failed, after its results
+   * produced so far have been passed on
+   */
+  public void nextIteration() throws Exception {
+
+    ResultBuffer buffer;
+    try {
+      buffer = (ResultBuffer)m_Iterations[m_NextIteration].get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof Exception) {
+	throw (Exception)ex.getCause();
+      }
+      throw (Error)ex.getCause();
+    }
+    buffer.deliver();
+    if (buffer.m_Failure != null) {
+      throw buffer.m_Failure;
+    }
+    advanceCounters();
+  }
+
+  /**
+   * Moves on to the next iteration.
+   */
+  public void advanceCounters() {
+
+    m_Iterations[m_NextIteration] = null; // Save memory
+    m_NextIteration++;
+    super.advanceCounters();
+    if (m_Finished) {
+      shutdown();
+    }
+  }
+
+  /**
+   * Signals that the experiment is finished running, cancelling any
+   * iterations not delivered yet.
+   *
+   * @exception Exception if an error occurs
+   */
+  public void postProcess() throws Exception {
+
+    shutdown();
+    super.postProcess();
+  }
+
+  /**
+   * Stops the threads, cancelling the iterations still running.
+   */
+  protected void shutdown() {
+
+    if (m_Pool != null) {
+      m_Pool.shutdownNow();
+      m_Pool = null;
+    }
+  }
+
+  /**
+   * Gets a string representation of the experiment configuration.
+   *
+   * @return a value of type 'String'
+   */
+  public String toString() {
+
+    return super.toString() + "\nThreads: " + m_NumThreads + '\n';
+  }
+
+  /**
+   * Result listener of one iteration, which keeps the results until they
+   * can be passed on to the experiment's result listener in order. <p>
+   *
+   * The listener only accepts calls from the result producer it was
+   * prepared with, which is the parallel experiment's own, so calls
+   * made by the iteration's copy of the producer are passed on as
+   * made by the experiment's producer.
+   */
+  protected static class ResultBuffer implements MIResultListener {
+
+    /** The experiment's result listener */
+    protected transient MIResultListener m_Target;
+
+    /** The experiment's result producer, which prepared m_Target */
+    protected transient MIResultProducer m_Producer;
+
+    /** The keys and results received */
+    protected FastVector m_Results = new FastVector();
+
+    /** The exception that stopped the iteration, if any */
+    protected Exception m_Failure = null;
+
+    /**
+     * Creates a buffer for the given listener.
+     *
+     * @param target the experiment's result listener
+     * @param producer the experiment's result producer
+     */
+    public ResultBuffer(MIResultListener target, MIResultProducer producer) {
+
+      m_Target = target;
+      m_Producer = producer;
+    }
+
+    /**
+     * Asks the experiment's result listener.
+     *
+     * @param rp the ResultProducer to which the constraints will apply,
+     * ignored in favour of the experiment's producer
+     * @return the column constraints
+     * @exception Exception if an error occurs
+     */
+    public String [] determineColumnConstraints(MIResultProducer rp) 
+      throws Exception {
+
+      synchronized (m_Target) {
+	return m_Target.determineColumnConstraints(m_Producer);
+      }
+    }
+
+    /**
+     * Does nothing, the experiment's result listener is prepared once
+     * by the parallel experiment.
+     *
+     * @param rp the ResultProducer that will generate the results
+     */
+    public void preProcess(MIResultProducer rp) {
+    }
+
+    /**
+     * Does nothing, the experiment's result listener is finished once
+     * by the parallel experiment.
+     *
+     * @param rp the ResultProducer that generated the results
+     */
+    public void postProcess(MIResultProducer rp) {
+    }
+
+    /**
+     * Keeps a result until it is delivered.
+     *
+     * @param rp the ResultProducer that generated the results
+     * @param key the key of the result
+     * @param result the result
+     */
+    public void acceptResult(MIResultProducer rp, Object [] key, 
+			     Object [] result) {
+
+      m_Results.addElement(new Object [] {key, result});
+    }
+
+    /**
+     * Asks the experiment's result listener.
+     *
+     * @param rp the ResultProducer wanting to generate the results,
+     * ignored in favour of the experiment's producer
+     * @param key the key of the result
+     * @return true if the result should be generated
+     * @exception Exception if it could not be determined
+     */
+    public boolean isResultRequired(MIResultProducer rp, Object [] key) 
+      throws Exception {
+
+      synchronized (m_Target) {
+	return m_Target.isResultRequired(m_Producer, key);
+      }
+    }
+
+    /**
+     * Passes the results kept on to the experiment's result listener,
+     * as produced by the experiment's result producer.
+     *
+     * @exception Exception if a result could not be accepted
+     */
+    public void deliver() throws Exception {
+
+      synchronized (m_Target) {
+	for (int i = 0; i < m_Results.size(); i++) {
+	  Object [] current = (Object [])m_Results.elementAt(i);
+	  m_Target.acceptResult(m_Producer, (Object [])current[0], 
+				(Object [])current[1]);
+	}
+      }
+      m_Results.removeAllElements();
+    }
+  }
+
+  /**
+   * Configures/Runs the experiment from the command line.
+   *
+   * @param args command line arguments to the experiment.
+   */
+  public static void main(String[] args) {
+
+    try {
+      MIParallelExperiment exp = null;
+      MIExperiment base = null;
+      String expFile = Utils.getOption('l', args);
+      String saveFile = Utils.getOption('s', args);
+      boolean runExp = Utils.getFlag('r', args);
+      String threads = Utils.getOption("num-threads", args);
+      if (expFile.length() == 0) {
+	base = new MIExperiment();
+	try {
+	  base.setOptions(args);
+	  Utils.checkForRemainingOptions(args);
+	} catch (Exception ex) {
+	  ex.printStackTrace();
+	  String result = "Usage:\n\n"
+	    + "-l <exp file>\n"
+	    + "\tLoad experiment from file (default use cli options)\n"
+	    + "-s <exp file>\n"
+	    + "\tSave experiment to file after setting other options\n"
+	    + "\t(default don't save)\n"
+	    + "-num-threads <number of threads>\n"
+	    + "\tThe number of threads to run the experiment with\n"
+	    + "\t(default the number of processors)\n"
+	    + "-r\n"
+	    + "\tRun experiment (default don't run)\n\n";
+	  Enumeration enum = ((OptionHandler)base).listOptions();
+	  while (enum.hasMoreElements()) {
+	    Option option = (Option) enum.nextElement();
+	    result += option.synopsis() + "\n";
+	    result += option.description() + "\n";
+	  }
+	  throw new Exception(result + "\n" + ex.getMessage());
+	}
+      } else {
+	FileInputStream fi = new FileInputStream(expFile);
+	ObjectInputStream oi = new ObjectInputStream(
+			       new BufferedInputStream(fi));
+	Object tmp = oi.readObject();
+	if (tmp instanceof MIParallelExperiment) {
+	  exp = (MIParallelExperiment)tmp;
+	} else {
+	  base = (MIExperiment)tmp;
+	}
+	oi.close();
+      }
+      if (base != null) {
+	exp = new MIParallelExperiment(base);
+      }
+      if (threads.length() != 0) {
+	exp.setNumThreads(Integer.parseInt(threads));
+      }
+      System.err.println("MIExperiment:\n" + exp.toString());
+
+      if (saveFile.length() != 0) {
+	FileOutputStream fo = new FileOutputStream(saveFile);
+	ObjectOutputStream oo = new ObjectOutputStream(
+				new BufferedOutputStream(fo));
+	oo.writeObject(exp);
+	oo.close();
+      }
+      
+      if (runExp) {
+	System.err.println("Initializing...");
+	exp.initialize();
+	System.err.println("Iterating...");
+	exp.runExperiment();
+	System.err.println("Postprocessing...");
+	exp.postProcess();
+      }
+      
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      System.err.println(ex.getMessage());
+    }
+  }
+}